@@ -0,0 +1,143 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * sample throughput of polling many firewalls at once against an in-process TLS stub of speed.cgi with a network latency:
+ * the blocking {@link IPFireDataProvider}s on a thread pool (the {@link MultiHostPoller}'s default size, and a thread per host)
+ * versus all hosts on the single selector thread of the {@link AsyncIPFirePoller}, all on kept-alive connections.
+ * one operation polls every host once, so the samples per second are the operations per second times the hosts
+ *
+ * @author apric
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncPollBenchmark {
+
+    private static final long LATENCY_MILLIS = 10; // e.g. a firewall at a branch office
+
+    @Param({"16", "128"})
+    public int hostCount;
+
+    private SpeedCgiStubServer stubServer;
+    private final List<IPFireDataProvider> dataProviders = new ArrayList<IPFireDataProvider>();
+    private final List<Callable<TrafficSample>> polls = new ArrayList<Callable<TrafficSample>>();
+    private ExecutorService defaultPool;
+    private ExecutorService threadPerHostPool;
+    private AsyncIPFirePoller asyncPoller;
+    private final List<Future<TrafficSample>> asyncPolls = new ArrayList<Future<TrafficSample>>();
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        stubServer = new SpeedCgiStubServer();
+        stubServer.setLatency(LATENCY_MILLIS, 0);
+
+        asyncPoller = new AsyncIPFirePoller();
+        for (int i = 0; i < hostCount; i++) {
+            final IPFireDataProvider dataProvider = new IPFireDataProvider("localhost", stubServer.getPort(), "admin", "password");
+            dataProviders.add(dataProvider);
+            polls.add(new Callable<TrafficSample>() {
+
+                @Override
+                public TrafficSample call() throws Exception {
+                    return dataProvider.poll();
+                }
+            });
+            asyncPoller.addHost("localhost", stubServer.getPort(), "admin", "password");
+        }
+
+        defaultPool = Executors.newFixedThreadPool(Math.min(hostCount, MultiHostPoller.DEFAULT_THREAD_COUNT));
+        threadPerHostPool = Executors.newFixedThreadPool(hostCount);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+
+        defaultPool.shutdownNow();
+        threadPerHostPool.shutdownNow();
+        asyncPoller.close();
+        for (IPFireDataProvider dataProvider : dataProviders) {
+            dataProvider.close();
+        }
+        stubServer.close();
+    }
+
+
+    @Benchmark
+    public int blockingDefaultThreads() throws Exception {
+        return countOk(defaultPool.invokeAll(polls));
+    }
+
+
+    @Benchmark
+    public int blockingThreadPerHost() throws Exception {
+        return countOk(threadPerHostPool.invokeAll(polls));
+    }
+
+
+    @Benchmark
+    public int asyncSelectorThread() throws Exception {
+
+        asyncPolls.clear();
+        for (int i = 0; i < hostCount; i++) {
+            asyncPolls.add(asyncPoller.poll(i));
+        }
+        return countOk(asyncPolls);
+    }
+
+
+    private static int countOk(final List<Future<TrafficSample>> samples) throws Exception {
+
+        int ok = 0;
+        for (Future<TrafficSample> sample : samples) {
+            if (sample.get().getOutcome() == PollOutcome.OK) {
+                ok++;
+            }
+        }
+        return ok;
+    }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * "SSL" sockets without any encryption: they only wrap the plain TCP socket they're layered over
+ * used to measure the application's own work per poll, without the (unavoidable) costs of the TLS implementation
+ *
+ * @author apric
+ */
+public final class LoopbackSSLSocketFactory extends SSLSocketFactory {
+
+    private static final String[] CIPHER_SUITES = {"NONE"};
+
+    private final LoopbackSession session = new LoopbackSession();
+
+
+    @Override
+    public Socket createSocket(final Socket plainSocket, final String host, final int port, final boolean autoClose) throws IOException {
+        return new LoopbackSSLSocket(plainSocket, session);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return CIPHER_SUITES.clone();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return CIPHER_SUITES.clone();
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException {
+        throw new SocketException("only layered sockets are supported");
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort) throws IOException {
+        throw new SocketException("only layered sockets are supported");
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress host, final int port) throws IOException {
+        throw new SocketException("only layered sockets are supported");
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+        throw new SocketException("only layered sockets are supported");
+    }
+
+
+    /**
+     * passes everything through to the plain socket, the handshake does nothing
+     */
+    private static final class LoopbackSSLSocket extends SSLSocket {
+
+        private final Socket plainSocket;
+        private final SSLSession session;
+
+        LoopbackSSLSocket(final Socket plainSocket, final SSLSession session) {
+            this.plainSocket = plainSocket;
+            this.session = session;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return plainSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return plainSocket.getOutputStream();
+        }
+
+        @Override
+        public void setSoTimeout(final int timeout) throws SocketException {
+            plainSocket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return plainSocket.getSoTimeout();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return plainSocket.isConnected();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return plainSocket.isClosed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            plainSocket.close();
+        }
+
+        @Override
+        public void startHandshake() {
+            // nothing to negotiate
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return session;
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return CIPHER_SUITES.clone();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return CIPHER_SUITES.clone();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(final String[] suites) {}
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return new String[]{session.getProtocol()};
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return new String[]{session.getProtocol()};
+        }
+
+        @Override
+        public void setEnabledProtocols(final String[] protocols) {}
+
+        @Override
+        public void addHandshakeCompletedListener(final HandshakeCompletedListener listener) {}
+
+        @Override
+        public void removeHandshakeCompletedListener(final HandshakeCompletedListener listener) {}
+
+        @Override
+        public void setUseClientMode(final boolean mode) {}
+
+        @Override
+        public boolean getUseClientMode() {
+            return true;
+        }
+
+        @Override
+        public void setNeedClientAuth(final boolean need) {}
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return false;
+        }
+
+        @Override
+        public void setWantClientAuth(final boolean want) {}
+
+        @Override
+        public boolean getWantClientAuth() {
+            return false;
+        }
+
+        @Override
+        public void setEnableSessionCreation(final boolean flag) {}
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return true;
+        }
+    }
+
+
+    /**
+     * a single session shared by all sockets (so every connection after the first one counts as resumed)
+     */
+    private static final class LoopbackSession implements SSLSession {
+
+        private final long creationTime = System.currentTimeMillis();
+
+        @Override
+        public byte[] getId() {
+            return new byte[0];
+        }
+
+        @Override
+        public SSLSessionContext getSessionContext() {
+            return null;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        @Override
+        public long getLastAccessedTime() {
+            return creationTime;
+        }
+
+        @Override
+        public void invalidate() {}
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public void putValue(final String name, final Object value) {}
+
+        @Override
+        public Object getValue(final String name) {
+            return null;
+        }
+
+        @Override
+        public void removeValue(final String name) {}
+
+        @Override
+        public String[] getValueNames() {
+            return new String[0];
+        }
+
+        @Override
+        public Certificate[] getPeerCertificates() throws SSLPeerUnverifiedException {
+            throw new SSLPeerUnverifiedException("no certificates on a loopback");
+        }
+
+        @Override
+        public Certificate[] getLocalCertificates() {
+            return null;
+        }
+
+        @Override
+        public javax.security.cert.X509Certificate[] getPeerCertificateChain() throws SSLPeerUnverifiedException {
+            throw new SSLPeerUnverifiedException("no certificates on a loopback");
+        }
+
+        @Override
+        public Principal getPeerPrincipal() throws SSLPeerUnverifiedException {
+            throw new SSLPeerUnverifiedException("no certificates on a loopback");
+        }
+
+        @Override
+        public Principal getLocalPrincipal() {
+            return null;
+        }
+
+        @Override
+        public String getCipherSuite() {
+            return CIPHER_SUITES[0];
+        }
+
+        @Override
+        public String getProtocol() {
+            return "NONE";
+        }
+
+        @Override
+        public String getPeerHost() {
+            return null;
+        }
+
+        @Override
+        public int getPeerPort() {
+            return -1;
+        }
+
+        @Override
+        public int getPacketBufferSize() {
+            return 16 * 1024;
+        }
+
+        @Override
+        public int getApplicationBufferSize() {
+            return 16 * 1024;
+        }
+    }
+
+}
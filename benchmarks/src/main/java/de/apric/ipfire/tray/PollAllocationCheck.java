@@ -0,0 +1,265 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ServerSocketFactory;
+
+/**
+ * allocation regression check of the steady-state poll -> publish -> render cycle, as the tray runs it:
+ * a {@link MultiHostPoller} polls several hosts of the speed.cgi stub, each together with two status pages
+ * (pipelined on a kept-alive connection), first without a renderer (poll -> publish), then with a renderer drawing
+ * the newest sample of the first host into a tray image (with each renderer),
+ * once more without a renderer with responses that take a few milliseconds (the reads' timeout then has to follow the poll deadline,
+ * lowering the socket's timeout boxes it: that round may allocate one {@link Integer} per poll, unless the JIT eliminates it).
+ * measures the heap allocated by the poller's threads and by the renderer itself (on whatever thread it is called),
+ * see {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long[])}; the EDT's own dispatching isn't measured.
+ * exits with status 1 if poll -> publish allocates anything (beyond the boxed timeouts), or a round with a renderer
+ * allocates more than the hop to the EDT ({@link #RENDER_HOP_BYTES} per rendered frame: posting a frame allocates its event,
+ * see {@link CoalescingSampleRenderer}), the drawing itself must not allocate either
+ *
+ * the TLS implementation's own allocation (the JDK encrypts every record into new buffers) is left out
+ * by polling via plain HTTP through the {@link LoopbackSSLSocketFactory}.
+ * on Linux, the local interface source ({@link ProcNetDevDataSource} on "lo") is checked as well,
+ * rendering all its interfaces stacked
+ *
+ * run: <code>java -cp benchmarks.jar de.apric.ipfire.tray.PollAllocationCheck [polls]</code> (also run by "mvn verify")
+ *
+ * @author apric
+ */
+public final class PollAllocationCheck {
+
+    public static final int WARMUP_POLLS = 20000; // until everything on the path is compiled
+    public static final int MEASURED_POLLS = 10000;
+    public static final int ROUNDS = 3; // a per-poll allocation shows up in every round, a one-off (e.g. by the JIT) doesn't
+    public static final int HOSTS = 4;
+    public static final int THREADS = 2; // fewer than hosts: the threads take turns
+    public static final long POLL_INTERVAL = 1; // ms
+    public static final long RESPONSE_LATENCY = 1; // ms, for the slow responses
+    public static final long RESPONSE_JITTER = 3; // ms, the time left changes from read to read
+    public static final int LATENCY_WARMUP_POLLS = 400; // the path is compiled already by the fast polls
+    public static final int LATENCY_POLLS = 1200;
+    public static final long BOXED_TIMEOUT_BYTES = 16; // an Integer, see Socket#setSoTimeout(int)
+    public static final long RENDER_HOP_BYTES = 256; // per rendered frame: the event posted to the EDT and its queue item (184 bytes on a 64-bit JVM), or two
+
+    private static final float MAX_DOWN_KBPS = 2000;
+    private static final float MAX_UP_KBPS = 200;
+
+    private static final String STATUS_ENDPOINTS = "/cgi-bin/load.cgi:load1,load5,load15;/cgi-bin/conntrack.cgi:connections";
+
+    private PollAllocationCheck() {}
+
+
+    public static void main(final String[] args) throws Exception {
+
+        final int measuredPolls = args.length > 0 ? Integer.parseInt(args[0]) : MEASURED_POLLS;
+
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            System.out.println("allocation check skipped: the JVM doesn't measure the allocation per thread");
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final SpeedCgiStubServer stubServer = new SpeedCgiStubServer(ServerSocketFactory.getDefault());
+        for (StatusEndpoint statusEndpoint : StatusEndpoint.parseList(STATUS_ENDPOINTS)) {
+            stubServer.addStatusPage(statusEndpoint.getPath(), statusEndpoint.getTagNames());
+        }
+        boolean isPassed = true;
+        try {
+            isPassed &= check(threadBean, getStubSources(stubServer), null, "none (poll -> publish)", WARMUP_POLLS, measuredPolls, 0);
+            for (DynamicTrayImage.Renderer renderer : DynamicTrayImage.Renderer.values()) {
+                isPassed &= check(threadBean, getStubSources(stubServer), renderer, renderer.name(), WARMUP_POLLS, measuredPolls, 0);
+            }
+
+            /* slow responses: */
+            stubServer.setLatency(RESPONSE_LATENCY, RESPONSE_JITTER);
+            isPassed &= check(threadBean, getStubSources(stubServer), null,
+                    "none, " + RESPONSE_LATENCY + "-" + (RESPONSE_LATENCY + RESPONSE_JITTER) + " ms response latency", LATENCY_WARMUP_POLLS, LATENCY_POLLS,
+                    BOXED_TIMEOUT_BYTES);
+        }
+        finally {
+            stubServer.close();
+        }
+
+        if (new File(ProcNetDevDataSource.PROC_NET_DEV).canRead()) {
+            final List<TrafficDataSource> localSources = new ArrayList<TrafficDataSource>();
+            for (int i = 0; i < HOSTS; i++) {
+                localSources.add(new ProcNetDevDataSource("lo"));
+            }
+            isPassed &= check(threadBean, localSources, DynamicTrayImage.Renderer.RASTER, "RASTER, local interface lo", WARMUP_POLLS, measuredPolls, 0);
+        }
+
+        if (!isPassed) {
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * @return a source for each host, all of them polling the stub server
+     */
+    private static List<TrafficDataSource> getStubSources(final SpeedCgiStubServer stubServer) throws Exception {
+
+        final List<TrafficDataSource> sources = new ArrayList<TrafficDataSource>();
+        for (int i = 0; i < HOSTS; i++) {
+            final IPFireDataProvider dataProvider = new IPFireDataProvider("localhost", stubServer.getPort(), "admin", "password",
+                    new LoopbackSSLSocketFactory());
+            dataProvider.setStatusEndpoints(StatusEndpoint.parseList(STATUS_ENDPOINTS));
+            sources.add(dataProvider);
+        }
+        return sources;
+    }
+
+
+    /**
+     * poll the sources with a poller (which closes them), rendering the first host
+     *
+     * @param renderer draws the first host, null: no renderer
+     * @param allowedBytesPerPoll what a poll may allocate (0: nothing), a rendered frame may allocate {@link #RENDER_HOP_BYTES} more
+     * @return true if a round of polls didn't allocate more than allowed
+     */
+    private static boolean check(final com.sun.management.ThreadMXBean threadBean, final List<TrafficDataSource> sources,
+            final DynamicTrayImage.Renderer renderer, final String description, final int warmupPolls, final int measuredPolls,
+            final long allowedBytesPerPoll) throws Exception {
+
+        final MultiHostPoller poller = new MultiHostPoller(sources, POLL_INTERVAL, THREADS);
+        final CheckRenderer checkRenderer;
+        if (renderer != null) {
+            final DynamicTrayImage trayImage = new DynamicTrayImage(24, 24);
+            trayImage.setRenderer(renderer);
+            checkRenderer = new CheckRenderer(threadBean, trayImage);
+            poller.addRenderer(0, checkRenderer);
+        }
+        else {
+            checkRenderer = null;
+        }
+        poller.start();
+        try {
+            awaitPolls(poller, warmupPolls);
+
+            final List<Thread> threads = poller.getPollThreads();
+            final long[] threadIds = new long[threads.size()];
+            for (int i = 0; i < threadIds.length; i++) {
+                threadIds[i] = threads.get(i).getId();
+            }
+
+            long allocated = 0;
+            long renders = 0;
+            for (int round = 1; round <= ROUNDS; round++) {
+
+                final long startRenders = checkRenderer != null ? checkRenderer.renders : 0;
+                final long startRenderAllocated = checkRenderer != null ? checkRenderer.allocated : 0;
+                final long[] start = threadBean.getThreadAllocatedBytes(threadIds);
+                awaitPolls(poller, measuredPolls);
+                final long[] end = threadBean.getThreadAllocatedBytes(threadIds);
+                allocated = 0;
+                for (int i = 0; i < threadIds.length; i++) {
+                    allocated += end[i] - start[i];
+                }
+
+                renders = checkRenderer != null ? checkRenderer.renders - startRenders : 0;
+                allocated += checkRenderer != null ? checkRenderer.allocated - startRenderAllocated : 0;
+                final long allowed = allowedBytesPerPoll * measuredPolls + RENDER_HOP_BYTES * renders;
+
+                final TrafficSample latest = poller.getLatestSample(0);
+                if (latest == null || latest.getOutcome() != PollOutcome.OK || (latest.getMetricCount() > 0 && latest.getMetricValue(0) == TrafficSample.NO_VALUE)) {
+                    System.out.println("allocation check failed: the polls failed (" + (latest != null ? latest.getOutcome().getDescription() : "no sample") + ")");
+                    return false;
+                }
+                if (allocated <= allowed) {
+                    System.out.println("allocation check passed, renderer " + description + ": " + measuredPolls + " polls of " + sources.size()
+                            + " hosts (" + renders + " renders) allocated " + allocated + " bytes" + (allowed > 0 ? " (" + allowed + " allowed)" : ""));
+                    return true;
+                }
+            }
+
+            System.out.println("allocation check failed, renderer " + description + ": " + allocated + " bytes in " + measuredPolls + " polls, " + renders + " renders ("
+                    + ((double) allocated / measuredPolls) + " bytes per poll, " + allowedBytesPerPoll + " per poll and " + RENDER_HOP_BYTES + " per render allowed)");
+            return false;
+        }
+        finally {
+            poller.stop();
+        }
+    }
+
+
+    /**
+     * wait until the poller has made the given number of polls (of all hosts together)
+     */
+    private static void awaitPolls(final MultiHostPoller poller, final int polls) throws InterruptedException {
+
+        final LatencyHistogram pollHistogram = poller.getMetrics().getHistogram(PollMetrics.Phase.POLL);
+        final long end = pollHistogram.getCount() + polls;
+        while (pollHistogram.getCount() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+
+    /**
+     * renders like the tray: the single graph of the speed, or all interfaces stacked if the source reads several
+     */
+    private static final class CheckRenderer implements TrafficSampleRenderer {
+
+        private final DynamicTrayImage trayImage;
+        /* the per-interface rates of a stacked graph: */
+        private final float[] stackedDownKBpS = new float[DynamicTrayImage.MAX_STACKED_INTERFACES];
+        private final float[] stackedUpKBpS = new float[DynamicTrayImage.MAX_STACKED_INTERFACES];
+
+        private final com.sun.management.ThreadMXBean threadBean;
+        /* only written by the render thread: */
+        private volatile long renders = 0;
+        private volatile long allocated = 0; // by the renderer
+
+        CheckRenderer(final com.sun.management.ThreadMXBean threadBean, final DynamicTrayImage trayImage) {
+            this.threadBean = threadBean;
+            this.trayImage = trayImage;
+        }
+
+        @Override
+        public void render(final int hostIndex, final MutableTrafficSample sample) {
+
+            final long threadId = Thread.currentThread().getId();
+            final long start = threadBean.getThreadAllocatedBytes(threadId);
+
+            if (sample.getInterfaceCount() > 1) { // several interfaces read at once: stacked
+                final int count = Math.min(sample.getInterfaceCount(), stackedDownKBpS.length);
+                for (int k = 0; k < count; k++) {
+                    stackedDownKBpS[k] = Math.max(0, sample.getInterfaceDownKBpS(k));
+                    stackedUpKBpS[k] = Math.max(0, sample.getInterfaceUpKBpS(k));
+                }
+                trayImage.getStackedSpeedImage(stackedDownKBpS, stackedUpKBpS, count, MAX_DOWN_KBPS, MAX_UP_KBPS);
+            }
+            else {
+                trayImage.getDynamicSpeedImageV2(Math.max(0, sample.getDownKBpS()), Math.max(0, sample.getUpKBpS()), MAX_DOWN_KBPS, MAX_UP_KBPS);
+            }
+            allocated += threadBean.getThreadAllocatedBytes(threadId) - start;
+            renders++;
+        }
+
+        @Override
+        public void pollingStopped(final int hostIndex, final Exception e) {
+            // the latest sample tells
+        }
+    }
+
+}
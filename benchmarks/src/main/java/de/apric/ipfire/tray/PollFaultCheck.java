@@ -0,0 +1,178 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ServerSocketFactory;
+
+/**
+ * fault check of the {@link MultiHostPoller}: polls the speed.cgi stub while every response is malformed
+ * (truncated, missing tags, counters that aren't numbers), then while they're valid again.
+ * the host has to keep being polled: the broken responses are INVALID_RESPONSE samples, counted as PARSE failures,
+ * and the first valid response is an OK sample again. only a failed login may stop polling the host.
+ * exits with status 1 if polling stopped or didn't recover
+ *
+ * run: <code>java -cp benchmarks.jar de.apric.ipfire.tray.PollFaultCheck</code> (also run by "mvn verify")
+ *
+ * @author apric
+ */
+public final class PollFaultCheck {
+
+    public static final long POLL_INTERVAL = 10; // ms
+    public static final int MALFORMED_POLLS = 50; // every kind of broken body comes up (at random) in that many
+    public static final long TIMEOUT = 10000; // ms to wait for the samples
+
+    private PollFaultCheck() {}
+
+
+    public static void main(final String[] args) throws Exception {
+
+        final SpeedCgiStubServer stubServer = new SpeedCgiStubServer(ServerSocketFactory.getDefault());
+        boolean isPassed;
+        try {
+            isPassed = checkMalformedResponses(stubServer);
+            isPassed &= checkFailedLogin(stubServer);
+        }
+        finally {
+            stubServer.close();
+        }
+
+        if (!isPassed) {
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * @return true if polling went on through the malformed responses and recovered after them
+     */
+    private static boolean checkMalformedResponses(final SpeedCgiStubServer stubServer) throws Exception {
+
+        final AtomicInteger invalidSamples = new AtomicInteger();
+        final CountDownLatch malformedLatch = new CountDownLatch(MALFORMED_POLLS);
+        final CountDownLatch recoveredLatch = new CountDownLatch(2); // the first OK sample has no rates yet
+        final AtomicReference<Exception> stopReason = new AtomicReference<Exception>();
+
+        stubServer.setMalformedProbability(1.0);
+        final MultiHostPoller poller = createPoller(stubServer);
+        poller.addListener(new TrafficSampleListener() {
+
+            @Override
+            public void sampleReceived(final int hostIndex, final TrafficSample sample) {
+                if (sample.getOutcome() == PollOutcome.INVALID_RESPONSE) {
+                    invalidSamples.incrementAndGet();
+                    malformedLatch.countDown();
+                }
+                else if (sample.getOutcome() == PollOutcome.OK && malformedLatch.getCount() == 0) {
+                    recoveredLatch.countDown();
+                }
+            }
+
+            @Override
+            public void pollingStopped(final int hostIndex, final Exception e) {
+                stopReason.set(e);
+                malformedLatch.countDown();
+                while (recoveredLatch.getCount() > 0) {
+                    recoveredLatch.countDown();
+                }
+            }
+        });
+
+        try {
+            poller.start();
+            malformedLatch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            stubServer.setMalformedProbability(0);
+            recoveredLatch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            poller.stop();
+        }
+
+        final long parseFailures = poller.getMetrics().getFailureCount(PollMetrics.Cause.PARSE);
+        if (stopReason.get() != null) {
+            System.out.println("fault check failed: polling stopped after " + invalidSamples.get() + " malformed responses (" + stopReason.get() + ")");
+            return false;
+        }
+        if (invalidSamples.get() < MALFORMED_POLLS || parseFailures < MALFORMED_POLLS || recoveredLatch.getCount() > 0) {
+            System.out.println("fault check failed: " + invalidSamples.get() + " invalid samples, " + parseFailures + " parse failures, "
+                    + (recoveredLatch.getCount() > 0 ? "not recovered" : "recovered"));
+            return false;
+        }
+
+        System.out.println("fault check passed: polling went on through " + invalidSamples.get() + " malformed responses ("
+                + parseFailures + " parse failures) and recovered");
+        return true;
+    }
+
+
+    /**
+     * @return true if a failed login stopped polling the host
+     */
+    private static boolean checkFailedLogin(final SpeedCgiStubServer stubServer) throws Exception {
+
+        final CountDownLatch stoppedLatch = new CountDownLatch(1);
+        final AtomicReference<Exception> stopReason = new AtomicReference<Exception>();
+
+        stubServer.setLogin("admin", "another password");
+        final MultiHostPoller poller = createPoller(stubServer);
+        poller.addListener(new TrafficSampleListener() {
+
+            @Override
+            public void sampleReceived(final int hostIndex, final TrafficSample sample) {
+            }
+
+            @Override
+            public void pollingStopped(final int hostIndex, final Exception e) {
+                stopReason.set(e);
+                stoppedLatch.countDown();
+            }
+        });
+
+        try {
+            poller.start();
+            stoppedLatch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            poller.stop();
+            stubServer.setLogin(null, null); // any login again
+        }
+
+        final TrafficSample latest = poller.getLatestSample(0);
+        if (stopReason.get() == null || latest != null) {
+            System.out.println("fault check failed: a failed login didn't stop polling (latest sample: "
+                    + (latest != null ? latest.getOutcome() : null) + ")");
+            return false;
+        }
+
+        System.out.println("fault check passed: a failed login stopped polling (" + stopReason.get().getMessage() + ")");
+        return true;
+    }
+
+
+    private static MultiHostPoller createPoller(final SpeedCgiStubServer stubServer) throws Exception {
+
+        final IPFireDataProvider dataProvider = new IPFireDataProvider("localhost", stubServer.getPort(), "admin", "password",
+                new LoopbackSSLSocketFactory());
+        return new MultiHostPoller(Collections.singletonList(dataProvider), POLL_INTERVAL, 1);
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * parsing a speed.cgi response: the byte scanner used by {@link IPFireDataProvider#parseSpeedCgiXml(byte[], int, int)}
+ * compared with the original DOM implementation
+ *
+ * @author apric
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SpeedCgiParseBenchmark {
+
+    static final String SPEED_CGI_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<inquiry>\n"
+            + "  <rxb>2215367893</rxb>\n"
+            + "  <txb>184467210</txb>\n"
+            + "</inquiry>\n";
+
+    private IPFireDataProvider dataProvider;
+    private DocumentBuilder xmlDocBuilder;
+    private byte[] xmlBytes;
+
+
+    @Setup
+    public void setUp() throws Exception {
+
+        dataProvider = new IPFireDataProvider("localhost", 444, "admin", "password"); // never connects
+        xmlDocBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        xmlBytes = SPEED_CGI_XML.getBytes("ISO-8859-1");
+    }
+
+
+    @Benchmark
+    public long[] scanner() throws Exception {
+        return dataProvider.parseSpeedCgiXml(xmlBytes, 0, xmlBytes.length);
+    }
+
+
+    /**
+     * the original implementation: DOM built from the decoded string
+     */
+    @Benchmark
+    public long[] domBaseline() throws Exception {
+
+        final Document doc = xmlDocBuilder.parse(new InputSource(new StringReader(SPEED_CGI_XML)));
+
+        final Element totalDownElement = (Element) doc.getElementsByTagName("rxb").item(0);
+        final Element totalUpElement = (Element) doc.getElementsByTagName("txb").item(0);
+
+        return new long[]{
+            Long.parseLong(totalDownElement.getTextContent()),
+            Long.parseLong(totalUpElement.getTextContent())
+        };
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * a complete poll (request, response reading, parsing) against an in-process TLS stub of speed.cgi (alone or pipelined with status pages):
+ * on the kept-alive connection and - like the original implementation - with a new connection (TLS handshake) per poll
+ *
+ * @author apric
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpeedCgiPollBenchmark {
+
+    static final String STATUS_ENDPOINTS = "/cgi-bin/load.cgi:load1,load5,load15;/cgi-bin/conntrack.cgi:connections";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        SpeedCgiStubServer stubServer;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            stubServer = new SpeedCgiStubServer();
+            for (StatusEndpoint statusEndpoint : StatusEndpoint.parseList(STATUS_ENDPOINTS)) {
+                stubServer.addStatusPage(statusEndpoint.getPath(), statusEndpoint.getTagNames());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            stubServer.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        IPFireDataProvider dataProvider;
+        IPFireDataProvider compositeDataProvider; // speed.cgi and the status pages in one pipeline
+        final MutableTrafficSample sample = new MutableTrafficSample();
+
+        @Setup(Level.Trial)
+        public void connect(final Server server) throws Exception {
+            dataProvider = new IPFireDataProvider("localhost", server.stubServer.getPort(), "admin", "password");
+            compositeDataProvider = new IPFireDataProvider("localhost", server.stubServer.getPort(), "admin", "password");
+            compositeDataProvider.setStatusEndpoints(StatusEndpoint.parseList(STATUS_ENDPOINTS));
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() {
+            dataProvider.close();
+            compositeDataProvider.close();
+        }
+    }
+
+
+    @Benchmark
+    public boolean responseKeepAlive(final Client client) throws Exception {
+        return client.dataProvider.getContentFromSSLUrl();
+    }
+
+
+    @Benchmark
+    public float[] speedParamsKeepAlive(final Client client) throws Exception {
+        return client.dataProvider.getSpeedParams();
+    }
+
+
+    @Benchmark
+    public MutableTrafficSample sampleKeepAlive(final Client client) throws Exception {
+        client.dataProvider.poll(client.sample); // no result array or sample per poll
+        return client.sample;
+    }
+
+
+    @Benchmark
+    public MutableTrafficSample compositeSampleKeepAlive(final Client client) throws Exception {
+        client.compositeDataProvider.poll(client.sample); // three pages, one round trip
+        return client.sample;
+    }
+
+
+    @Benchmark
+    public boolean responseNewConnection(final Client client) throws Exception {
+        client.dataProvider.close(); // full TLS handshake on every poll, as before keep-alive
+        return client.dataProvider.getContentFromSSLUrl();
+    }
+
+}
@@ -0,0 +1,612 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * local stand-in for the IPFire web interface's "/cgi-bin/speed.cgi" via HTTPS or plain HTTP (HTTP/1.1 keep-alive, Content-Length),
+ * for load tests without a real firewall:
+ * the "rxb"/"txb" counters follow a synthetic curve (a base rate plus a sine wave), optionally Basic authentication
+ * is required (401 otherwise, like IPFire) and faults can be injected: latency, stalled responses, connection resets,
+ * counter resets and malformed XML. further status pages (XML with numeric tags, see {@link StatusEndpoint}) can be added
+ *
+ * all settings can be changed while the server is running.
+ * run standalone: <code>java -cp benchmarks.jar de.apric.ipfire.tray.SpeedCgiStubServer --help</code>
+ *
+ * @author apric
+ */
+public final class SpeedCgiStubServer implements Closeable {
+
+    private static final String KEYSTORE_PASS = "changeit";
+    private static final byte[] HTTP_401 = ascii("HTTP/1.1 401 Authorization Required\r\n"
+            + "WWW-Authenticate: Basic realm=\"IPFire - Restricted\"\r\nContent-Length: 0\r\n\r\n");
+    private static final byte[] HTTP_404 = ascii("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connectionThreads;
+    private final long startNanos = System.nanoTime();
+
+    /* counter curve (KB/s): */
+    private volatile double baseDownKBpS = 1000;
+    private volatile double baseUpKBpS = 100;
+    private volatile double amplitude = 0.5; // of the base rate
+    private volatile double periodSeconds = 60;
+    private volatile long counterOffsetMillis = 0; // shifted on a counter reset
+
+    /* login, null: any (or no) login is accepted: */
+    private volatile String expectedAuthorization = null;
+
+    /* faults: */
+    private volatile long latencyMillis = 0;
+    private volatile long latencyJitterMillis = 0;
+    private volatile double stallProbability = 0;
+    private volatile long stallMillis = 0;
+    private volatile double resetProbability = 0;
+    private volatile double counterResetProbability = 0;
+    private volatile double malformedProbability = 0;
+
+    /* additional status pages (path -> tag names), answered with random values: */
+    private final Map<String, String[]> statusPages = new ConcurrentHashMap<String, String[]>();
+
+    /* statistics: */
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong faultCount = new AtomicLong();
+
+
+    /**
+     * start the server on a free port of the loopback interface
+     */
+    public SpeedCgiStubServer() throws Exception {
+        this(0, InetAddress.getLoopbackAddress());
+    }
+
+
+    /**
+     * start the server
+     *
+     * @param port 0 for any free port
+     * @param bindAddress null for all interfaces
+     */
+    public SpeedCgiStubServer(final int port, final InetAddress bindAddress) throws Exception {
+        this(port, bindAddress, createSSLContext().getServerSocketFactory());
+    }
+
+
+    /**
+     * start the server on a free port of the loopback interface
+     *
+     * @param serverSocketFactory e.g. {@link ServerSocketFactory#getDefault()} for plain HTTP (see {@link LoopbackSSLSocketFactory})
+     */
+    public SpeedCgiStubServer(final ServerSocketFactory serverSocketFactory) throws Exception {
+        this(0, InetAddress.getLoopbackAddress(), serverSocketFactory);
+    }
+
+
+    /**
+     * start the server
+     *
+     * @param port 0 for any free port
+     * @param bindAddress null for all interfaces
+     * @param serverSocketFactory creates the listening socket (HTTPS or plain HTTP)
+     */
+    public SpeedCgiStubServer(final int port, final InetAddress bindAddress, final ServerSocketFactory serverSocketFactory) throws Exception {
+
+        serverSocket = serverSocketFactory.createServerSocket(port, 1000, bindAddress);
+
+        connectionThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "speed.cgi stub connection");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final Thread acceptThread = new Thread("speed.cgi stub") {
+
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        connectionCount.incrementAndGet();
+                        connectionThreads.execute(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    }
+                    catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connectionThreads.shutdownNow();
+    }
+
+
+    /**
+     * @param user null: accept any login
+     * @param pass
+     */
+    public void setLogin(final String user, final String pass) {
+
+        if (user == null) {
+            expectedAuthorization = null;
+            return;
+        }
+        try {
+            expectedAuthorization = "Basic " + Base64.getEncoder().encodeToString((user + ":" + pass).getBytes("ISO-8859-1"));
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @param baseDownKBpS average download rate
+     * @param baseUpKBpS average upload rate
+     * @param amplitude amplitude of the sine wave relative to the base rate (0..1)
+     * @param periodSeconds period of the sine wave
+     */
+    public void setCurve(final double baseDownKBpS, final double baseUpKBpS, final double amplitude, final double periodSeconds) {
+        this.baseDownKBpS = baseDownKBpS;
+        this.baseUpKBpS = baseUpKBpS;
+        this.amplitude = amplitude;
+        this.periodSeconds = periodSeconds;
+    }
+
+    /**
+     * @param latencyMillis delay before every response
+     * @param jitterMillis additional random delay (0..jitter)
+     */
+    public void setLatency(final long latencyMillis, final long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param probability share of responses that stop after the header and half the body for a while
+     * @param stallMillis how long they stop
+     */
+    public void setStall(final double probability, final long stallMillis) {
+        this.stallProbability = probability;
+        this.stallMillis = stallMillis;
+    }
+
+    /**
+     * @param probability share of requests answered by resetting the connection (TCP RST)
+     */
+    public void setResetProbability(final double probability) {
+        this.resetProbability = probability;
+    }
+
+    /**
+     * @param probability share of requests that reset the counters to 0 first (like a firewall reboot)
+     */
+    public void setCounterResetProbability(final double probability) {
+        this.counterResetProbability = probability;
+    }
+
+    /**
+     * @param probability share of responses with a broken XML body (truncated, missing tags, non-numeric values)
+     */
+    public void setMalformedProbability(final double probability) {
+        this.malformedProbability = probability;
+    }
+
+    /**
+     * serve a status page like speed.cgi (e.g. for {@link IPFireDataProvider#setStatusEndpoints})
+     *
+     * @param path e.g. "/cgi-bin/load.cgi"
+     * @param tagNames its numeric tags (random values between 0 and 999)
+     */
+    public void addStatusPage(final String path, final String... tagNames) {
+        statusPages.put(path, tagNames.clone());
+    }
+
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public long getFaultCount() {
+        return faultCount.get();
+    }
+
+
+    /**
+     * @return current total download counter (KB)
+     */
+    public long getTotalDownKB() {
+        return counter(baseDownKBpS);
+    }
+
+    /**
+     * @return current total upload counter (KB)
+     */
+    public long getTotalUpKB() {
+        return counter(baseUpKBpS);
+    }
+
+
+    /**
+     * integral of base * (1 + amplitude * sin(2 pi t / period)) since the start (or the last counter reset)
+     */
+    private long counter(final double baseKBpS) {
+
+        final double t = ((System.nanoTime() - startNanos) / 1000000 - counterOffsetMillis) / 1000.0;
+        final double omega = 2 * Math.PI / periodSeconds;
+        return (long) (baseKBpS * (t + amplitude * (1 - Math.cos(omega * t)) / omega));
+    }
+
+
+    private void serve(final Socket socket) {
+
+        final Random random = new Random();
+        final StringBuilder header = new StringBuilder(512);
+
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+
+            while (readRequest(in, header)) {
+                requestCount.incrementAndGet();
+
+                /* connection reset: */
+                if (random.nextDouble() < resetProbability) {
+                    faultCount.incrementAndGet();
+                    socket.setSoLinger(true, 0);
+                    return;
+                }
+
+                delay(random);
+
+                final String authorization = headerValue(header, "authorization");
+                if (expectedAuthorization != null && !expectedAuthorization.equals(authorization)) {
+                    out.write(HTTP_401);
+                    out.flush();
+                    continue;
+                }
+                final String[] statusTags = statusPages.get(requestPath(header));
+                if (statusTags != null) {
+                    final StringBuilder statusBody = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<inquiry>\n");
+                    for (String tag : statusTags) {
+                        statusBody.append("  <").append(tag).append('>').append(random.nextInt(1000)).append("</").append(tag).append(">\n");
+                    }
+                    final byte[] body = ascii(statusBody.append("</inquiry>\n").toString());
+                    out.write(ascii("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: " + body.length + "\r\n\r\n"));
+                    out.write(body);
+                    out.flush();
+                    continue;
+                }
+                if (header.indexOf(IPFireDataProvider.IPFIRE_SPEED_CGI_PATH) < 0) {
+                    out.write(HTTP_404);
+                    out.flush();
+                    continue;
+                }
+
+                if (random.nextDouble() < counterResetProbability) {
+                    faultCount.incrementAndGet();
+                    counterOffsetMillis = (System.nanoTime() - startNanos) / 1000000;
+                }
+
+                final byte[] body = ascii(createBody(random));
+                final byte[] responseHeader = ascii("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: " + body.length + "\r\n\r\n");
+
+                if (random.nextDouble() < stallProbability) {
+                    faultCount.incrementAndGet();
+                    out.write(responseHeader);
+                    out.write(body, 0, body.length / 2);
+                    out.flush();
+                    Thread.sleep(stallMillis);
+                    out.write(body, body.length / 2, body.length - body.length / 2);
+                }
+                else {
+                    out.write(responseHeader);
+                    out.write(body);
+                }
+                out.flush();
+
+                if ("close".equalsIgnoreCase(headerValue(header, "connection"))) {
+                    return;
+                }
+            }
+        }
+        catch (IOException e) {
+            // connection closed by the client
+        }
+        catch (InterruptedException e) {
+            // server closed
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+
+    private void delay(final Random random) throws InterruptedException {
+
+        final long jitter = latencyJitterMillis;
+        final long millis = latencyMillis + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+
+    private String createBody(final Random random) {
+
+        final String valid = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<inquiry>\n"
+                + "  <rxb>" + getTotalDownKB() + "</rxb>\n"
+                + "  <txb>" + getTotalUpKB() + "</txb>\n"
+                + "</inquiry>\n";
+
+        if (random.nextDouble() >= malformedProbability) {
+            return valid;
+        }
+
+        faultCount.incrementAndGet();
+        switch (random.nextInt(4)) {
+            case 0:
+                return valid.substring(0, random.nextInt(valid.length())); // truncated
+            case 1:
+                return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<inquiry>\n  <rxb>" + getTotalDownKB() + "</rxb>\n</inquiry>\n"; // missing tag
+            case 2:
+                return valid.replace("<txb>", "<txb>n/a"); // not a number
+            default:
+                return "<html><body>Internal Server Error</body></html>"; // not XML at all
+        }
+    }
+
+
+    /**
+     * read a request up to the empty line ending its header
+     *
+     * @param header receives the request line and header (the header names are kept as sent)
+     * @return false if the client closed the connection
+     */
+    private static boolean readRequest(final InputStream in, final StringBuilder header) throws IOException {
+
+        header.setLength(0);
+        int matched = 0; // of "\r\n\r\n"
+        while (matched < 4) {
+            final int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            header.append((char) b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)) ? matched + 1 : 0;
+        }
+        return true;
+    }
+
+
+    /**
+     * @return path of the request line, e.g. "/cgi-bin/speed.cgi"
+     */
+    private static String requestPath(final StringBuilder header) {
+
+        final int start = header.indexOf(" ") + 1;
+        final int end = header.indexOf(" ", start);
+        return start > 0 && end > start ? header.substring(start, end) : "";
+    }
+
+
+    /**
+     * @param lowerCaseName
+     * @return the value of the given header field, null if not present
+     */
+    private static String headerValue(final StringBuilder header, final String lowerCaseName) {
+
+        int lineStart = header.indexOf("\r\n") + 2;
+        while (lineStart < header.length()) {
+            final int lineEnd = header.indexOf("\r\n", lineStart);
+            final int colon = header.indexOf(":", lineStart);
+            if (colon > 0 && colon < lineEnd && header.substring(lineStart, colon).trim().equalsIgnoreCase(lowerCaseName)) {
+                return header.substring(colon + 1, lineEnd).trim();
+            }
+            lineStart = lineEnd + 2;
+        }
+        return null;
+    }
+
+
+    private static byte[] ascii(final String s) {
+
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+
+    /**
+     * create a self-signed certificate for "localhost" (using the JDK's keytool, so no key material has to be shipped)
+     */
+    static SSLContext createSSLContext() throws Exception {
+
+        final File keyStoreFile = File.createTempFile("speedcgi-stub", ".p12");
+        keyStoreFile.delete(); // keytool refuses to use an empty file
+        keyStoreFile.deleteOnExit();
+
+        final Process keytool = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool",
+                "-genkeypair", "-alias", "stub", "-keyalg", "RSA", "-keysize", "2048", "-validity", "3650",
+                "-dname", "CN=localhost", "-storetype", "PKCS12",
+                "-keystore", keyStoreFile.getAbsolutePath(), "-storepass", KEYSTORE_PASS, "-keypass", KEYSTORE_PASS)
+                .redirectErrorStream(true)
+                .start();
+        final InputStream keytoolOutput = keytool.getInputStream();
+        while (keytoolOutput.read() >= 0) {
+            // drain
+        }
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed to create the stub's certificate");
+        }
+
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        final InputStream keyStoreIn = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(keyStoreIn, KEYSTORE_PASS.toCharArray());
+        }
+        finally {
+            keyStoreIn.close();
+        }
+
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEYSTORE_PASS.toCharArray());
+
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+
+    /**
+     * run the server until it's killed, reporting the number of requests every 10 seconds
+     *
+     * @param args options, see "--help"
+     */
+    public static void main(final String[] args) throws Exception {
+
+        int port = 4444;
+        String user = null;
+        String pass = null;
+        long latency = 0, jitter = 0, stall = 0;
+        double stallProbability = 0, reset = 0, counterReset = 0, malformed = 0;
+        final StringBuilder statusPageSpecs = new StringBuilder();
+
+        for (String arg : args) {
+            final int equals = arg.indexOf('=');
+            final String name = equals > 0 ? arg.substring(0, equals) : arg;
+            final String value = equals > 0 ? arg.substring(equals + 1) : "";
+
+            if ("--port".equals(name)) {
+                port = Integer.parseInt(value);
+            }
+            else if ("--user".equals(name)) {
+                user = value;
+            }
+            else if ("--pass".equals(name)) {
+                pass = value;
+            }
+            else if ("--latency".equals(name)) {
+                latency = Long.parseLong(value);
+            }
+            else if ("--jitter".equals(name)) {
+                jitter = Long.parseLong(value);
+            }
+            else if ("--stall".equals(name)) { // probability:ms
+                stallProbability = Double.parseDouble(value.substring(0, value.indexOf(':')));
+                stall = Long.parseLong(value.substring(value.indexOf(':') + 1));
+            }
+            else if ("--reset".equals(name)) {
+                reset = Double.parseDouble(value);
+            }
+            else if ("--counter-reset".equals(name)) {
+                counterReset = Double.parseDouble(value);
+            }
+            else if ("--status-page".equals(name)) { // path:tag,tag
+                statusPageSpecs.append(value).append(';');
+            }
+            else if ("--malformed".equals(name)) {
+                malformed = Double.parseDouble(value);
+            }
+            else {
+                System.err.println("usage: SpeedCgiStubServer [--port=4444] [--user=admin --pass=password]"
+                        + " [--latency=ms] [--jitter=ms] [--stall=probability:ms] [--reset=probability]"
+                        + " [--counter-reset=probability] [--malformed=probability] [--status-page=path:tag,tag ...]");
+                System.exit("--help".equals(name) ? 0 : 2);
+            }
+        }
+
+        final SpeedCgiStubServer server = new SpeedCgiStubServer(port, null);
+        server.setLogin(user, pass);
+        server.setLatency(latency, jitter);
+        server.setStall(stallProbability, stall);
+        server.setResetProbability(reset);
+        server.setCounterResetProbability(counterReset);
+        server.setMalformedProbability(malformed);
+        for (StatusEndpoint statusPage : StatusEndpoint.parseList(statusPageSpecs.toString())) {
+            server.addStatusPage(statusPage.getPath(), statusPage.getTagNames());
+        }
+
+        System.out.println("speed.cgi stub listening on port " + server.getPort());
+        long lastRequests = 0;
+        while (true) {
+            Thread.sleep(10000);
+            final long requests = server.getRequestCount();
+            System.out.println("requests: " + requests + " (" + (requests - lastRequests) / 10 + "/s), connections: "
+                    + server.getConnectionCount() + ", faults: " + server.getFaultCount());
+            lastRequests = requests;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the tooltip update done on every poll (needs a desktop session)
+ *
+ * @author apric
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TooltipBenchmark {
+
+    private TrayIconTooltip tooltip;
+    private float value = 0;
+
+
+    @Setup
+    public void setUp() {
+        tooltip = new TrayIconTooltip();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tooltip.dispose();
+    }
+
+
+    @Benchmark
+    public TrayIconTooltip update() {
+
+        value = value < 1000 ? value + 0.7f : 0;
+
+        tooltip.setDownloadKBpS(value);
+        tooltip.setUploadKBpS(value / 10);
+        tooltip.pack();
+        return tooltip;
+    }
+
+
+    @Benchmark
+    public TrayIconTooltip updateHidden() {
+
+        value = value < 1000 ? value + 0.7f : 0;
+
+        tooltip.setValues(PollOutcome.OK, value, value / 10); // the labels are only updated while visible
+        return tooltip;
+    }
+
+}
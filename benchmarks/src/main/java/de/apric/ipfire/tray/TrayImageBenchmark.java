@@ -0,0 +1,144 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.awt.Image;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * rendering the speed graph at different tray sizes: the raster renderer alone (full redraw and incremental scrolling)
+ * and {@link DynamicTrayImage#getDynamicSpeedImageV2} with either renderer, including the copy into the next image buffer,
+ * and a graph of four interfaces stacked ({@link DynamicTrayImage#getStackedSpeedImage})
+ *
+ * @author apric
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TrayImageBenchmark {
+
+    private static final float MAX_DOWN_KBPS = 1600;
+    private static final float MAX_UP_KBPS = 100;
+
+    @Param({"16", "24", "32", "48", "64"})
+    public int traySize;
+
+    private final float[] downValues = new float[1024];
+    private final float[] upValues = new float[1024];
+    private int next = 0;
+
+    private SampleRingBuffer values;
+    private RasterGraphRenderer rasterRenderer;
+    private DynamicTrayImage graphics2DImage;
+    private DynamicTrayImage rasterImage;
+    private DynamicTrayImage stackedRasterImage; // four interfaces (e.g. red0, green0, blue0, orange0)
+    private final float[] stackedDown = new float[4];
+    private final float[] stackedUp = new float[4];
+
+
+    @Setup
+    public void setUp() {
+
+        final Random random = new Random(42);
+        for (int i = 0; i < downValues.length; i++) {
+            downValues[i] = random.nextFloat() * MAX_DOWN_KBPS;
+            upValues[i] = random.nextFloat() * MAX_UP_KBPS;
+        }
+
+        values = new SampleRingBuffer(256);
+        rasterRenderer = new RasterGraphRenderer(traySize, traySize, new int[traySize * traySize]);
+        for (int i = 0; i < traySize; i++) {
+            addValue();
+        }
+        rasterRenderer.drawAll(values, MAX_DOWN_KBPS, MAX_UP_KBPS);
+
+        graphics2DImage = new DynamicTrayImage(traySize, traySize);
+        rasterImage = new DynamicTrayImage(traySize, traySize);
+        rasterImage.setRenderer(DynamicTrayImage.Renderer.RASTER);
+        stackedRasterImage = new DynamicTrayImage(traySize, traySize);
+        stackedRasterImage.setRenderer(DynamicTrayImage.Renderer.RASTER);
+    }
+
+
+    @Benchmark
+    public SampleRingBuffer rasterFullRedraw() {
+        addValue();
+        rasterRenderer.drawAll(values, MAX_DOWN_KBPS, MAX_UP_KBPS);
+        return values;
+    }
+
+
+    @Benchmark
+    public SampleRingBuffer rasterIncremental() {
+        addValue();
+        rasterRenderer.drawNewest(values, MAX_DOWN_KBPS, MAX_UP_KBPS);
+        return values;
+    }
+
+
+    @Benchmark
+    public Image dynamicTrayImageGraphics2D() {
+        final int i = nextIndex();
+        return graphics2DImage.getDynamicSpeedImageV2(downValues[i], upValues[i], MAX_DOWN_KBPS, MAX_UP_KBPS);
+    }
+
+
+    @Benchmark
+    public Image dynamicTrayImageRaster() {
+        final int i = nextIndex();
+        return rasterImage.getDynamicSpeedImageV2(downValues[i], upValues[i], MAX_DOWN_KBPS, MAX_UP_KBPS);
+    }
+
+
+    @Benchmark
+    public Image stackedTrayImageRaster() {
+        for (int k = 0; k < stackedDown.length; k++) {
+            final int i = nextIndex();
+            stackedDown[k] = downValues[i] / stackedDown.length;
+            stackedUp[k] = upValues[i] / stackedUp.length;
+        }
+        return stackedRasterImage.getStackedSpeedImage(stackedDown, stackedUp, stackedDown.length, MAX_DOWN_KBPS, MAX_UP_KBPS);
+    }
+
+
+    private void addValue() {
+        final int i = nextIndex();
+        values.add(downValues[i], upValues[i]);
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (downValues.length - 1);
+        return next;
+    }
+
+}
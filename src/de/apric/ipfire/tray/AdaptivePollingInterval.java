@@ -0,0 +1,136 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * delay until the next poll of one host, adapted to what the last polls showed:
+ * <ul>
+ * <li>the user is watching (tooltip open) or the traffic is changing: poll at the min. interval</li>
+ * <li>an idle link (hardly any traffic), the user is away (e.g. locked screen) or the host is unreachable:
+ * back off exponentially up to the max. interval</li>
+ * <li>otherwise (e.g. a steady download): return to the configured interval</li>
+ * </ul>
+ * with min. and max. interval equal to the configured one, the host is polled at a fixed rate
+ *
+ * not thread-safe: used by one host's poll task only
+ *
+ * @author apric
+ */
+public final class AdaptivePollingInterval {
+
+    public static final float CHANGE_THRESHOLD = 0.25f; // relative change of down + up speed that counts as "changing"
+    public static final float IDLE_THRESHOLD_KBPS = 1.0f; // down + up speed below that is an idle link (e.g. keep-alives only)
+    public static final int BACKOFF_FACTOR = 2;
+
+    private final long interval;
+    private final long minInterval;
+    private final long maxInterval;
+
+    private long currentInterval;
+    private float lastLevel = -1; // down + up speed of the last valid sample
+
+
+    /**
+     * @param interval the configured (normal) interval in ms
+     * @param minInterval lower bound in ms
+     * @param maxInterval upper bound in ms
+     */
+    public AdaptivePollingInterval(final long interval, final long minInterval, final long maxInterval) {
+
+        if (minInterval < 1 || minInterval > interval || interval > maxInterval) {
+            throw new IllegalArgumentException("intervals must be > 0 and min <= interval <= max");
+        }
+
+        this.interval = interval;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+
+        currentInterval = interval;
+    }
+
+
+    /**
+     * @param sample result of the poll that just finished
+     * @param isFailed true if the host couldn't be polled
+     * @param isUserWatching true while the user looks at the values (e.g. the tooltip is open)
+     * @param isUserAway true while nobody can look at the icon (e.g. the screen is locked)
+     * @return delay until the next poll in ms
+     */
+    public long next(final MutableTrafficSample sample, final boolean isFailed, final boolean isUserWatching, final boolean isUserAway) {
+
+        final float level = sample.getDownKBpS() + sample.getUpKBpS();
+        final boolean isChanging = !isFailed && sample.isValid() && isChanging(level);
+
+        if (isUserWatching) {
+            currentInterval = minInterval;
+        }
+        else if (isFailed || isUserAway) {
+            backOff();
+        }
+        else if (isChanging) {
+            currentInterval = minInterval;
+        }
+        else if (sample.isValid() && lastLevel >= 0 && level < IDLE_THRESHOLD_KBPS) {
+            backOff(); // idle link: a flat graph at zero doesn't need a high resolution
+        }
+        else {
+            currentInterval = interval;
+        }
+
+        if (!isFailed && sample.isValid()) {
+            lastLevel = level;
+        }
+
+        return currentInterval;
+    }
+
+
+    /**
+     * @return delay returned by the last call to {@link #next}
+     */
+    public long getCurrentInterval() {
+        return currentInterval;
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+
+    private boolean isChanging(final float level) {
+
+        if (lastLevel < 0 || Math.max(level, lastLevel) < IDLE_THRESHOLD_KBPS) {
+            return false; // nothing to compare with yet, or the noise of an idle link
+        }
+        final float change = Math.abs(level - lastLevel);
+        return change >= CHANGE_THRESHOLD * Math.max(level, lastLevel);
+    }
+
+
+    /**
+     * multiply the interval, up to the max. interval
+     */
+    private void backOff() {
+        currentInterval = Math.min(currentInterval * BACKOFF_FACTOR, maxInterval);
+    }
+
+}
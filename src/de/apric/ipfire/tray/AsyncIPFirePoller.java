@@ -0,0 +1,990 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * non-blocking alternative to polling every host with an {@link IPFireDataProvider} on a thread of its own:
+ * one selector thread keeps a kept-alive TLS connection (SocketChannel + SSLEngine) to every host and drives all their polls at once,
+ * so hundreds of polls can be in flight without a thread each
+ *
+ * a poll returns a {@link Future} of its sample, the optional listener gets every sample on the selector thread
+ * as soon as it's complete (so it must not block). a host has at most one poll in flight, polling it again meanwhile
+ * returns the same future. like the blocking provider, temporary failures are reported by the sample's outcome
+ * and a reused connection the server has closed meanwhile is replaced once per poll.
+ * only speed.cgi is polled (no status endpoints), the hostnames are resolved once (on the selector thread)
+ *
+ * @author apric
+ */
+public final class AsyncIPFirePoller implements Closeable {
+
+    public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 4096; // grown for larger responses
+
+    private final SSLContext sslContext;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final List<HostConnection> hosts = new CopyOnWriteArrayList<HostConnection>();
+    private final ConcurrentLinkedQueue<HostConnection> pollRequests = new ConcurrentLinkedQueue<HostConnection>();
+
+    private volatile PollMetrics metrics = new PollMetrics();
+    private volatile TrafficSampleListener listener;
+    private volatile long pollTimeout = IPFireDataProvider.DEFAULT_POLL_TIMEOUT;
+    private volatile PinnedCertificateStore pinnedCertificates; // null: trust any certificate
+    private volatile boolean isClosed = false;
+
+
+    /**
+     * a poller trusting even "invalid" certificates (unless pinned, see {@link #setPinnedCertificates})
+     *
+     * @throws Exception
+     */
+    public AsyncIPFirePoller() throws Exception {
+        this(createSSLContext());
+    }
+
+
+    /**
+     * @param sslContext creates the TLS engines of all connections (its client session cache is used for resumption)
+     * @throws IOException
+     */
+    public AsyncIPFirePoller(final SSLContext sslContext) throws IOException {
+
+        this.sslContext = sslContext;
+        selector = Selector.open();
+
+        selectorThread = new Thread("IPFireTray async poller") {
+
+            @Override
+            public void run() {
+                runSelectorLoop();
+            }
+        };
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+
+    /**
+     * @return an SSL context trusting even "invalid" certificates, its sessions are kept for resumption
+     */
+    private static SSLContext createSSLContext() throws Exception {
+
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] {
+            new X509TrustManager() { // SSL trust manager (trusting even "invalid" certificates, the pinned ones are checked after the handshake)
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+                public void checkClientTrusted(final X509Certificate[] xcs, final String string) throws CertificateException {}
+                public void checkServerTrusted(final X509Certificate[] xcs, final String string) throws CertificateException {}
+            }}, new java.security.SecureRandom());
+        sslContext.getClientSessionContext().setSessionTimeout(IPFireDataProvider.SSL_SESSION_TIMEOUT);
+
+        return sslContext;
+    }
+
+
+    /**
+     * add a host to poll
+     *
+     * @param host valid hostname
+     * @param port valid port
+     * @param user valid username (web interface admin)
+     * @param pass valid password (web interface admin)
+     * @return index of the host
+     * @throws UnsupportedEncodingException
+     */
+    public synchronized int addHost(final String host, final int port, final String user, final String pass) throws UnsupportedEncodingException {
+
+        hosts.add(new HostConnection(hosts.size(), host, port,
+                IPFireDataProvider.createRequest(host, user, pass, IPFireDataProvider.IPFIRE_SPEED_CGI_PATH)));
+        return hosts.size() - 1;
+    }
+
+
+    /**
+     * start polling a host (returns right away)
+     *
+     * @param hostIndex
+     * @return the sample of the poll, available when it's complete (the one of the poll in flight, if there is one)
+     */
+    public Future<TrafficSample> poll(final int hostIndex) {
+
+        final HostConnection host = hosts.get(hostIndex);
+        final PollFuture future;
+        synchronized (host) {
+            if (host.pendingPoll != null) {
+                return host.pendingPoll;
+            }
+            if (host.stoppedSample != null) { // invalid login: polling again won't help
+                future = new PollFuture();
+                future.complete(host.stoppedSample);
+                return future;
+            }
+            if (isClosed) {
+                throw new IllegalStateException("poller closed");
+            }
+            future = new PollFuture();
+            host.pendingPoll = future;
+        }
+
+        pollRequests.add(host);
+        selector.wakeup();
+        return future;
+    }
+
+
+    /**
+     * @param listener gets every sample (on the selector thread, it must not block), null for none
+     */
+    public void setListener(final TrafficSampleListener listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+     * @param pollTimeout max. time for a poll, including connect, handshake, a retry and reading the response (ms)
+     */
+    public void setPollTimeout(final long pollTimeout) {
+
+        if (pollTimeout < 1) {
+            throw new IllegalArgumentException("poll timeout must be > 0");
+        }
+        this.pollTimeout = pollTimeout;
+    }
+
+
+    /**
+     * trust each host's certificate on first use, the store remembers it and every later connection must present the same one
+     *
+     * @param pinnedCertificates null: trust any certificate
+     */
+    public void setPinnedCertificates(final PinnedCertificateStore pinnedCertificates) {
+        this.pinnedCertificates = pinnedCertificates;
+    }
+
+
+    /**
+     * @param metrics receives the timing of every poll and the failures (e.g. shared with other pollers)
+     */
+    public void setMetrics(final PollMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * @return poll timing and failures of all hosts
+     */
+    public PollMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return number of hosts added
+     */
+    public int getHostCount() {
+        return hosts.size();
+    }
+
+
+    /**
+     * @param hostIndex
+     * @return the polled host
+     */
+    public String getHost(final int hostIndex) {
+        return hosts.get(hostIndex).host;
+    }
+
+
+    /**
+     * close all connections and stop the selector thread, the polls still in flight end with a connection error
+     */
+    @Override
+    public void close() {
+
+        isClosed = true;
+        selector.wakeup();
+        if (Thread.currentThread() == selectorThread) {
+            return; // e.g. by a listener: the loop ends after this round
+        }
+        try {
+            selectorThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * the selector thread: start the requested polls, drive the connections that are ready and end the polls that took too long
+     */
+    private void runSelectorLoop() {
+
+        try {
+            while (!isClosed) {
+
+                /* sleep until a connection is ready, a poll is requested or the next poll times out: */
+                long nextDeadlineNanos = Long.MAX_VALUE;
+                for (HostConnection host : hosts) {
+                    if (host.isPolling && host.deadlineNanos < nextDeadlineNanos) {
+                        nextDeadlineNanos = host.deadlineNanos;
+                    }
+                }
+                if (nextDeadlineNanos == Long.MAX_VALUE) {
+                    selector.select();
+                }
+                else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadlineNanos - System.nanoTime()) + 1));
+                }
+
+                HostConnection requested;
+                while ((requested = pollRequests.poll()) != null) {
+                    requested.startPoll();
+                }
+
+                final Iterator<SelectionKey> readyKeys = selector.selectedKeys().iterator();
+                while (readyKeys.hasNext()) {
+                    final SelectionKey key = readyKeys.next();
+                    readyKeys.remove();
+                    if (key.isValid()) {
+                        ((HostConnection) key.attachment()).handleReady(key);
+                    }
+                }
+
+                final long now = System.nanoTime();
+                for (HostConnection host : hosts) {
+                    if (host.isPolling && now - host.deadlineNanos >= 0) {
+                        host.endPoll(new SocketTimeoutException("poll timeout"));
+                    }
+                }
+            }
+        }
+        catch (IOException e) { // the selector itself failed
+            metrics.recordFailure(PollMetrics.Cause.IO, "async poller", e);
+        }
+        finally {
+            isClosed = true;
+            for (HostConnection host : hosts) {
+                if (host.isPolling) {
+                    host.endPoll(new IOException("poller closed"));
+                }
+                else {
+                    host.closeConnection();
+                }
+            }
+            for (HostConnection host : hosts) { // requested, but not started
+                synchronized (host) {
+                    if (host.pendingPoll != null) {
+                        host.pendingPoll.complete(host.createFailedSample(PollOutcome.CONNECTION_ERROR));
+                        host.pendingPoll = null;
+                    }
+                }
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                // silent fail: the connections are closed already
+            }
+        }
+    }
+
+
+    /**
+     * the future of one poll, completed by the selector thread (a poll can't be cancelled, it ends at the latest by its timeout)
+     */
+    private static final class PollFuture implements Future<TrafficSample> {
+
+        private TrafficSample sample;
+
+        synchronized void complete(final TrafficSample result) {
+            sample = result;
+            notifyAll();
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return sample != null;
+        }
+
+        @Override
+        public synchronized TrafficSample get() throws InterruptedException {
+
+            while (sample == null) {
+                wait();
+            }
+            return sample;
+        }
+
+        @Override
+        public synchronized TrafficSample get(final long timeout, final TimeUnit unit) throws InterruptedException, TimeoutException {
+
+            final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+            while (sample == null) {
+                final long remainingNanos = deadlineNanos - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    throw new TimeoutException("poll not complete yet");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            }
+            return sample;
+        }
+    }
+
+
+    /**
+     * the connection to one host and the state of its poll, only used by the selector thread
+     * (apart from the pending poll, which is handed over under the instance's lock)
+     */
+    private final class HostConnection {
+
+        private final int hostIndex;
+        private final String host;
+        private final int port;
+        private final ByteBuffer request;
+        private final SpeedCgiScanner speedCgiScanner = new SpeedCgiScanner("rxb", "txb");
+        private final HttpResponseReader responseReader = new HttpResponseReader();
+        private final ReceivedDataStream receivedDataStream = new ReceivedDataStream();
+
+        /* handed over between the threads (guarded by this): */
+        private PollFuture pendingPoll; // requested or in flight
+        private TrafficSample stoppedSample; // not null after an invalid login
+
+        /* connection: */
+        private InetSocketAddress address; // resolved once, again after a failure
+        private SocketChannel channel; // null while not connected
+        private SelectionKey key;
+        private SSLEngine engine;
+        private SSLSession lastSession;
+        private boolean isHandshaking;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+
+        /* decrypted response bytes, parsed again whenever more arrive: */
+        private byte[] received = new byte[DEFAULT_RECEIVE_BUFFER_SIZE];
+        private int receivedLength = 0;
+        private boolean isPeerClosed = false;
+
+        /* poll in flight: */
+        private boolean isPolling = false;
+        private boolean isRequestSent = false;
+        private boolean isReused = false; // the connection was kept alive from an earlier poll
+        private boolean isRetried = false;
+        private long startNanos;
+        private long deadlineNanos;
+        private long requestNanos;
+        private long firstByteNanos;
+
+        /* the previous counters: */
+        private long lastRefresh = System.currentTimeMillis();
+        private long lastSampleNanos = 0;
+        private long lastTotalDownKB = 0;
+        private long lastTotalUpKB = 0;
+
+
+        HostConnection(final int hostIndex, final String host, final int port, final byte[] request) {
+            this.hostIndex = hostIndex;
+            this.host = host;
+            this.port = port;
+            this.request = ByteBuffer.wrap(request);
+        }
+
+
+        /**
+         * start the requested poll: on the kept-alive connection or a new one
+         */
+        void startPoll() {
+
+            isPolling = true;
+            isRetried = false;
+            startNanos = System.nanoTime();
+            deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(pollTimeout);
+
+            try {
+                if (channel != null) {
+                    isReused = true;
+                    isRequestSent = false;
+                    process();
+                }
+                else {
+                    connect();
+                }
+            }
+            catch (Exception e) {
+                endPoll(e);
+            }
+        }
+
+
+        void handleReady(final SelectionKey readyKey) {
+
+            try {
+                if (readyKey.isConnectable()) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    engine.beginHandshake();
+                    isHandshaking = true;
+                }
+                process();
+            }
+            catch (Exception e) {
+                if (isPolling) {
+                    endPoll(e);
+                }
+                else {
+                    closeConnection(); // e.g. closed by the server while idle
+                }
+            }
+        }
+
+
+        private void connect() throws IOException {
+
+            isReused = false;
+            isRequestSent = false;
+            isPeerClosed = false;
+            receivedLength = 0;
+            responseReader.reset();
+
+            if (address == null) {
+                address = new InetSocketAddress(host, port);
+                if (address.isUnresolved()) {
+                    address = null;
+                    throw new UnknownHostException(host);
+                }
+            }
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(selector, 0, this);
+
+            engine = sslContext.createSSLEngine(host, port); // the session cache is looked up by host and port
+            engine.setUseClientMode(true);
+            final SSLSession session = engine.getSession();
+            netIn = ensureCapacity(netIn, session.getPacketBufferSize());
+            netOut = ensureCapacity(netOut, session.getPacketBufferSize());
+            appIn = ensureCapacity(appIn, session.getApplicationBufferSize());
+            netIn.clear();
+            netOut.clear();
+            appIn.clear();
+
+            if (channel.connect(address)) {
+                engine.beginHandshake();
+                isHandshaking = true;
+                process();
+            }
+            else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        }
+
+
+        /**
+         * do as much as possible without blocking: handshake, send the request, read and parse the response,
+         * then wait for the channel to become ready again
+         */
+        private void process() throws IOException {
+
+            while (true) {
+
+                if (netOut.position() > 0 && !flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                final SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+                if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run(); // on the selector thread, the certificate checks are cheap
+                    }
+                    continue;
+                }
+                if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrap(ByteBuffer.allocate(0));
+                    continue;
+                }
+                if (handshakeStatus != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                        && handshakeStatus != SSLEngineResult.HandshakeStatus.FINISHED) { // need (to) unwrap
+                    if (!unwrap() && !receive()) {
+                        return;
+                    }
+                    continue;
+                }
+                if (isHandshaking) {
+                    handshakeFinished();
+                }
+
+                if (!isPolling) {
+                    key.interestOps(0); // idle, the connection is kept for the next poll
+                    return;
+                }
+
+                if (!isRequestSent) {
+                    request.rewind();
+                    while (request.hasRemaining()) {
+                        wrap(request);
+                    }
+                    isRequestSent = true;
+                    requestNanos = System.nanoTime();
+                    continue;
+                }
+
+                if (unwrap()) {
+                    if (receivedLength > 0 && parseResponse()) {
+                        return;
+                    }
+                    continue;
+                }
+                if (!receive()) {
+                    return;
+                }
+            }
+        }
+
+
+        /**
+         * read from the channel
+         *
+         * @return false if nothing was available (waiting for the channel to become readable then)
+         */
+        private boolean receive() throws IOException {
+
+            if (!isPeerClosed) {
+                final int read = channel.read(netIn);
+                if (read > 0) {
+                    return true;
+                }
+                if (read == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return false;
+                }
+                isPeerClosed = true;
+            }
+
+            /* closed by the server: a response may end with the connection, anything else is incomplete */
+            if (isPolling && isRequestSent && !isHandshaking && parseResponse()) {
+                return false;
+            }
+            throw new EOFException("connection closed by server");
+        }
+
+
+        /**
+         * decrypt the received TLS records
+         *
+         * @return true if anything was consumed or decrypted
+         */
+        private boolean unwrap() throws IOException {
+
+            netIn.flip();
+            final SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            }
+            finally {
+                netIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW: // an incomplete record
+                    netIn = ensureCapacity(netIn, engine.getSession().getPacketBufferSize());
+                    return false;
+                case BUFFER_OVERFLOW:
+                    appIn = ensureCapacity(appIn, appIn.position() + engine.getSession().getApplicationBufferSize());
+                    return true;
+                case CLOSED:
+                    isPeerClosed = true; // close_notify
+                    return false;
+                default:
+                    break;
+            }
+
+            if (appIn.position() > 0) {
+                appIn.flip();
+                if (receivedLength == 0) {
+                    firstByteNanos = System.nanoTime();
+                }
+                if (receivedLength + appIn.remaining() > received.length) {
+                    final byte[] larger = new byte[Math.max(received.length * 2, receivedLength + appIn.remaining())];
+                    System.arraycopy(received, 0, larger, 0, receivedLength);
+                    received = larger;
+                }
+                final int length = appIn.remaining();
+                appIn.get(received, receivedLength, length);
+                receivedLength += length;
+                appIn.clear();
+            }
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+
+
+        /**
+         * encrypt into the outgoing buffer
+         */
+        private void wrap(final ByteBuffer source) throws IOException {
+
+            while (true) {
+                final SSLEngineResult result = engine.wrap(source, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = ensureCapacity(netOut, netOut.position() + engine.getSession().getPacketBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS connection closed");
+                }
+                return;
+            }
+        }
+
+
+        /**
+         * @return true if everything was written
+         */
+        private boolean flush() throws IOException {
+
+            netOut.flip();
+            try {
+                channel.write(netOut);
+            }
+            finally {
+                netOut.compact();
+            }
+            return netOut.position() == 0;
+        }
+
+
+        /**
+         * count the handshake and check the pinned certificate
+         */
+        private void handshakeFinished() throws IOException {
+
+            isHandshaking = false;
+
+            /* a resumed session keeps the creation time of the cached one: */
+            final SSLSession session = engine.getSession();
+            final boolean isResumed = lastSession != null
+                    && (session == lastSession || session.getCreationTime() == lastSession.getCreationTime());
+            lastSession = session;
+            metrics.recordHandshake(isResumed);
+
+            final PinnedCertificateStore store = pinnedCertificates;
+            if (store != null) {
+                final Certificate[] certificates = session.getPeerCertificates();
+                if (certificates.length > 0 && certificates[0] instanceof X509Certificate) {
+                    try {
+                        store.check(host + ":" + port, (X509Certificate) certificates[0]);
+                    }
+                    catch (CertificateException e) {
+                        throw new SSLException("certificate check failed", e);
+                    }
+                }
+            }
+        }
+
+
+        /**
+         * parse the bytes received so far
+         *
+         * @return true if the response was complete (and the poll ended)
+         */
+        private boolean parseResponse() throws IOException {
+
+            responseReader.reset();
+            receivedDataStream.rewind();
+            try {
+                responseReader.readResponse(receivedDataStream);
+            }
+            catch (NeedMoreDataException e) {
+                return false;
+            }
+
+            /* keep the bytes beyond the response (there shouldn't be any): */
+            final int consumed = receivedLength - responseReader.getBufferedLength();
+            System.arraycopy(received, consumed, received, 0, receivedLength - consumed);
+            receivedLength -= consumed;
+
+            if (!responseReader.isKeepAlive() || isPeerClosed) {
+                closeConnection();
+            }
+            endPoll(null);
+            return true;
+        }
+
+
+        /**
+         * complete the poll in flight: with the parsed response or the given failure
+         *
+         * @param e null if the response was received
+         */
+        void endPoll(final Exception e) {
+
+            if (e != null) {
+                final boolean isStale = isReused && !isRetried && receivedLength == 0 && !(e instanceof SocketTimeoutException);
+                closeConnection();
+                if (isStale) { // the kept-alive connection was closed by the server meanwhile: once more with a new one
+                    isRetried = true;
+                    try {
+                        connect();
+                        return;
+                    }
+                    catch (Exception retryException) {
+                        endPoll(retryException);
+                        return;
+                    }
+                }
+            }
+
+            isPolling = false;
+            final TrafficSample sample = e != null ? createFailedSample(e) : createSample();
+            final PollFuture future;
+            synchronized (this) {
+                future = pendingPoll;
+                pendingPoll = null;
+                if (sample.getOutcome() == PollOutcome.AUTH_FAILED) {
+                    stoppedSample = sample;
+                }
+            }
+            if (future != null) {
+                future.complete(sample);
+            }
+
+            final TrafficSampleListener currentListener = listener;
+            if (currentListener != null) {
+                try {
+                    currentListener.sampleReceived(hostIndex, sample);
+                    if (sample.getOutcome() == PollOutcome.AUTH_FAILED) {
+                        currentListener.pollingStopped(hostIndex,
+                                new IllegalArgumentException("Autorization failed! Please check the \"settings.properties\" and set a valid user/pass combination."));
+                    }
+                }
+                catch (RuntimeException listenerException) {
+                    // silent fail: a broken listener mustn't stop the other hosts' polls
+                }
+            }
+        }
+
+
+        /**
+         * @return the sample of the complete response, a failure if it wasn't the expected one
+         */
+        private TrafficSample createSample() {
+
+            if (responseReader.getStatusCode() == 401) {
+                metrics.recordFailure(PollMetrics.Cause.AUTH, host, null);
+                return createFailedSample(PollOutcome.AUTH_FAILED);
+            }
+            if (responseReader.getStatusCode() != 200) {
+                final IOException e = new IOException("HTTP status " + responseReader.getStatusCode());
+                metrics.recordFailure(PollMetrics.Cause.HTTP_STATUS, host, e);
+                return createFailedSample(PollOutcome.HTTP_ERROR);
+            }
+
+            final long parseStartNanos = System.nanoTime();
+            if (!speedCgiScanner.scan(responseReader.getBody(), 0, responseReader.getBodyLength())) {
+                final IOException e = new IOException("rxb/txb not found in speed.cgi response");
+                metrics.recordFailure(PollMetrics.Cause.PARSE, host, e);
+                return createFailedSample(PollOutcome.INVALID_RESPONSE);
+            }
+            final long endNanos = System.nanoTime();
+            metrics.record(PollMetrics.Phase.PARSE, endNanos - parseStartNanos);
+
+            final long totalDownKB = speedCgiScanner.getValue(0);
+            final long totalUpKB = speedCgiScanner.getValue(1);
+
+            /* the counters are taken to be read at the midpoint of the round trip, see IPFireDataProvider#getSpeedParams(): */
+            final long sampleNanos = requestNanos + (firstByteNanos - requestNanos) / 2;
+            final long currentTime = System.currentTimeMillis() - (endNanos - sampleNanos) / 1000000;
+            final float elapsedMillis = (sampleNanos - lastSampleNanos) / 1e6f;
+
+            float downKBpS = -1.0f;
+            float upKBpS = -1.0f;
+            if (lastTotalDownKB != 0 && lastTotalUpKB != 0 && elapsedMillis > 0) {
+                downKBpS = (totalDownKB - lastTotalDownKB)   / elapsedMillis;
+                upKBpS   = (totalUpKB - lastTotalUpKB)       / elapsedMillis;
+            }
+
+            lastRefresh = Math.max(currentTime, lastRefresh + 1); // strictly increasing, even if the wall clock was set back
+            lastSampleNanos = sampleNanos;
+            lastTotalDownKB = totalDownKB;
+            lastTotalUpKB = totalUpKB;
+
+            metrics.record(PollMetrics.Phase.POLL, endNanos - startNanos);
+            return new TrafficSample(host, lastRefresh, totalDownKB, totalUpKB, downKBpS, upKBpS, PollOutcome.OK);
+        }
+
+
+        private TrafficSample createFailedSample(final Exception e) {
+
+            metrics.recordFailure(PollMetrics.classify(e), host, e);
+            if (e instanceof UnknownHostException || e instanceof ConnectException) {
+                address = null; // resolve again next time
+            }
+            return createFailedSample(PinnedCertificateStore.isCertificateChanged(e)
+                    ? PollOutcome.CERTIFICATE_CHANGED
+                    : PollOutcome.fromCause(PollMetrics.classify(e)));
+        }
+
+
+        TrafficSample createFailedSample(final PollOutcome outcome) {
+            return new TrafficSample(host, lastRefresh, lastTotalDownKB, lastTotalUpKB, -1.0f, -1.0f, outcome);
+        }
+
+
+        /**
+         * drop the connection without a TLS close_notify (it may be in any state)
+         */
+        void closeConnection() {
+
+            if (channel != null) {
+                key.cancel();
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    // silent fail: the connection is dropped anyway
+                }
+            }
+            channel = null;
+            key = null;
+            engine = null;
+            isHandshaking = false;
+            isPeerClosed = false;
+            receivedLength = 0;
+        }
+
+
+        /**
+         * the received bytes for the {@link HttpResponseReader}: instead of blocking at their end,
+         * it throws a {@link NeedMoreDataException} (unless the server has closed the connection)
+         */
+        private final class ReceivedDataStream extends InputStream {
+
+            private int position = 0;
+
+            void rewind() {
+                position = 0;
+            }
+
+            @Override
+            public int read() throws IOException {
+
+                final byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+
+                if (position == receivedLength) {
+                    if (isPeerClosed) {
+                        return -1;
+                    }
+                    throw NeedMoreDataException.INSTANCE;
+                }
+                final int length = Math.min(len, receivedLength - position);
+                System.arraycopy(received, position, b, off, length);
+                position += length;
+                return length;
+            }
+        }
+    }
+
+
+    /**
+     * the response isn't complete yet (thrown instead of blocking, without a stack trace)
+     */
+    private static final class NeedMoreDataException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        static final NeedMoreDataException INSTANCE = new NeedMoreDataException();
+
+        private NeedMoreDataException() {
+            super("more data needed");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+
+    /**
+     * @return the given buffer if it's large enough, else a larger one with the same content (in write mode)
+     */
+    private static ByteBuffer ensureCapacity(final ByteBuffer buffer, final int capacity) {
+
+        if (buffer != null && buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(capacity);
+        if (buffer != null) {
+            buffer.flip();
+            larger.put(buffer);
+        }
+        return larger;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * stops polling a host that can't be reached:
+ * after a number of consecutive connection failures the circuit "opens" and no requests are sent for a while,
+ * then a single probe request is let through ("half open"). if it succeeds, the circuit closes again,
+ * if it fails, the circuit stays open for twice as long (up to a max. time)
+ *
+ * @author apric
+ */
+public final class CircuitBreaker {
+
+    /**
+     * state of the circuit
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_MILLIS = 5 * 1000;
+    public static final long DEFAULT_MAX_OPEN_MILLIS = 5 * 60 * 1000;
+
+    private final int failureThreshold;
+    private final long initialOpenMillis;
+    private final long maxOpenMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openMillis;
+    private long openUntilNanos = 0;
+
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, DEFAULT_MAX_OPEN_MILLIS);
+    }
+
+
+    /**
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param openMillis time until the first probe
+     * @param maxOpenMillis max. time between probes
+     */
+    public CircuitBreaker(final int failureThreshold, final long openMillis, final long maxOpenMillis) {
+
+        if (failureThreshold < 1 || openMillis < 1 || maxOpenMillis < openMillis) {
+            throw new IllegalArgumentException("threshold and times must be > 0, max >= initial time");
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.initialOpenMillis = openMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.openMillis = openMillis;
+    }
+
+
+    /**
+     * @return false while the circuit is open (no request should be sent)
+     */
+    public synchronized boolean allowRequest() {
+
+        if (state == State.OPEN && System.nanoTime() - openUntilNanos >= 0) {
+            state = State.HALF_OPEN; // time for a probe
+        }
+        return state != State.OPEN;
+    }
+
+
+    /**
+     * @param isConnectionFailure result of the request let through by {@link #allowRequest()}
+     */
+    public synchronized void recordResult(final boolean isConnectionFailure) {
+
+        if (!isConnectionFailure) {
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            openMillis = initialOpenMillis;
+            return;
+        }
+
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openMillis = Math.min(openMillis * 2, maxOpenMillis); // the probe failed
+            open();
+        }
+        else if (consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+
+    public synchronized State getState() {
+        return state;
+    }
+
+
+    private void open() {
+        state = State.OPEN;
+        openUntilNanos = System.nanoTime() + openMillis * 1000000;
+    }
+
+}
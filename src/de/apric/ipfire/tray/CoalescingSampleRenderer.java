@@ -0,0 +1,85 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
+
+/**
+ * hands the newest sample of one host to a renderer on the event dispatch thread:
+ * a burst of samples schedules a single run on the EDT, which only draws the newest one
+ * (the samples in between would be overdrawn anyway), so a busy EDT doesn't pile up outdated updates
+ *
+ * the run is preallocated and at most one is pending, but every hop to the EDT allocates an event
+ * (see {@link SwingUtilities#invokeLater(Runnable)}): the one allocation per rendered frame of the poll -> render cycle
+ *
+ * @author apric
+ */
+final class CoalescingSampleRenderer implements Runnable {
+
+    private final SampleBus.Cursor cursor; // only read on the EDT
+    private final int hostIndex;
+    private final TrafficSampleRenderer renderer;
+    private final MutableTrafficSample sample = new MutableTrafficSample(); // only used on the EDT
+    private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+
+    /**
+     * start rendering the samples published from now on
+     *
+     * @param bus
+     * @param hostIndex the host to render
+     * @param renderer receives the newest sample on the EDT
+     */
+    CoalescingSampleRenderer(final SampleBus bus, final int hostIndex, final TrafficSampleRenderer renderer) {
+
+        this.hostIndex = hostIndex;
+        this.renderer = renderer;
+        cursor = bus.newCursor();
+    }
+
+
+    /**
+     * schedule a run on the EDT (unless one is pending already), to be called after a sample was published
+     *
+     * @param hostIndex of the published sample, others than the rendered host are ignored
+     */
+    void published(final int hostIndex) {
+
+        if (hostIndex == this.hostIndex && isScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this);
+        }
+    }
+
+
+    @Override
+    public void run() {
+
+        isScheduled.set(false); // before reading: a sample published from now on schedules another run
+
+        if (cursor.pollLatest(hostIndex, sample)) {
+            renderer.render(hostIndex, sample);
+        }
+    }
+
+
+    TrafficSampleRenderer getRenderer() {
+        return renderer;
+    }
+
+}
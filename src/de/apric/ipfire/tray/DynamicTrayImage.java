@@ -19,102 +19,496 @@
 package de.apric.ipfire.tray;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.RenderingHints;
 import java.awt.SystemTray;
 import java.awt.image.BufferedImage;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
 
 /**
  * dynamic tray image class:
  * get image showing the connection speed graphs
  *
+ * the graph is drawn into a private canvas and then copied into one of several images that are handed out in turn,
+ * so an image is never modified while the tray (or anybody else) may still be painting it.
+ * every instance is an independent graph (e.g. one per firewall), an instance is meant to be used by one thread (the EDT)
+ *
+ * the graph shows either one download/upload pair or the download of several interfaces stacked on top of each other
+ * (see {@link #getStackedSpeedImage}), e.g. all interfaces read with one poll of a {@link ProcNetDevDataSource}
+ *
+ * the history of speed values is independent of the image size: it may hold more values than visible
+ * and survives a {@link #resize} (e.g. if the tray's icon size changes)
+ *
  * @author apric
  */
 public class DynamicTrayImage {
 
-    public static final int TRAY_SIZE_X = (int) SystemTray.getSystemTray().getTrayIconSize().getWidth();
-    public static final int TRAY_SIZE_Y = (int) SystemTray.getSystemTray().getTrayIconSize().getHeight();
+    public static final int DEFAULT_BUFFER_COUNT = 3; // the current image, the one before (maybe still painted) and the next one
+
+    /**
+     * available graph renderers
+     */
+    public enum Renderer {
+        /** antialiased drawing via Graphics2D */
+        GRAPHICS_2D,
+        /** ARGB pixels written directly into the image's raster (fastest) */
+        RASTER
+    }
+
+    /* min. default history of speed values, holds more samples than visible for a wider graph: */
+    public static final int MIN_HISTORY_SIZE = 256;
 
-    private static final BufferedImage IMAGE = new BufferedImage(TRAY_SIZE_X, TRAY_SIZE_Y, Image.SCALE_SMOOTH);
-    private static final Graphics2D G2D = IMAGE.createGraphics();
+    /* max. number of interfaces in a stacked graph (each has a colour of its own): */
+    public static final int MAX_STACKED_INTERFACES = 8;
 
-    private static final Deque<Float> DOWNVALUES    = new LinkedList<Float>();
-    private static final Deque<Float> UPVALUES      = new LinkedList<Float>();
+    private static final FlightRecorderEvent RENDER_EVENT = new FlightRecorderEvent("de.apric.ipfire.tray.Render",
+            "Tray Image Render", "rendering the speed graph of the tray icon",
+            new String[]{"renderer", "incremental", "width", "height", "imageChanged"},
+            new Class<?>[]{String.class, boolean.class, int.class, int.class, boolean.class});
 
+    private static final Color UP_COLOR = new Color(1, 0, 0, 0.8f); // red color, slightly transparent
+    private static final Color[] STACK_COLORS = new Color[RasterGraphRenderer.STACK_COLORS.length]; // the same as the raster renderer's
     static {
+        for (int k = 0; k < STACK_COLORS.length; k++) {
+            STACK_COLORS[k] = new Color(RasterGraphRenderer.STACK_COLORS[k]);
+        }
+    }
+
+    private int width;
+    private int height;
+
+    /* the canvas the graph is drawn on (never handed out), replaced on resize: */
+    private BufferedImage canvas;
+    private Graphics2D g2d;
+    private int[] canvasPixels;
+    private RasterGraphRenderer rasterRenderer;
+
+    /* the images handed out in turn, replaced on resize: */
+    private final BufferedImage[] buffers;
+    private final int[][] bufferPixels;
+    private int current = -1; // index of the image handed out last, -1 before the first one
+
+    private final SampleRingBuffer values; // the totals
+    private final SampleRingBuffer[] stackedValues = new SampleRingBuffer[MAX_STACKED_INTERFACES]; // of each interface (created when stacked)
+    private int stackedCount = 0; // number of interfaces stacked, 0 for a single graph
+
+    /* state of the canvas (for incremental rendering): */
+    private Renderer renderer = Renderer.GRAPHICS_2D;
+    private boolean incrementalRendering = true;
+    private boolean isRendered = false;
+    private float renderedMaxDownKBpS = 0;
+    private float renderedMaxUpKBpS = 0;
+    private int lastTx_y; // end point of the upload line so far
+    private boolean imageChanged = true;
+
+
+    /**
+     * @param width image width
+     * @param height image height
+     */
+    public DynamicTrayImage(final int width, final int height) {
+        this(width, height, DEFAULT_BUFFER_COUNT);
+    }
+
+
+    /**
+     * @param width image width
+     * @param height image height
+     * @param bufferCount number of images handed out in turn (at least 2)
+     */
+    public DynamicTrayImage(final int width, final int height, final int bufferCount) {
+        this(width, height, bufferCount, Math.max(MIN_HISTORY_SIZE, width));
+    }
+
+
+    /**
+     * @param width image width
+     * @param height image height
+     * @param bufferCount number of images handed out in turn (at least 2)
+     * @param historyCapacity number of speed values kept (only the newest width of them are visible)
+     */
+    public DynamicTrayImage(final int width, final int height, final int bufferCount, final int historyCapacity) {
+
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("at least 2 buffers are required");
+        }
+        if (historyCapacity < 1) {
+            throw new IllegalArgumentException("historyCapacity must be > 0");
+        }
+
+        buffers = new BufferedImage[bufferCount];
+        bufferPixels = new int[bufferCount][];
+        createImages(width, height);
+
+        values = new SampleRingBuffer(historyCapacity);
+        lastTx_y = height;
+    }
+
+
+    /**
+     * @return a graph the size of a system tray icon
+     */
+    public static DynamicTrayImage forSystemTray() {
+
+        final Dimension size = SystemTray.getSystemTray().getTrayIconSize();
+        return new DynamicTrayImage(size.width, size.height);
+    }
+
+
+    /**
+     * @param historyCapacity number of speed values kept
+     * @return a graph the size of a system tray icon
+     */
+    public static DynamicTrayImage forSystemTray(final int historyCapacity) {
+
+        final Dimension size = SystemTray.getSystemTray().getTrayIconSize();
+        return new DynamicTrayImage(size.width, size.height, DEFAULT_BUFFER_COUNT, historyCapacity);
+    }
+
+
+    /**
+     * change the image size (e.g. to the tray's new icon size), the history of speed values is kept
+     * and shown with the next image, which is redrawn completely. the images handed out before aren't modified anymore
+     *
+     * @param width new image width
+     * @param height new image height
+     */
+    public void resize(final int width, final int height) {
+
+        if (width == this.width && height == this.height) {
+            return;
+        }
+        g2d.dispose();
+        createImages(width, height);
+        current = -1;
+        imageChanged = true;
+
+        /* the new canvas is blank, nothing to scroll: the next image is redrawn completely (even if the size was changed back) */
+        isRendered = false;
+        lastTx_y = height;
+    }
+
+
+    /**
+     * create the canvas and the images handed out (the existing ones are dropped)
+     */
+    private void createImages(final int width, final int height) {
+
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("width and height must be > 0");
+        }
+
+        this.width = width;
+        this.height = height;
+
+        canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        g2d = canvas.createGraphics();
+        canvasPixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+        rasterRenderer = new RasterGraphRenderer(width, height, canvasPixels);
+
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            bufferPixels[i] = ((DataBufferInt) buffers[i].getRaster().getDataBuffer()).getData();
+        }
+
         /* set graphics rendering hints: */
-        G2D.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        G2D.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        G2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        G2D.setBackground(Color.DARK_GRAY);
+        g2d.setBackground(Color.DARK_GRAY);
     }
 
 
     /**
      * get image showing the connection speed graphs
+     * in incremental mode the previous graph is scrolled left by one column and only the newest column is drawn,
+     * the whole graph is only redrawn if the scale or the size (see {@link #resize}) has changed
      *
      * @param currentDownKBpS
      * @param currentUpKBpS
      * @param maxDownKBpS
      * @param maxUpKBpS
-     * @return updated image the size of a system tray icon
+     * @return updated image (not modified until at least {@link #getBufferCount()} - 1 more images were requested),
+     *          the same as before if the graph didn't change
      */
-    public static Image getDynamicSpeedImageV2(final float currentDownKBpS, final float currentUpKBpS, final float maxDownKBpS, final float maxUpKBpS) {
+    public Image getDynamicSpeedImageV2(final float currentDownKBpS, final float currentUpKBpS, final float maxDownKBpS, final float maxUpKBpS) {
 
-        DOWNVALUES.add(currentDownKBpS);
-        UPVALUES.add(currentUpKBpS);
+        if (stackedCount != 0) {
+            startOver(0);
+        }
+        return render(currentDownKBpS, currentUpKBpS, maxDownKBpS, maxUpKBpS);
+    }
+
+
+    /**
+     * get image showing the download of several interfaces stacked on top of each other (each in a colour of its own)
+     * and the line of their total upload, e.g. of the interfaces read with one poll (see {@link TrafficSample#getInterfaceCount()}).
+     * the graph starts over if the number of interfaces changes or single graphs were requested before
+     *
+     * @param currentDownKBpS download KB/s of each interface, -1 if unknown (the whole column shows a connection problem then)
+     * @param currentUpKBpS upload KB/s of each interface, -1 if unknown
+     * @param interfaceCount number of interfaces in the arrays, only the first {@link #MAX_STACKED_INTERFACES} are shown
+     * @param maxDownKBpS max. total download
+     * @param maxUpKBpS max. total upload
+     * @return updated image (not modified until at least {@link #getBufferCount()} - 1 more images were requested),
+     *          the same as before if the graph didn't change
+     */
+    public Image getStackedSpeedImage(final float[] currentDownKBpS, final float[] currentUpKBpS, final int interfaceCount,
+            final float maxDownKBpS, final float maxUpKBpS) {
 
-        /* remove old values no longer visible: */
-        if (DOWNVALUES.size() > TRAY_SIZE_X) {
-            DOWNVALUES.removeFirst();
-            UPVALUES.removeFirst();
+        if (interfaceCount < 1) {
+            throw new IllegalArgumentException("at least one interface is required");
         }
 
-        /* set background: */
-        G2D.setColor(Color.DARK_GRAY);
-        G2D.fillRect(0, 0, TRAY_SIZE_X, TRAY_SIZE_Y);
+        final int count = Math.min(interfaceCount, MAX_STACKED_INTERFACES);
+        if (stackedCount != count) {
+            startOver(count);
+        }
 
-        /* draw download: */
-        G2D.setColor(Color.GREEN);
-        int rx_i = TRAY_SIZE_X - DOWNVALUES.size();
-        for (float downKBpS : DOWNVALUES) {
-            if (downKBpS > 0) {
-                final int lineHeight = (int) Math.min(downKBpS / maxDownKBpS * TRAY_SIZE_Y, TRAY_SIZE_Y);
-                G2D.drawLine(rx_i, TRAY_SIZE_Y,
-                            rx_i, TRAY_SIZE_Y - lineHeight);
+        float totalDownKBpS = 0;
+        float totalUpKBpS = 0;
+        boolean isUnknown = false;
+        for (int k = 0; k < count; k++) {
+            isUnknown |= currentDownKBpS[k] < 0 || currentUpKBpS[k] < 0;
+            totalDownKBpS += Math.max(0, currentDownKBpS[k]);
+            totalUpKBpS += Math.max(0, currentUpKBpS[k]);
+            stackedValues[k].add(Math.max(0, currentDownKBpS[k]), Math.max(0, currentUpKBpS[k]));
+        }
+
+        return isUnknown
+                ? render(-1.0f, -1.0f, maxDownKBpS, maxUpKBpS)
+                : render(totalDownKBpS, totalUpKBpS, maxDownKBpS, maxUpKBpS);
+    }
+
+
+    /**
+     * drop the history and switch between a single and a stacked graph
+     *
+     * @param count number of interfaces stacked from now on, 0 for a single graph
+     */
+    private void startOver(final int count) {
+
+        values.clear();
+        for (int k = 0; k < count; k++) {
+            if (stackedValues[k] == null) {
+                stackedValues[k] = new SampleRingBuffer(values.capacity());
             }
-            /* draw a yellow bar in case of connection problems: */
-            else if (downKBpS < 0) {
-                G2D.setColor(Color.YELLOW);
-                G2D.drawLine(rx_i, 0, rx_i, TRAY_SIZE_Y - 1);
-                G2D.setColor(Color.GREEN); // set green again
+            stackedValues[k].clear();
+        }
+        stackedCount = count;
+        isRendered = false;
+    }
+
+
+    /**
+     * add the totals to the history and update the graph
+     */
+    private Image render(final float currentDownKBpS, final float currentUpKBpS, final float maxDownKBpS, final float maxUpKBpS) {
+
+        final Object event = RENDER_EVENT.begin();
+
+        values.add(currentDownKBpS, currentUpKBpS);
+
+        final boolean isIncremental = incrementalRendering && isRendered
+                && maxDownKBpS == renderedMaxDownKBpS && maxUpKBpS == renderedMaxUpKBpS;
+
+        if (renderer == Renderer.RASTER) {
+            if (isIncremental) {
+                rasterRenderer.drawNewest(values, stackedValues, stackedCount, maxDownKBpS, maxUpKBpS);
             }
+            else {
+                rasterRenderer.drawAll(values, stackedValues, stackedCount, maxDownKBpS, maxUpKBpS);
+            }
+        }
+        else {
+            if (isIncremental) {
+                drawNewestColumn(maxDownKBpS, maxUpKBpS);
+            }
+            else {
+                drawAllColumns(maxDownKBpS, maxUpKBpS);
+            }
+        }
+
+        isRendered = true;
+        renderedMaxDownKBpS = maxDownKBpS;
+        renderedMaxUpKBpS = maxUpKBpS;
+
+        imageChanged = present();
+
+        if (event != null) {
+            RENDER_EVENT.commit(event, renderer.name(), isIncremental, width, height, imageChanged);
+        }
+
+        return buffers[current];
+    }
+
+
+    /**
+     * @return false if the last image returned by {@link #getDynamicSpeedImageV2} is pixel-identical to the one before
+     * (e.g. on an idle link, it's the same image then), so there's no need to update the tray icon
+     */
+    public boolean isImageChanged() {
+        return imageChanged;
+    }
+
 
+    /**
+     * @param incremental true: scroll the graph and draw only the newest column, false: redraw the whole graph on each update
+     */
+    public void setIncrementalRendering(final boolean incremental) {
+        incrementalRendering = incremental;
+    }
+
+
+    /**
+     * select the renderer used for all following images (the graph will be redrawn completely with the next image)
+     *
+     * @param graphRenderer
+     */
+    public void setRenderer(final Renderer graphRenderer) {
+        renderer = graphRenderer;
+        isRendered = false;
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBufferCount() {
+        return buffers.length;
+    }
+
+    public int getHistoryCapacity() {
+        return values.capacity();
+    }
+
+
+    /**
+     * copy the canvas into the next image, unless it's identical to the current one
+     *
+     * @return false if the current image was kept
+     */
+    private boolean present() {
+
+        if (current >= 0 && Arrays.equals(canvasPixels, bufferPixels[current])) {
+            return false;
+        }
+        current = (current + 1) % buffers.length;
+        System.arraycopy(canvasPixels, 0, bufferPixels[current], 0, canvasPixels.length);
+        return true;
+    }
+
+
+    /**
+     * redraw the graph completely
+     */
+    private void drawAllColumns(final float maxDownKBpS, final float maxUpKBpS) {
+
+        /* only the newest values are visible: */
+        final int visibleValues = Math.min(values.size(), width);
+        final int firstVisible = values.size() - visibleValues;
+
+        /* set background: */
+        g2d.setColor(Color.DARK_GRAY);
+        g2d.fillRect(0, 0, width, height);
+
+        /* draw download: */
+        int rx_i = width - visibleValues;
+        for (int i = firstVisible; i < values.size(); i++) {
+            drawDownColumn(rx_i, i, maxDownKBpS);
             rx_i++;
         }
 
         /* draw upload: */
-        G2D.setColor(new Color(1, 0, 0, 0.8f)); // red color, slightly transparent
-        int tx_i = TRAY_SIZE_X - UPVALUES.size();
-        int previousTx_y = TRAY_SIZE_Y - (int) Math.min(UPVALUES.getFirst() / maxUpKBpS * TRAY_SIZE_Y, TRAY_SIZE_Y);
-        for (float upKBpS : UPVALUES) {
-            if (upKBpS > 0) {
-                final int currentTx_y = TRAY_SIZE_Y - (int) Math.min(upKBpS / maxUpKBpS * TRAY_SIZE_Y, TRAY_SIZE_Y);
-                G2D.drawLine(tx_i - 1,   previousTx_y,
-                            tx_i,       currentTx_y);
-                previousTx_y = currentTx_y;
-            }
-            /* we don't need to draw a second yellow line here in case of connection problems, if upload < 0 then also download < 0 */
-
+        int tx_i = width - visibleValues;
+        lastTx_y = height - (int) Math.min(values.getUp(firstVisible) / maxUpKBpS * height, height);
+        for (int i = firstVisible; i < values.size(); i++) {
+            drawUpSegment(tx_i, values.getUp(i), maxUpKBpS);
             tx_i++;
         }
+    }
+
+
+    /**
+     * scroll the graph left by one column and draw the newest values into the rightmost column
+     */
+    private void drawNewestColumn(final float maxDownKBpS, final float maxUpKBpS) {
+
+        final int x = width - 1;
+        final int newest = values.size() - 1;
+
+        g2d.copyArea(1, 0, width - 1, height, -1, 0);
+
+        g2d.setColor(Color.DARK_GRAY);
+        g2d.fillRect(x, 0, 1, height);
+
+        drawDownColumn(x, newest, maxDownKBpS);
+        drawUpSegment(x, values.getUp(newest), maxUpKBpS);
+    }
+
+
+    private void drawDownColumn(final int x, final int index, final float maxDownKBpS) {
+
+        final float downKBpS = values.getDown(index);
+        if (downKBpS > 0 && stackedCount > 0) {
+            drawStackedColumn(x, index, maxDownKBpS);
+        }
+        else if (downKBpS > 0) {
+            final int lineHeight = (int) Math.min(downKBpS / maxDownKBpS * height, height);
+            g2d.setColor(Color.GREEN);
+            g2d.drawLine(x, height,
+                        x, height - lineHeight);
+        }
+        /* draw a yellow bar in case of connection problems: */
+        else if (downKBpS < 0) {
+            g2d.setColor(Color.YELLOW);
+            g2d.drawLine(x, 0, x, height - 1);
+        }
+    }
+
 
-        return IMAGE;
+    /**
+     * draw the download of the interfaces on top of each other, each bar ends where the sum up to its interface ends
+     */
+    private void drawStackedColumn(final int x, final int index, final float maxDownKBpS) {
+
+        float sum = 0;
+        int top = height;
+        for (int k = 0; k < stackedCount; k++) {
+            sum += stackedValues[k].getDown(index);
+            final int sumTop = height - (int) Math.min(sum / maxDownKBpS * height, height);
+            if (sumTop < top) {
+                g2d.setColor(STACK_COLORS[k % STACK_COLORS.length]);
+                g2d.drawLine(x, top - 1, // up to the bar below, not onto it
+                            x, sumTop);
+                top = sumTop;
+            }
+        }
     }
 
 
+    /**
+     * draw the upload line from the previous column to the given one
+     */
+    private void drawUpSegment(final int x, final float upKBpS, final float maxUpKBpS) {
+
+        if (upKBpS > 0) {
+            final int currentTx_y = height - (int) Math.min(upKBpS / maxUpKBpS * height, height);
+            g2d.setColor(UP_COLOR);
+            g2d.drawLine(x - 1,   lastTx_y,
+                        x,       currentTx_y);
+            lastTx_y = currentTx_y;
+        }
+        /* we don't need to draw a second yellow line here in case of connection problems, if upload < 0 then also download < 0 */
+    }
+
 }
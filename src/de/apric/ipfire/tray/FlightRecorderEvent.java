@@ -0,0 +1,210 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * a Java Flight Recorder event type, defined at runtime:
+ * the application is built for Java 6, so it can't extend jdk.jfr.Event - instead the event type is created
+ * through jdk.jfr.EventFactory (Java 11+) via reflection. on older JVMs (or without JFR) all calls are no-ops
+ *
+ * usage: <code>Object event = TYPE.begin(); ... if (event != null) { TYPE.commit(event, field values...); }</code>
+ * (the check keeps the varargs array and the boxed values from being allocated on every call)
+ * while no recording is running, begin() returns null and nothing else happens
+ *
+ * @author apric
+ */
+final class FlightRecorderEvent {
+
+    public static final String CATEGORY = "IPFireTray";
+
+    /* jdk.jfr API, null if not available: */
+    private static final Method NEW_EVENT;
+    private static final Method GET_EVENT_TYPE;
+    private static final Method IS_TYPE_ENABLED;
+    private static final Method IS_ENABLED;
+    private static final Method BEGIN;
+    private static final Method END;
+    private static final Method COMMIT;
+    private static final Method SET;
+    private static final Method CREATE;
+    private static final Constructor<?> ANNOTATION_ELEMENT;
+    private static final Constructor<?> VALUE_DESCRIPTOR;
+
+    static {
+        Method newEvent = null, getEventType = null, isTypeEnabled = null, isEnabled = null, begin = null, end = null, commit = null, set = null, create = null;
+        Constructor<?> annotationElement = null, valueDescriptor = null;
+        try {
+            final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+
+            create = eventFactoryClass.getMethod("create", List.class, List.class);
+            newEvent = eventFactoryClass.getMethod("newEvent");
+            getEventType = eventFactoryClass.getMethod("getEventType");
+            isTypeEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            isEnabled = eventClass.getMethod("isEnabled");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            commit = eventClass.getMethod("commit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+        }
+        catch (Exception e) {
+            create = null; // e.g. Java < 11: no flight recorder events
+        }
+        catch (LinkageError e) {
+            create = null;
+        }
+        NEW_EVENT = newEvent;
+        GET_EVENT_TYPE = getEventType;
+        IS_TYPE_ENABLED = isTypeEnabled;
+        IS_ENABLED = isEnabled;
+        BEGIN = begin;
+        END = end;
+        COMMIT = commit;
+        SET = set;
+        CREATE = create;
+        ANNOTATION_ELEMENT = annotationElement;
+        VALUE_DESCRIPTOR = valueDescriptor;
+    }
+
+    private static final Object[] NO_ARGS = new Object[0]; // a reflective call without arguments shouldn't allocate an empty array each time
+
+    private final Object eventFactory; // jdk.jfr.EventFactory, null if not available
+    private final Object eventType; // jdk.jfr.EventType, null if not available
+    private final int fieldCount;
+
+
+    /**
+     * define (and register) an event type
+     *
+     * @param name unique event name, e.g. "de.apric.ipfire.tray.Poll"
+     * @param label human-readable name (shown by JDK Mission Control)
+     * @param description
+     * @param fieldNames names of the event's fields (long fields ending with "Duration" are shown as time span in ns)
+     * @param fieldTypes types of the event's fields (primitives or String)
+     */
+    FlightRecorderEvent(final String name, final String label, final String description, final String[] fieldNames, final Class<?>[] fieldTypes) {
+
+        fieldCount = fieldNames.length;
+
+        Object factory = null;
+        Object type = null;
+        if (CREATE != null) {
+            try {
+                final List<Object> annotations = Arrays.asList(
+                        annotation("jdk.jfr.Name", name),
+                        annotation("jdk.jfr.Label", label),
+                        annotation("jdk.jfr.Description", description),
+                        annotation("jdk.jfr.Category", new String[]{CATEGORY}),
+                        annotation("jdk.jfr.StackTrace", Boolean.FALSE));
+
+                final List<Object> fields = new ArrayList<Object>(fieldNames.length);
+                for (int i = 0; i < fieldNames.length; i++) {
+                    final List<Object> fieldAnnotations = fieldNames[i].endsWith("Duration")
+                            ? Arrays.asList(annotation("jdk.jfr.Timespan", "NANOSECONDS"))
+                            : new ArrayList<Object>();
+                    fields.add(VALUE_DESCRIPTOR.newInstance(fieldTypes[i], fieldNames[i], fieldAnnotations));
+                }
+
+                factory = CREATE.invoke(null, annotations, fields);
+                type = GET_EVENT_TYPE.invoke(factory, NO_ARGS);
+            }
+            catch (Exception e) {
+                factory = null; // silent fail: the events are optional
+                type = null;
+            }
+        }
+        eventFactory = factory;
+        eventType = type;
+    }
+
+
+    /**
+     * start timing an event
+     * while no recording is running, this doesn't allocate anything (only the event type is checked)
+     *
+     * @return the event, null if the event type isn't enabled in a running recording
+     */
+    Object begin() {
+
+        if (eventFactory == null || eventType == null) {
+            return null;
+        }
+        try {
+            if (!(Boolean) IS_TYPE_ENABLED.invoke(eventType, NO_ARGS)) {
+                return null;
+            }
+            final Object event = NEW_EVENT.invoke(eventFactory, NO_ARGS);
+            if (!(Boolean) IS_ENABLED.invoke(event, NO_ARGS)) {
+                return null;
+            }
+            BEGIN.invoke(event, NO_ARGS);
+            return event;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * end timing the event and write it to the recording
+     *
+     * @param event as returned by {@link #begin()}, nothing happens if null
+     * @param values one value per field, in the order of the field definition
+     */
+    void commit(final Object event, final Object... values) {
+
+        if (event == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < fieldCount; i++) {
+                SET.invoke(event, i, values[i]);
+            }
+            END.invoke(event, NO_ARGS);
+            COMMIT.invoke(event, NO_ARGS);
+        }
+        catch (Exception e) {
+            // silent fail: the events are optional
+        }
+    }
+
+
+    /**
+     * @return whether the running JVM supports flight recorder events
+     */
+    static boolean isAvailable() {
+        return CREATE != null;
+    }
+
+
+    private static Object annotation(final String annotationClassName, final Object value) throws Exception {
+        return ANNOTATION_ELEMENT.newInstance(Class.forName(annotationClassName), value);
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * writes every sample of the polled hosts as one line of CSV or JSON (timestamp, host, total counters, rates, poll outcome,
+ * the metrics of the status endpoints),
+ * for running the polling engine without a desktop: the lines are collected in a large buffer that is written
+ * in one go every flush interval (or when it's full), not line by line
+ *
+ * uses no AWT/Swing classes at all
+ *
+ * @author apric
+ */
+public final class HeadlessCollector implements TrafficSampleListener, Closeable {
+
+    /**
+     * output format
+     */
+    public enum Format {
+        CSV, JSON
+    }
+
+    public static final String CSV_HEADER = "timestamp,host,totalDownKB,totalUpKB,downKBpS,upKBpS,outcome,metrics";
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000; // ms
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Format format;
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder(128); // reused for every sample
+    private final ScheduledExecutorService flusher;
+    private IOException lastError = null;
+
+
+    /**
+     * @param outStream where to write the lines to (e.g. System.out or a file), closed with the collector
+     * @param format
+     * @param flushInterval max. time a line stays in the buffer (ms)
+     * @throws IOException
+     */
+    public HeadlessCollector(final OutputStream outStream, final Format format, final long flushInterval) throws IOException {
+
+        this.format = format;
+        writer = new BufferedWriter(new OutputStreamWriter(outStream, "UTF-8"), BUFFER_SIZE);
+
+        if (format == Format.CSV) {
+            writer.write(CSV_HEADER);
+            writer.write('\n');
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "IPFireTray output flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * create a collector writing to the given file (appending) or to stdout
+     *
+     * @param fileName null for stdout
+     * @param format
+     * @return the collector
+     * @throws IOException
+     */
+    public static HeadlessCollector create(final String fileName, final Format format) throws IOException {
+
+        final OutputStream outStream = fileName != null ? new FileOutputStream(fileName, true) : System.out;
+        return new HeadlessCollector(outStream, format, DEFAULT_FLUSH_INTERVAL);
+    }
+
+
+    @Override
+    public synchronized void sampleReceived(final int hostIndex, final TrafficSample sample) {
+
+        line.setLength(0);
+        if (format == Format.CSV) {
+            appendCsv(sample);
+        }
+        else {
+            appendJson(sample);
+        }
+        line.append('\n');
+
+        try {
+            writer.append(line);
+        }
+        catch (IOException e) {
+            lastError = e; // e.g. stdout closed, reported on close
+        }
+    }
+
+
+    @Override
+    public void pollingStopped(final int hostIndex, final Exception e) {
+        System.err.println("polling host #" + hostIndex + " stopped: " + e.getMessage());
+    }
+
+
+    /**
+     * write all buffered lines
+     */
+    public synchronized void flush() {
+
+        try {
+            writer.flush();
+        }
+        catch (IOException e) {
+            lastError = e;
+        }
+    }
+
+
+    /**
+     * write all buffered lines and close the output
+     *
+     * @throws IOException the last error writing the output
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        flusher.shutdownNow();
+        flush();
+        writer.close();
+
+        if (lastError != null) {
+            throw lastError;
+        }
+    }
+
+
+    private void appendCsv(final TrafficSample sample) {
+
+        line.append(sample.getTimestamp()).append(',');
+        appendCsvString(sample.getHost());
+        line.append(',').append(sample.getTotalDownKB());
+        line.append(',').append(sample.getTotalUpKB());
+        line.append(',');
+        if (sample.isValid()) {
+            line.append(sample.getDownKBpS()).append(',').append(sample.getUpKBpS());
+        }
+        else {
+            line.append(','); // unknown rates: empty fields
+        }
+        line.append(',').append(sample.getOutcome());
+
+        /* metrics as "name=value;name=value" (empty value if not available): */
+        line.append(',');
+        for (int i = 0; i < sample.getMetricCount(); i++) {
+            if (i > 0) {
+                line.append(';');
+            }
+            line.append(sample.getMetricName(i)).append('=');
+            if (sample.getMetricValue(i) != TrafficSample.NO_VALUE) {
+                line.append(sample.getMetricValue(i));
+            }
+        }
+    }
+
+
+    private void appendJson(final TrafficSample sample) {
+
+        line.append("{\"timestamp\":").append(sample.getTimestamp());
+        line.append(",\"host\":");
+        appendJsonString(sample.getHost());
+        line.append(",\"totalDownKB\":").append(sample.getTotalDownKB());
+        line.append(",\"totalUpKB\":").append(sample.getTotalUpKB());
+        if (sample.isValid()) {
+            line.append(",\"downKBpS\":").append(sample.getDownKBpS());
+            line.append(",\"upKBpS\":").append(sample.getUpKBpS());
+        }
+        else {
+            line.append(",\"downKBpS\":null,\"upKBpS\":null");
+        }
+        line.append(",\"outcome\":\"").append(sample.getOutcome()).append('"');
+
+        if (sample.getMetricCount() > 0) {
+            line.append(",\"metrics\":{");
+            for (int i = 0; i < sample.getMetricCount(); i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                appendJsonString(sample.getMetricName(i));
+                line.append(':');
+                if (sample.getMetricValue(i) != TrafficSample.NO_VALUE) {
+                    line.append(sample.getMetricValue(i));
+                }
+                else {
+                    line.append("null");
+                }
+            }
+            line.append('}');
+        }
+        line.append('}');
+    }
+
+
+    private void appendCsvString(final String value) {
+
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            line.append(value);
+            return;
+        }
+        line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+
+    private void appendJsonString(final String value) {
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+}
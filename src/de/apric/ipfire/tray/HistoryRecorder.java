@@ -0,0 +1,196 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * records the samples of every polled host into its own {@link SampleStore} (a sub-directory named after the host and port,
+ * so several entries for the same firewall don't share one) and consolidates the speed values into the host's {@link RoundRobinArchive} (in the same directory)
+ *
+ * @author apric
+ */
+public final class HistoryRecorder implements TrafficSampleListener, Closeable {
+
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 86400; // one day of 1-second samples
+    public static final long DEFAULT_RETENTION_DAYS = 28;
+    public static final String ARCHIVE_FILE_NAME = "rollup.rra";
+
+    private final File directory;
+    private final String[] hostDirectoryNames;
+    private final int recordsPerSegment;
+    private final long retentionMillis;
+
+    private final SampleStore[] stores;
+    private final RoundRobinArchive[] archives;
+    private final long[] lastTimestamps; // of each host's previous sample, the start of the time its speed covers
+    private volatile IOException lastError;
+
+
+    /**
+     * @param directory base directory of the history
+     * @param hostDirectoryNames name of each polled host's sub-directory (unique, e.g. see {@link #getHostDirectoryName(TrafficDataSource)})
+     * @param recordsPerSegment capacity of a segment file
+     * @param retentionMillis how long samples are kept
+     */
+    public HistoryRecorder(final File directory, final String[] hostDirectoryNames, final int recordsPerSegment, final long retentionMillis) {
+
+        this.directory = directory;
+        this.hostDirectoryNames = hostDirectoryNames.clone();
+        this.recordsPerSegment = recordsPerSegment;
+        this.retentionMillis = retentionMillis;
+
+        stores = new SampleStore[hostDirectoryNames.length];
+        archives = new RoundRobinArchive[hostDirectoryNames.length];
+        lastTimestamps = new long[hostDirectoryNames.length];
+    }
+
+
+    /**
+     * create a recorder as configured in the (valid) properties: "historyDir" and the optional "historyRetentionDays"
+     *
+     * @param validProperties
+     * @param poller the poller of the recorded hosts
+     * @return the recorder, or null if no history is configured
+     */
+    public static HistoryRecorder fromProperties(final Properties validProperties, final MultiHostPoller poller) {
+
+        if (validProperties.getProperty("historyDir") == null) {
+            return null;
+        }
+
+        final long retentionDays = validProperties.getProperty("historyRetentionDays") != null
+                ? Long.parseLong(validProperties.getProperty("historyRetentionDays"))
+                : DEFAULT_RETENTION_DAYS;
+
+        final String[] hostDirectoryNames = new String[poller.getHostCount()];
+        for (int i = 0; i < hostDirectoryNames.length; i++) {
+            hostDirectoryNames[i] = getHostDirectoryName(poller.getProvider(i));
+        }
+
+        return new HistoryRecorder(new File(validProperties.getProperty("historyDir")), hostDirectoryNames,
+                DEFAULT_RECORDS_PER_SEGMENT, retentionDays * 24 * 60 * 60 * 1000);
+    }
+
+
+    /**
+     * @param source a polled host
+     * @return name of the host's sub-directory: "host_port" for a firewall, the interface name for a local interface
+     */
+    public static String getHostDirectoryName(final TrafficDataSource source) {
+
+        final String name = source instanceof IPFireDataProvider
+                ? source.getHost() + "_" + ((IPFireDataProvider) source).getPort()
+                : source.getHost();
+        return name.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+
+
+    @Override
+    public void sampleReceived(final int hostIndex, final TrafficSample sample) {
+
+        if (sample.getTimestamp() <= 0) {
+            return; // no counters read yet
+        }
+
+        try {
+            final boolean isNewSample = getOrCreateStore(hostIndex).append(sample.getTimestamp(), sample.getTotalDownKB(), sample.getTotalUpKB());
+            if (isNewSample) {
+                final long lastTimestamp = lastTimestamps[hostIndex];
+                lastTimestamps[hostIndex] = sample.getTimestamp();
+                if (lastTimestamp > 0 && sample.isValid()) { // the speed is based on the counters of the previous sample
+                    getOrCreateArchive(hostIndex).update(sample.getTimestamp(), sample.getTimestamp() - lastTimestamp, sample.getDownKBpS(), sample.getUpKBpS());
+                }
+            }
+        }
+        catch (IOException e) {
+            lastError = e; // silent fail: the history is optional, polling goes on
+        }
+    }
+
+
+    @Override
+    public void pollingStopped(final int hostIndex, final Exception e) {
+        // nothing to do
+    }
+
+
+    /**
+     * @param hostIndex
+     * @return the store of the given host, null if nothing was recorded for it yet
+     */
+    public synchronized SampleStore getStore(final int hostIndex) {
+        return stores[hostIndex];
+    }
+
+
+    /**
+     * @param hostIndex
+     * @return the archive of the given host, null if nothing was recorded for it yet
+     */
+    public synchronized RoundRobinArchive getArchive(final int hostIndex) {
+        return archives[hostIndex];
+    }
+
+
+    /**
+     * @return the last error writing the history, null if there was none
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        for (int i = 0; i < stores.length; i++) {
+            if (stores[i] != null) {
+                stores[i].close();
+                stores[i] = null;
+            }
+            if (archives[i] != null) {
+                archives[i].close();
+                archives[i] = null;
+            }
+        }
+    }
+
+
+    private synchronized SampleStore getOrCreateStore(final int hostIndex) throws IOException {
+
+        if (stores[hostIndex] == null) {
+            stores[hostIndex] = new SampleStore(new File(directory, hostDirectoryNames[hostIndex]), recordsPerSegment, retentionMillis);
+        }
+        return stores[hostIndex];
+    }
+
+
+    private synchronized RoundRobinArchive getOrCreateArchive(final int hostIndex) throws IOException {
+
+        if (archives[hostIndex] == null) {
+            archives[hostIndex] = new RoundRobinArchive(new File(new File(directory, hostDirectoryNames[hostIndex]), ARCHIVE_FILE_NAME),
+                    RoundRobinArchive.DEFAULT_RESOLUTIONS, RoundRobinArchive.DEFAULT_SLOTS);
+        }
+        return archives[hostIndex];
+    }
+
+}
@@ -0,0 +1,484 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * byte-level HTTP/1.1 response decoder:
+ * parses status line and header directly from the received bytes and reads exactly one body
+ * (by "Content-Length", chunked transfer encoding or - without both - until the server closes the connection)
+ *
+ * one instance belongs to one connection and is reused for every response on it, its buffers are recycled.
+ * bytes received beyond the end of a response stay buffered for the next one.
+ * a body or header line beyond {@link #MAX_BODY_LENGTH} is refused, so a broken server can't make it grow without limit
+ *
+ * @author apric
+ */
+public final class HttpResponseReader {
+
+    /**
+     * thrown if a response is larger than {@link #MAX_BODY_LENGTH} (it can't be a valid speed.cgi or status page)
+     */
+    public static final class ResponseTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ResponseTooLargeException(final String message) {
+            super(message);
+        }
+    }
+
+    public static final int MAX_BODY_LENGTH = 1024 * 1024; // bytes, speed.cgi is a few hundred
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final byte[] HEADER_CONTENT_LENGTH       = ascii("content-length");
+    private static final byte[] HEADER_TRANSFER_ENCODING    = ascii("transfer-encoding");
+    private static final byte[] HEADER_CONNECTION           = ascii("connection");
+    private static final byte[] VALUE_CHUNKED               = ascii("chunked");
+    private static final byte[] VALUE_CLOSE                 = ascii("close");
+    private static final byte[] VALUE_KEEP_ALIVE            = ascii("keep-alive");
+    private static final byte[] HTTP_PREFIX                 = ascii("HTTP/");
+    private static final byte[] HTTP_1_0                    = ascii("HTTP/1.0");
+
+    /* receive buffer, unread data lies between bufferStart and bufferEnd: */
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int bufferStart = 0;
+    private int bufferEnd = 0;
+
+    /* decoded response: */
+    private byte[] body = new byte[INITIAL_BUFFER_SIZE];
+    private int bodyLength = 0;
+    private int statusCode = 0;
+    private boolean isKeepAlive = false;
+    private long statusLineNanos = 0;
+
+
+    /**
+     * read one complete response from the given stream
+     *
+     * @param inStream the connection's input stream
+     * @throws EOFException in case the connection was closed before (or within) the response
+     * @throws IOException in case the response is not valid HTTP
+     */
+    public void readResponse(final InputStream inStream) throws IOException {
+
+        statusCode = 0;
+        bodyLength = 0;
+        if (bufferStart == bufferEnd) {
+            reset(); // nothing left over from the previous response: start at the beginning of the buffer
+        }
+
+        /* status line, e.g. "HTTP/1.1 200 OK": */
+        int lineEnd = nextLine(inStream);
+        if (lineEnd < 0) {
+            throw new EOFException("connection closed by server");
+        }
+        statusLineNanos = System.nanoTime();
+        statusCode = parseStatusCode(bufferStart, lineEnd);
+        isKeepAlive = !startsWith(bufferStart, lineEnd, HTTP_1_0); // HTTP/1.1 default
+        bufferStart = skipLineBreak(lineEnd);
+
+        /* header: */
+        long contentLength = -1;
+        boolean isChunked = false;
+
+        lineEnd = nextLine(inStream);
+        while (lineEnd > bufferStart) {
+            final int colon = indexOf(bufferStart, lineEnd, (byte) ':');
+            if (colon > 0) {
+                final int valueStart = skipSpaces(colon + 1, lineEnd);
+                if (equalsIgnoreCase(bufferStart, colon, HEADER_CONTENT_LENGTH)) {
+                    contentLength = parseNumber(valueStart, lineEnd, 10);
+                }
+                else if (equalsIgnoreCase(bufferStart, colon, HEADER_TRANSFER_ENCODING)) {
+                    isChunked = containsIgnoreCase(valueStart, lineEnd, VALUE_CHUNKED);
+                }
+                else if (equalsIgnoreCase(bufferStart, colon, HEADER_CONNECTION)) {
+                    if (containsIgnoreCase(valueStart, lineEnd, VALUE_CLOSE)) {
+                        isKeepAlive = false;
+                    }
+                    else if (containsIgnoreCase(valueStart, lineEnd, VALUE_KEEP_ALIVE)) {
+                        isKeepAlive = true;
+                    }
+                }
+            }
+            bufferStart = skipLineBreak(lineEnd);
+            lineEnd = nextLine(inStream);
+        }
+        if (lineEnd < 0) {
+            throw new EOFException("connection closed within HTTP header");
+        }
+        bufferStart = skipLineBreak(lineEnd); // empty line
+
+        /* body: */
+        if (isChunked) {
+            readChunkedBody(inStream);
+        }
+        else if (contentLength >= 0) {
+            if (contentLength > MAX_BODY_LENGTH) {
+                throw new ResponseTooLargeException("HTTP body too large: " + contentLength + " bytes");
+            }
+            readBody(inStream, (int) contentLength);
+        }
+        else {
+            readBodyUntilEOF(inStream);
+            isKeepAlive = false;
+        }
+    }
+
+
+    /**
+     * forget all buffered bytes (e.g. because the connection was closed)
+     */
+    public void reset() {
+        bufferStart = 0;
+        bufferEnd = 0;
+    }
+
+
+    /**
+     * @return HTTP status code of the last response
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the status line of the last response had arrived (i.e. time to first byte)
+     */
+    public long getStatusLineNanos() {
+        return statusLineNanos;
+    }
+
+    /**
+     * @return whether the connection may be used for another request
+     */
+    public boolean isKeepAlive() {
+        return isKeepAlive;
+    }
+
+    /**
+     * @return number of bytes received beyond the end of the last response (e.g. the start of a pipelined one)
+     */
+    public int getBufferedLength() {
+        return bufferEnd - bufferStart;
+    }
+
+    /**
+     * @return buffer holding the body of the last response (starting at index 0), only valid until the next response is read
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return length of the body of the last response
+     */
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return body of the last response as string (allocates, for debugging and compatibility only)
+     */
+    public String getBodyAsString() {
+        final char[] chars = new char[bodyLength];
+        for (int i = 0; i < bodyLength; i++) {
+            chars[i] = (char) (body[i] & 0xff); // ISO-8859-1
+        }
+        return new String(chars);
+    }
+
+
+    private void readChunkedBody(final InputStream inStream) throws IOException {
+
+        while (true) {
+            final int lineEnd = nextLine(inStream);
+            if (lineEnd < 0) {
+                throw new EOFException("connection closed within chunked body");
+            }
+            int sizeEnd = indexOf(bufferStart, lineEnd, (byte) ';'); // ignore chunk extensions
+            if (sizeEnd < 0) {
+                sizeEnd = lineEnd;
+            }
+            final long chunkSize = parseNumber(bufferStart, sizeEnd, 16);
+            bufferStart = skipLineBreak(lineEnd);
+
+            if (chunkSize == 0) {
+                break;
+            }
+            if (bodyLength + chunkSize > MAX_BODY_LENGTH) {
+                throw new ResponseTooLargeException("HTTP body too large: more than " + MAX_BODY_LENGTH + " bytes");
+            }
+            readBody(inStream, (int) chunkSize);
+
+            /* CRLF after chunk data: */
+            if (nextLine(inStream) != bufferStart) {
+                throw new IOException("invalid chunked HTTP body");
+            }
+            bufferStart = skipLineBreak(bufferStart);
+        }
+
+        /* trailer (usually empty) up to the final empty line: */
+        int lineEnd = nextLine(inStream);
+        while (lineEnd > bufferStart) {
+            bufferStart = skipLineBreak(lineEnd);
+            lineEnd = nextLine(inStream);
+        }
+        if (lineEnd < 0) {
+            throw new EOFException("connection closed within chunked body trailer");
+        }
+        bufferStart = skipLineBreak(lineEnd);
+    }
+
+
+    /**
+     * append the given number of bytes to the body: first the ones already buffered, the rest directly from the stream
+     */
+    private void readBody(final InputStream inStream, final int length) throws IOException {
+
+        ensureBodyCapacity(bodyLength + length);
+
+        final int buffered = Math.min(length, bufferEnd - bufferStart);
+        System.arraycopy(buffer, bufferStart, body, bodyLength, buffered);
+        bufferStart += buffered;
+        bodyLength += buffered;
+
+        int remaining = length - buffered;
+        while (remaining > 0) {
+            final int read = inStream.read(body, bodyLength, remaining);
+            if (read < 0) {
+                throw new EOFException("connection closed within HTTP body");
+            }
+            bodyLength += read;
+            remaining -= read;
+        }
+    }
+
+
+    private void readBodyUntilEOF(final InputStream inStream) throws IOException {
+
+        final int buffered = bufferEnd - bufferStart;
+        if (buffered > MAX_BODY_LENGTH) {
+            throw new ResponseTooLargeException("HTTP body too large: more than " + MAX_BODY_LENGTH + " bytes");
+        }
+        ensureBodyCapacity(buffered);
+        System.arraycopy(buffer, bufferStart, body, 0, buffered);
+        bodyLength = buffered;
+        reset();
+
+        while (true) {
+            if (bodyLength == MAX_BODY_LENGTH) {
+                if (inStream.read() < 0) {
+                    return;
+                }
+                throw new ResponseTooLargeException("HTTP body too large: more than " + MAX_BODY_LENGTH + " bytes");
+            }
+            if (bodyLength == body.length) {
+                ensureBodyCapacity(Math.min(bodyLength * 2, MAX_BODY_LENGTH));
+            }
+            final int read = inStream.read(body, bodyLength, body.length - bodyLength);
+            if (read < 0) {
+                return;
+            }
+            bodyLength += read;
+        }
+    }
+
+
+    /**
+     * find the end of the next line (the index of its CR or LF), reading more data if necessary
+     *
+     * @return index of the line break, or -1 if the connection was closed before a complete line arrived
+     */
+    private int nextLine(final InputStream inStream) throws IOException {
+
+        int scanned = bufferStart;
+        while (true) {
+            for (int i = scanned; i < bufferEnd; i++) {
+                if (buffer[i] == '\n') {
+                    return i > bufferStart && buffer[i - 1] == '\r' ? i - 1 : i;
+                }
+            }
+            scanned = bufferEnd;
+
+            /* need more data: compact or grow the buffer first */
+            if (bufferEnd == buffer.length) {
+                if (bufferStart > 0) {
+                    System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+                    scanned -= bufferStart;
+                    bufferEnd -= bufferStart;
+                    bufferStart = 0;
+                }
+                else {
+                    if (buffer.length >= MAX_BODY_LENGTH) {
+                        throw new ResponseTooLargeException("HTTP header line too long: more than " + buffer.length + " bytes");
+                    }
+                    final byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, bufferEnd);
+                    buffer = larger;
+                }
+            }
+
+            final int read = inStream.read(buffer, bufferEnd, buffer.length - bufferEnd);
+            if (read < 0) {
+                return -1;
+            }
+            bufferEnd += read;
+        }
+    }
+
+
+    /**
+     * @param lineEnd index of the CR (or LF) ending a line
+     * @return index of the first byte after the line break
+     */
+    private int skipLineBreak(final int lineEnd) {
+        return buffer[lineEnd] == '\r' ? lineEnd + 2 : lineEnd + 1;
+    }
+
+
+    private int parseStatusCode(final int start, final int end) throws IOException {
+
+        final int space = indexOf(start, end, (byte) ' ');
+        if (space < 0 || space + 4 > end || !startsWith(start, end, HTTP_PREFIX)) {
+            throw new IOException("invalid HTTP status line");
+        }
+        return (int) parseNumber(space + 1, space + 4, 10);
+    }
+
+
+    private long parseNumber(final int start, final int end, final int radix) throws IOException {
+
+        long value = 0;
+        int digits = 0;
+        int pos = skipSpaces(start, end);
+        while (pos < end) {
+            final int digit = Character.digit(buffer[pos], radix);
+            if (digit < 0) {
+                break;
+            }
+            value = value * radix + digit;
+            if (++digits > 15) {
+                throw new IOException("number too large in HTTP response");
+            }
+            pos++;
+        }
+        if (digits == 0 || skipSpaces(pos, end) != end) {
+            throw new IOException("invalid number in HTTP response");
+        }
+        return value;
+    }
+
+
+    private int skipSpaces(final int start, final int end) {
+
+        int pos = start;
+        while (pos < end && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+
+    private int indexOf(final int start, final int end, final byte b) {
+
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private boolean startsWith(final int start, final int end, final byte[] prefix) {
+
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @param lowerCase expected value in lower case
+     */
+    private boolean equalsIgnoreCase(final int start, final int end, final byte[] lowerCase) {
+        return end - start == lowerCase.length && regionMatchesIgnoreCase(start, lowerCase);
+    }
+
+
+    /**
+     * @param lowerCase expected value in lower case
+     */
+    private boolean containsIgnoreCase(final int start, final int end, final byte[] lowerCase) {
+
+        for (int i = start; i + lowerCase.length <= end; i++) {
+            if (regionMatchesIgnoreCase(i, lowerCase)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private boolean regionMatchesIgnoreCase(final int start, final byte[] lowerCase) {
+
+        for (int i = 0; i < lowerCase.length; i++) {
+            byte b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private void ensureBodyCapacity(final int capacity) {
+
+        if (body.length < capacity) {
+            final byte[] larger = new byte[Math.min(Math.max(capacity, body.length * 2), MAX_BODY_LENGTH)];
+            System.arraycopy(body, 0, larger, 0, bodyLength);
+            body = larger;
+        }
+    }
+
+
+    private static byte[] ascii(final String s) {
+
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+}
@@ -17,13 +17,13 @@
 
 package de.apric.ipfire.tray;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.StringReader;
-import java.net.Socket;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import javax.net.ssl.SSLContext;
@@ -35,27 +35,76 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
-import sun.misc.BASE64Encoder;
 
 /**
+ * traffic data source of an IPFire firewall: polls the web interface's speed.cgi via HTTPS (Basic authentication)
  *
  * @author apric
  */
-public final class IPFireDataProvider {
+public final class IPFireDataProvider implements TrafficDataSource {
 
     public static final String IPFIRE_SPEED_CGI_PATH = "/cgi-bin/speed.cgi"; // path to "speed.cgi"
+    public static final long DEFAULT_POLL_TIMEOUT = 5000; // ms
+    public static final int SSL_SESSION_TIMEOUT = 24 * 60 * 60; // s, how long a session may be resumed
+
+    /* flight recorder events (only recorded if a recording is running): */
+    private static final FlightRecorderEvent POLL_EVENT = new FlightRecorderEvent("de.apric.ipfire.tray.Poll",
+            "IPFire Poll", "a complete poll of speed.cgi: request, response and parsing",
+            new String[]{"host", "bytesRead", "totalDownKB", "totalUpKB", "downKBpS", "upKBpS", "parseDuration"},
+            new Class<?>[]{String.class, int.class, long.class, long.class, float.class, float.class, long.class});
+    private static final FlightRecorderEvent REQUEST_EVENT = new FlightRecorderEvent("de.apric.ipfire.tray.SpeedCgiRequest",
+            "speed.cgi Request", "one HTTPS request to speed.cgi, the connection phases only occur on a new connection",
+            new String[]{"host", "statusCode", "bytesRead", "newConnection", "sessionResumed",
+                "dnsDuration", "connectDuration", "handshakeDuration", "firstByteDuration", "bodyDuration"},
+            new Class<?>[]{String.class, int.class, int.class, boolean.class, boolean.class,
+                long.class, long.class, long.class, long.class, long.class});
+    private static final FlightRecorderEvent PARSE_EVENT = new FlightRecorderEvent("de.apric.ipfire.tray.SpeedCgiParse",
+            "speed.cgi Parse", "parsing the total counters from the speed.cgi XML",
+            new String[]{"bytes", "totalDownKB", "totalUpKB", "domFallback"},
+            new Class<?>[]{int.class, long.class, long.class, boolean.class});
+
+    private static final String[] NO_INTERFACE_NAMES = new String[0]; // speed.cgi reports the red interface only
+    private static final float[] NO_INTERFACE_VALUES = new float[0];
 
     private final String host;
     private final int    port;
     private final String user;
     private final String pass;
 
-    private final SSLSocketFactory sslSocketFactory;
+    private final KeepAliveSSLConnection connection;
+    private final byte[] speedCgiRequest;
+    private final SpeedCgiScanner speedCgiScanner;
+
+    /* the speed.cgi response of the last poll (the first request of the pipeline), kept before the status pages are read: */
+    private int speedCgiStatusCode = 0;
+    private long speedCgiRequestNanos = 0; // System.nanoTime() it was sent
+    private long speedCgiStatusLineNanos = 0; // System.nanoTime() its status line arrived
+    private byte[] speedCgiBody = new byte[0]; // copy of the body, grown as needed
+    private int speedCgiBodyLength = 0;
+
+    /* status endpoints, fetched in one pipeline with speed.cgi (after it): */
+    private List<StatusEndpoint> statusEndpoints = Collections.emptyList();
+    private byte[][] requests;
+    private SpeedCgiScanner[] statusScanners = new SpeedCgiScanner[0];
+    private int[] metricOffsets = new int[0]; // index of each endpoint's first metric
+    private String[] metricNames = new String[0];
+    private long[] metricValues = new long[0]; // of the last poll
+    private final StatusResponseHandler statusResponseHandler = new StatusResponseHandler();
     private final DocumentBuilder xmlDocBuilder;
+    private volatile PollMetrics metrics = new PollMetrics(); // replaced by the poller's shared one
+    private volatile long pollTimeout = DEFAULT_POLL_TIMEOUT;
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private volatile PollOutcome lastOutcome = PollOutcome.OK;
+    private volatile PinnedCertificateStore pinnedCertificates; // null: trust any certificate
 
     private long lastRefresh = System.currentTimeMillis();
+    private long lastSampleNanos = 0; // System.nanoTime() the last counters were read at
     private long lastTotalDownKB = 0;
     private long lastTotalUpKB = 0;
+    private float currentDownKBpS = -1.0f; // of the last poll
+    private float currentUpKBpS = -1.0f;
+    private long parsedTotalDownKB = 0; // of the last parsed response
+    private long parsedTotalUpKB = 0;
 
 
     /**
@@ -68,150 +117,387 @@ public final class IPFireDataProvider {
      * @throws Exception
      */
     public IPFireDataProvider(final String host, final int port, final String user, final String pass) throws Exception {
+        this(host, port, user, pass, null);
+    }
+
+
+    /**
+     * create an IPFire-specific data provider using the given sockets (e.g. an unencrypted loopback to measure the application's own costs)
+     *
+     * @param host valid hostname
+     * @param port valid port
+     * @param user valud username (web interface admin)
+     * @param pass valid password (web interface admin)
+     * @param sslSocketFactory factory for the SSL sockets, null: TLS trusting any (or only the pinned) certificate
+     * @throws Exception
+     */
+    IPFireDataProvider(final String host, final int port, final String user, final String pass, final SSLSocketFactory sslSocketFactory) throws Exception {
 
         this.host = host;
         this.port = port;
         this.user = user;
         this.pass = pass;
 
-        final SSLContext sslContext = SSLContext.getInstance("SSL");
+        connection = new KeepAliveSSLConnection(sslSocketFactory != null ? sslSocketFactory : createSSLSocketFactory(), host, port, metrics);
+        speedCgiRequest = createRequest(IPFIRE_SPEED_CGI_PATH);
+        speedCgiScanner = new SpeedCgiScanner("rxb", "txb");
+        requests = new byte[][]{speedCgiRequest};
+        xmlDocBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+
+
+    /**
+     * @return factory for SSL sockets, trusting even "invalid" certificates, unless pinned
+     */
+    private SSLSocketFactory createSSLSocketFactory() throws Exception {
+
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
         sslContext.init(null, new TrustManager[] {
-            new X509TrustManager() { // SSL trust manager (trusting even "invalid" certificates)
+            new X509TrustManager() { // SSL trust manager (trusting even "invalid" certificates, unless pinned)
                 public X509Certificate[] getAcceptedIssuers() {
-                    return null;
+                    return new X509Certificate[0];
                 }
                 public void checkClientTrusted(final X509Certificate[] xcs, final String string) throws CertificateException {}
-                public void checkServerTrusted(final X509Certificate[] xcs, final String string) throws CertificateException {}
+                public void checkServerTrusted(final X509Certificate[] xcs, final String string) throws CertificateException {
+                    final PinnedCertificateStore store = pinnedCertificates;
+                    if (store != null && xcs != null && xcs.length > 0) {
+                        store.check(host + ":" + port, xcs[0]);
+                    }
+                }
             }}, new java.security.SecureRandom());
+        sslContext.getClientSessionContext().setSessionTimeout(SSL_SESSION_TIMEOUT); // resumed by every new connection
 
-        sslSocketFactory = sslContext.getSocketFactory();
-        xmlDocBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        return sslContext.getSocketFactory();
     }
 
 
     /**
      * calculate the current down and up KB/s values by comparing the previous total values with the current ones
+     * (synchronized: the previous values are shared between the polling threads)
+     *
+     * the counters are taken to be read at the midpoint between sending the request and the response's arrival,
+     * the rates are based on the monotonic time between these points, so they don't depend on the time spent
+     * connecting, parsing or waiting for the thread pool
+     *
+     * while the host is unreachable, the circuit breaker skips most polls (see {@link #getLastOutcome()})
      *
      * @return float values for current down and up KB/s
      * @throws Exception
      */
-    public float[] getSpeedParams() throws Exception {
+    @Override
+    public synchronized float[] getSpeedParams() throws Exception {
+
+        update();
+        return new float[]{currentDownKBpS, currentUpKBpS};
+    }
+
+
+    /**
+     * poll IPFire once
+     *
+     * @return the calculated speed values together with the total values they're based on
+     * @throws Exception
+     */
+    @Override
+    public synchronized TrafficSample poll() throws Exception {
+
+        update();
+        return new TrafficSample(host, lastRefresh, lastTotalDownKB, lastTotalUpKB, currentDownKBpS, currentUpKBpS, lastOutcome, metricNames, metricValues);
+    }
+
+
+    /**
+     * poll IPFire once, like {@link #poll()}, but into a reused holder:
+     * on a kept-alive connection with a response the scanner can read, nothing is allocated on the heap
+     *
+     * @param sample receives the calculated speed values together with the total values they're based on
+     * @throws Exception
+     */
+    @Override
+    public synchronized void poll(final MutableTrafficSample sample) throws Exception {
+
+        update();
+        sample.set(host, lastRefresh, lastTotalDownKB, lastTotalUpKB, currentDownKBpS, currentUpKBpS, lastOutcome);
+        sample.setMetrics(metricNames, metricValues);
+        sample.setInterfaces(NO_INTERFACE_NAMES, NO_INTERFACE_VALUES, NO_INTERFACE_VALUES);
+    }
+
+
+    /**
+     * fetch these status pages with every poll, pipelined with speed.cgi on the same connection (one round trip for all)
+     * their metrics are part of every sample, a metric is {@link TrafficSample#NO_VALUE} if its page couldn't be read
+     *
+     * @param endpoints the status pages, empty for speed.cgi only
+     * @throws UnsupportedEncodingException
+     */
+    public synchronized void setStatusEndpoints(final List<StatusEndpoint> endpoints) throws UnsupportedEncodingException {
+
+        final byte[][] newRequests = new byte[endpoints.size() + 1][];
+        newRequests[0] = speedCgiRequest; // first: the status pages don't delay its round trip (the sample's time)
+        final SpeedCgiScanner[] newScanners = new SpeedCgiScanner[endpoints.size()];
+        final int[] newOffsets = new int[endpoints.size()];
+        int metricCount = 0;
+
+        for (int i = 0; i < endpoints.size(); i++) {
+            final StatusEndpoint endpoint = endpoints.get(i);
+            newRequests[i + 1] = createRequest(endpoint.getPath());
+            newScanners[i] = new SpeedCgiScanner(endpoint.getTagNames());
+            newOffsets[i] = metricCount;
+            metricCount += newScanners[i].getTagCount();
+        }
+
+        final String[] newMetricNames = new String[metricCount];
+        for (int i = 0; i < endpoints.size(); i++) {
+            final String[] tagNames = endpoints.get(i).getTagNames();
+            System.arraycopy(tagNames, 0, newMetricNames, newOffsets[i], tagNames.length);
+        }
+
+        statusEndpoints = Collections.unmodifiableList(new ArrayList<StatusEndpoint>(endpoints));
+        requests = newRequests;
+        statusScanners = newScanners;
+        metricOffsets = newOffsets;
+        metricNames = newMetricNames;
+        metricValues = new long[metricCount];
+        Arrays.fill(metricValues, TrafficSample.NO_VALUE);
+    }
+
+
+    /**
+     * @return the status pages fetched with every poll (empty for speed.cgi only)
+     */
+    public synchronized List<StatusEndpoint> getStatusEndpoints() {
+        return statusEndpoints;
+    }
+
+
+    /**
+     * poll IPFire and calculate the current speed values (see {@link #getSpeedParams()}),
+     * the results are left in the fields (no result arrays or samples, so the steady state doesn't allocate)
+     */
+    private void update() throws Exception {
 
         long totalDownKB        = lastTotalDownKB;
         long totalUpKB          = lastTotalUpKB;
-        float currentDownKBpS   = -1.0f;
-        float currentUpKBpS     = -1.0f;
+        currentDownKBpS         = -1.0f;
+        currentUpKBpS           = -1.0f;
+        Arrays.fill(metricValues, TrafficSample.NO_VALUE);
 
-        final String response = getContentFromSSLUrl();
+        if (!circuitBreaker.allowRequest()) {
+            lastOutcome = PollOutcome.CIRCUIT_OPEN;
+            return;
+        }
 
-        if (!response.isEmpty()) {
+        final Object event = POLL_EVENT.begin();
+        final long startNanos = System.nanoTime();
+        final boolean isReceived = getContentFromSSLUrl();
+        final int bytesRead = isReceived ? speedCgiBodyLength : 0;
+        long parseNanos = 0;
 
-            final long[] totalUpDownValues = parseSpeedCgiXml(response);
+        circuitBreaker.recordResult(lastOutcome.isConnectionFailure());
 
-            totalDownKB = totalUpDownValues[0];
-            totalUpKB   = totalUpDownValues[1];
+        boolean isParsed = false;
+        if (isReceived && speedCgiBodyLength == 0) {
+            fail(PollMetrics.Cause.PARSE, new IOException("empty response"));
+        }
+        else if (isReceived) {
+            final long parseStartNanos = System.nanoTime();
+            try {
+                parseTotals(speedCgiBody, 0, speedCgiBodyLength);
+                isParsed = true;
+            }
+            catch (Exception e) { // e.g. a counter that isn't a number: no rates this time, the next response may be fine
+                fail(PollMetrics.Cause.PARSE, e);
+            }
+            parseNanos = System.nanoTime() - parseStartNanos;
+        }
+
+        if (isParsed) {
+            metrics.record(PollMetrics.Phase.PARSE, parseNanos);
 
-            final long currentTime = System.currentTimeMillis();
+            totalDownKB = parsedTotalDownKB;
+            totalUpKB   = parsedTotalUpKB;
 
-            if (lastTotalDownKB != 0 && lastTotalUpKB != 0) {
-                currentDownKBpS = (totalDownKB - lastTotalDownKB)   * 1.0f / (currentTime - lastRefresh);
-                currentUpKBpS   = (totalUpKB - lastTotalUpKB)       * 1.0f / (currentTime - lastRefresh);
+            final long sampleNanos = speedCgiRequestNanos + (speedCgiStatusLineNanos - speedCgiRequestNanos) / 2; // midpoint of speed.cgi's round trip
+            final long currentTime = System.currentTimeMillis() - (System.nanoTime() - sampleNanos) / 1000000;
+            final float elapsedMillis = (sampleNanos - lastSampleNanos) / 1e6f;
+
+            if (lastTotalDownKB != 0 && lastTotalUpKB != 0 && elapsedMillis > 0) {
+                currentDownKBpS = (totalDownKB - lastTotalDownKB)   / elapsedMillis;
+                currentUpKBpS   = (totalUpKB - lastTotalUpKB)       / elapsedMillis;
             }
 
-            lastRefresh = currentTime;
+            lastRefresh = Math.max(currentTime, lastRefresh + 1); // strictly increasing, even if the wall clock was set back
+            lastSampleNanos = sampleNanos;
             lastTotalDownKB = totalDownKB;
             lastTotalUpKB = totalUpKB;
         }
 
-        return new float[]{currentDownKBpS, currentUpKBpS};
+        metrics.record(PollMetrics.Phase.POLL, System.nanoTime() - startNanos);
+        if (event != null) { // boxing the values only while recording
+            POLL_EVENT.commit(event, host, bytesRead, totalDownKB, totalUpKB, currentDownKBpS, currentUpKBpS, parseNanos);
+        }
     }
 
 
     /**
-     * get HTTP body via SSL from IPFire (ignoring self-signed certificate!)
-     * returns an empty string in case there are misc. Exceptions, but an illegal login will throw an IllegalArgumentException
+     * @return result of the last poll (e.g. to tell a timeout from a refused connection)
      */
-    protected String getContentFromSSLUrl() throws IOException {
+    @Override
+    public PollOutcome getLastOutcome() {
+        return lastOutcome;
+    }
 
-        Socket sslSocket = null;
-        PrintWriter outWriter = null;
-        InputStream inStream = null;
-        InputStreamReader inReader = null;
-        BufferedReader buffReader = null;
 
-        try {
-            sslSocket = sslSocketFactory.createSocket(host, port);
-
-            /* make request: */
-            final String authStringBase64 = new BASE64Encoder().encode((user + ":" + pass).getBytes());
-            outWriter = new PrintWriter(sslSocket.getOutputStream());
-            outWriter.println("GET " + IPFIRE_SPEED_CGI_PATH + " HTTP/1.0");
-            outWriter.println("HOST: " + host);
-            outWriter.println("Authorization: BASIC " + authStringBase64);
-            outWriter.println();
-            outWriter.flush();
-
-            /* response: */
-            inStream = sslSocket.getInputStream();
-            inReader = new InputStreamReader(inStream);
-            buffReader = new BufferedReader(inReader);
-
-            
-            /* manually separate body from HTTP response: */
-            String line = buffReader.readLine();
-            final StringBuffer httpHeader = new StringBuffer();
-            final StringBuffer httpBody = new StringBuffer();
-            boolean isHttpHeaderOver = false;
-
-            while (line != null) {
-                if (isHttpHeaderOver) {
-                    httpBody.append(line); // grab HTTP body
-                }
-                else {
-                    httpHeader.append(line); // grab HTTP header
-                }
+    /**
+     * @param pollTimeout max. time for a poll, including connect, handshake, a retry and reading the response (ms)
+     */
+    public void setPollTimeout(final long pollTimeout) {
 
-                if (line.isEmpty()) {
-                    isHttpHeaderOver = true; // first empty line separates HTTP header from body
-                }
+        if (pollTimeout < 1) {
+            throw new IllegalArgumentException("poll timeout must be > 0");
+        }
+        this.pollTimeout = pollTimeout;
+    }
+
+
+    /**
+     * @return the polled IPFire host
+     */
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+
+    /**
+     * @return the port of the web interface
+     */
+    public int getPort() {
+        return port;
+    }
 
-                line = buffReader.readLine();
+
+    /**
+     * get HTTP body via SSL from IPFire (ignoring self-signed certificate, unless pinned!)
+     * the SSL connection is kept alive between calls and re-opened if the server closed it,
+     * the whole request is bounded by the poll timeout.
+     * the status endpoints' pages are requested in the same pipeline (right after speed.cgi), their metrics are read as they arrive.
+     * once speed.cgi's response was read, a failure of the (optional) status pages only leaves their metrics without a value
+     * returns false in case there are misc. Exceptions or an unexpected HTTP status (counted by cause in the metrics,
+     * see {@link #getLastOutcome()}), but an illegal login will throw an IllegalArgumentException
+     *
+     * @return true if speed.cgi's response was read, its body is left in {@link #speedCgiBody} (only valid until the next call)
+     */
+    protected boolean getContentFromSSLUrl() throws IOException {
+
+        final Object event = REQUEST_EVENT.begin();
+        boolean isReceived = false;
+        try {
+            try {
+                connection.executePipelined(requests, statusResponseHandler, System.nanoTime() + pollTimeout * 1000000);
             }
+            catch (IOException e) {
+                if (connection.getPipelineAnswered() == 0) {
+                    throw e; // not even speed.cgi
+                }
+                statusResponseHandler.pagesFailed(connection.getPipelineAnswered(), e); // the connection is closed already
+            }
+            isReceived = true;
 
             /* check for unwanted HTTP responses: */
-            if (httpHeader.toString().contains("401 Authorization Required")) {
+            if (speedCgiStatusCode == 401) {
+                fail(PollMetrics.Cause.AUTH, null);
                 throw new IllegalArgumentException("Autorization failed! Please check the \"settings.properties\" and set a valid user/pass combination.");
             }
+            if (speedCgiStatusCode != 200) {
+                fail(PollMetrics.Cause.HTTP_STATUS, new IOException("HTTP status " + speedCgiStatusCode));
+                return false;
+            }
 
-            return httpBody.toString();
+            lastOutcome = PollOutcome.OK;
+            return true;
         }
         catch (IllegalArgumentException e) {
             throw e; // only allow this kind of exception to be thrown
         }
         catch (Exception e) {
-            return ""; // silent fail: empty string instead of HTTP body
+            fail(PollMetrics.classify(e), e);
+            if (PinnedCertificateStore.isCertificateChanged(e)) {
+                lastOutcome = PollOutcome.CERTIFICATE_CHANGED;
+            }
+            connection.close(); // don't reuse a connection in an unknown state
+            return false; // silent fail: no response instead of HTTP body
         }
         finally {
-            /* cleanup: */
-            if (outWriter != null) {
-                outWriter.close();
-            }
-            if (buffReader != null) {
-                buffReader.close();
-            }
-            if (inReader != null) {
-                inReader.close();
-            }
-            if (inStream != null) {
-                inStream.close();
-            }
-            if (sslSocket != null) {
-                sslSocket.close();
+            if (event != null) {
+                REQUEST_EVENT.commit(event, host,
+                        isReceived ? speedCgiStatusCode : 0,
+                        isReceived ? speedCgiBodyLength : 0,
+                        connection.getLastPhaseNanos(PollMetrics.Phase.HANDSHAKE) > 0,
+                        connection.getLastPhaseNanos(PollMetrics.Phase.HANDSHAKE) > 0 && connection.isLastHandshakeResumed(),
+                        connection.getLastPhaseNanos(PollMetrics.Phase.DNS),
+                        connection.getLastPhaseNanos(PollMetrics.Phase.CONNECT),
+                        connection.getLastPhaseNanos(PollMetrics.Phase.HANDSHAKE),
+                        connection.getLastPhaseNanos(PollMetrics.Phase.FIRST_BYTE),
+                        connection.getLastPhaseNanos(PollMetrics.Phase.BODY));
             }
         }
     }
 
 
+    /**
+     * count a failed poll and remember its outcome
+     */
+    private void fail(final PollMetrics.Cause cause, final Exception e) {
+        metrics.recordFailure(cause, host, e);
+        lastOutcome = PollOutcome.fromCause(cause);
+    }
+
+
+    /**
+     * @param metrics receives the timing of every poll phase and the failures (e.g. shared by all hosts)
+     */
+    @Override
+    public void setMetrics(final PollMetrics metrics) {
+        this.metrics = metrics;
+        connection.setMetrics(metrics);
+    }
+
+    /**
+     * @return the metrics of this host's polls
+     */
+    @Override
+    public PollMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @param pinnedCertificates trust only the certificate pinned for this host (pinned with the first connection),
+     *          null to trust any certificate
+     */
+    public void setPinnedCertificates(final PinnedCertificateStore pinnedCertificates) {
+        this.pinnedCertificates = pinnedCertificates;
+    }
+
+
+    /**
+     * @return the keep-alive connection to IPFire (e.g. for connection/request statistics)
+     */
+    public KeepAliveSSLConnection getConnection() {
+        return connection;
+    }
+
+
+    /**
+     * close the connection to IPFire, the next poll will open a new one
+     */
+    @Override
+    public void close() {
+        connection.close();
+    }
+
+
     /**
      * parse an IPFire speed.cgi XML file for "total down KB" and "total up KB" values
      *
@@ -221,15 +507,175 @@ public final class IPFireDataProvider {
      */
     protected long[] parseSpeedCgiXml(final String xmlString) throws Exception {
 
-        final Document doc = xmlDocBuilder.parse(new InputSource(new StringReader(xmlString)));
+        final byte[] xmlBytes = xmlString.getBytes("ISO-8859-1");
+        return parseSpeedCgiXml(xmlBytes, 0, xmlBytes.length);
+    }
+
+
+    /**
+     * parse an IPFire speed.cgi XML file for "total down KB" and "total up KB" values
+     * the values are scanned directly from the bytes, only documents the scanner can't read are parsed by the (validating) DOM parser
+     *
+     * @param xmlData buffer holding the XML file speed.cgi
+     * @param offset start of the XML file
+     * @param length length of the XML file
+     * @return long values for "total down KB" and "total up KB"
+     * @throws Exception in case there was a problem reading the values
+     */
+    protected long[] parseSpeedCgiXml(final byte[] xmlData, final int offset, final int length) throws Exception {
+
+        parseTotals(xmlData, offset, length);
+        return new long[]{parsedTotalDownKB, parsedTotalUpKB};
+    }
+
+
+    /**
+     * parse an IPFire speed.cgi XML file into {@link #parsedTotalDownKB} and {@link #parsedTotalUpKB}
+     * (the scanner doesn't allocate, only the DOM fallback does)
+     */
+    private void parseTotals(final byte[] xmlData, final int offset, final int length) throws Exception {
+
+        final Object event = PARSE_EVENT.begin();
+
+        final boolean isScanned = speedCgiScanner.scan(xmlData, offset, length);
+        if (isScanned) {
+            parsedTotalDownKB = speedCgiScanner.getValue(0); // total download in KB
+            parsedTotalUpKB = speedCgiScanner.getValue(1); // total upload in KB
+        }
+        else {
+            final long[] totalUpDownValues = parseSpeedCgiXmlDom(new InputSource(new ByteArrayInputStream(xmlData, offset, length)));
+            parsedTotalDownKB = totalUpDownValues[0];
+            parsedTotalUpKB = totalUpDownValues[1];
+        }
+
+        if (event != null) {
+            PARSE_EVENT.commit(event, length, parsedTotalDownKB, parsedTotalUpKB, !isScanned);
+        }
+    }
+
+
+    /**
+     * parse an IPFire speed.cgi XML file using a DOM (fallback for documents the scanner can't read)
+     */
+    private long[] parseSpeedCgiXmlDom(final InputSource xmlSource) throws Exception {
+
+        final Document doc = xmlDocBuilder.parse(xmlSource);
 
         final Element totalDownElement = (Element) doc.getElementsByTagName("rxb").item(0);
         final Element totalUpElement = (Element) doc.getElementsByTagName("txb").item(0);
 
         return new long[]{
-            Long.parseLong(totalDownElement.getTextContent()), // total download in KB
-            Long.parseLong(totalUpElement.getTextContent()) // total upload in KB
+            Long.parseLong(totalDownElement.getTextContent().trim()), // total download in KB
+            Long.parseLong(totalUpElement.getTextContent().trim()) // total upload in KB
         };
     }
 
+
+    /**
+     * reads the metrics of the status endpoints from their responses (speed.cgi's response is left to {@link #update()})
+     */
+    private final class StatusResponseHandler implements KeepAliveSSLConnection.ResponseHandler {
+
+        @Override
+        public void responseReceived(final int requestIndex, final HttpResponseReader response) {
+
+            if (requestIndex == 0) { // speed.cgi: keep it, the reader moves on to the status pages
+                speedCgiStatusCode = response.getStatusCode();
+                speedCgiRequestNanos = connection.getLastRequestNanos(); // of this request, even if the status pages are retried
+                speedCgiStatusLineNanos = response.getStatusLineNanos();
+                speedCgiBodyLength = response.getBodyLength();
+                if (speedCgiBody.length < speedCgiBodyLength) {
+                    speedCgiBody = new byte[speedCgiBodyLength];
+                }
+                System.arraycopy(response.getBody(), 0, speedCgiBody, 0, speedCgiBodyLength);
+                return;
+            }
+
+            final int endpointIndex = requestIndex - 1;
+            final SpeedCgiScanner scanner = statusScanners[endpointIndex];
+            if (response.getStatusCode() != 200) {
+                metrics.recordFailure(PollMetrics.Cause.HTTP_STATUS, host,
+                        new IOException(statusEndpoints.get(endpointIndex).getPath() + ": HTTP status " + response.getStatusCode()));
+            }
+            else if (!scanner.scan(response.getBody(), 0, response.getBodyLength())) {
+                metrics.recordFailure(PollMetrics.Cause.PARSE, host,
+                        new IOException(statusEndpoints.get(endpointIndex).getPath() + ": no numeric " + Arrays.toString(statusEndpoints.get(endpointIndex).getTagNames())));
+            }
+            else {
+                for (int i = 0; i < scanner.getTagCount(); i++) {
+                    metricValues[metricOffsets[endpointIndex] + i] = scanner.getValue(i);
+                }
+            }
+        }
+
+
+        /**
+         * count the status pages that weren't answered (their metrics keep {@link TrafficSample#NO_VALUE})
+         *
+         * @param answered number of requests of the pipeline that were answered (speed.cgi and the pages before the failure)
+         * @param e the failure
+         */
+        void pagesFailed(final int answered, final IOException e) {
+
+            for (int endpointIndex = answered - 1; endpointIndex < statusScanners.length; endpointIndex++) {
+                metrics.recordFailure(PollMetrics.classify(e), host, new IOException(statusEndpoints.get(endpointIndex).getPath() + ": " + e, e));
+            }
+        }
+    }
+
+
+    /**
+     * build the complete (keep-alive) HTTP/1.1 GET request including the login, it doesn't change between polls
+     *
+     * @param path absolute path on the IPFire web interface
+     * @return request bytes, ready to be written to the socket
+     */
+    private byte[] createRequest(final String path) throws UnsupportedEncodingException {
+        return createRequest(host, user, pass, path);
+    }
+
+
+    /**
+     * build the complete (keep-alive) HTTP/1.1 GET request including the login (e.g. for another transport)
+     *
+     * @param host hostname of the firewall
+     * @param user username (web interface admin)
+     * @param pass password (web interface admin)
+     * @param path absolute path on the IPFire web interface
+     * @return request bytes, ready to be written to the socket
+     */
+    static byte[] createRequest(final String host, final String user, final String pass, final String path) throws UnsupportedEncodingException {
+
+        final String authStringBase64 = encodeBase64((user + ":" + pass).getBytes("ISO-8859-1"));
+
+        return ("GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "Authorization: Basic " + authStringBase64 + "\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n").getBytes("ISO-8859-1");
+    }
+
+
+    /**
+     * encode bytes as Base64 (RFC 4648, with padding) for HTTP Basic authentication
+     */
+    private static String encodeBase64(final byte[] data) {
+
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        final StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+
+        for (int i = 0; i < data.length; i += 3) {
+            final int b0 = data[i] & 0xff;
+            final int b1 = i + 1 < data.length ? data[i + 1] & 0xff : 0;
+            final int b2 = i + 2 < data.length ? data[i + 2] & 0xff : 0;
+
+            encoded.append(alphabet.charAt(b0 >> 2));
+            encoded.append(alphabet.charAt(((b0 & 0x03) << 4) | (b1 >> 4)));
+            encoded.append(i + 1 < data.length ? alphabet.charAt(((b1 & 0x0f) << 2) | (b2 >> 6)) : '=');
+            encoded.append(i + 2 < data.length ? alphabet.charAt(b2 & 0x3f) : '=');
+        }
+
+        return encoded.toString();
+    }
+
 }
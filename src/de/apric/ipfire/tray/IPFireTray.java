@@ -16,13 +16,22 @@
  */
 package de.apric.ipfire.tray;
 
+import de.apric.ipfire.tray.gui.ErrorDialog;
+import java.awt.Dimension;
 import java.awt.Image;
+import java.awt.MouseInfo;
+import java.awt.Point;
+import java.awt.PointerInfo;
 import java.awt.SystemTray;
 import java.awt.TrayIcon;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Properties;
-import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
 
 /**
  * 
@@ -31,15 +40,27 @@ import java.util.concurrent.TimeUnit;
 public final class IPFireTray extends MouseAdapter {
 
     /* options: */
-    private long refreshInterval = 0;
     private float maxDownKBpS = 0;
     private float maxUpKBpS = 0;
+    private String[] graphInterfaces = null; // null: the totals of the host, else the interfaces shown (stacked if several)
+    private float[] graphDownKBpS;
+    private float[] graphUpKBpS;
     
-    private final IPFireDataProvider dataProvider;
+    private final MultiHostPoller poller;
+    private final TrafficDataSource dataProvider; // the host shown in the tray
     
     private final TrayPopupMenu popupMenu;
     private final TrayMouseAdapter trayMouseAdapter;
     private final TrayIconTooltip trayIconTooltip;
+    private final DynamicTrayImage trayImage;
+
+    /* user presence: */
+    private static final long USER_AWAY_AFTER = 5 * 60 * 1000; // ms without mouse movement
+    private static final long PRESENCE_CHECK_INTERVAL = 10 * 1000; // ms, reading the pointer location allocates
+    private Point lastPointerLocation = null;
+    private long lastPointerMove = System.currentTimeMillis();
+    private long lastPresenceCheck = 0;
+    private boolean isUserAway = false;
 
     /**
      * creates a tray icon (the main application) and adds it to the tray
@@ -57,16 +78,23 @@ public final class IPFireTray extends MouseAdapter {
             throw new UnsupportedOperationException("System Tray not supported!");
         }
 
-        dataProvider = new IPFireDataProvider(
-                validProperties.getProperty("host"),
-                Integer.parseInt(validProperties.getProperty("port")),
-                validProperties.getProperty("user"),
-                validProperties.getProperty("pass"));
+        poller = MultiHostPoller.fromProperties(validProperties);
+        dataProvider = poller.getProvider(0);
 
         /* read properties: */
-        refreshInterval = Long.parseLong(validProperties.getProperty("interval"));
         maxDownKBpS = Float.parseFloat(validProperties.getProperty("maxDownKBpS"));
         maxUpKBpS = Float.parseFloat(validProperties.getProperty("maxUpKBpS"));
+        trayImage = validProperties.getProperty("historySize") != null // optional
+                ? DynamicTrayImage.forSystemTray(Integer.parseInt(validProperties.getProperty("historySize").trim()))
+                : DynamicTrayImage.forSystemTray();
+        if (validProperties.getProperty("renderer") != null) { // optional
+            trayImage.setRenderer(DynamicTrayImage.Renderer.valueOf(validProperties.getProperty("renderer").trim().toUpperCase()));
+        }
+        if (validProperties.getProperty("graphInterfaces") != null) { // optional
+            graphInterfaces = validProperties.getProperty("graphInterfaces").trim().split("\\s*,\\s*");
+            graphDownKBpS = new float[graphInterfaces.length];
+            graphUpKBpS = new float[graphInterfaces.length];
+        }
 
 
         /* tray icon: */
@@ -88,50 +116,128 @@ public final class IPFireTray extends MouseAdapter {
         sysTray.add(trayIcon);
 
 
-        /* start update thread: */
-        new Thread() {
+        /* start polling (the tray shows the first host, rendered on the EDT): */
+        poller.addRenderer(0, new TrafficSampleRenderer() {
 
             @Override
-            public void run() {
-                while (!this.isInterrupted()) {
-                    try {
-                        updateTray(trayIcon);
-                        TimeUnit.MILLISECONDS.sleep(refreshInterval);
-                    } catch (Exception ex) {
-                        throw new RuntimeException(ex); // will go up the ladder
+            public void render(final int hostIndex, final MutableTrafficSample sample) {
+                updateTray(trayIcon, sample);
+            }
+
+            @Override
+            public void pollingStopped(final int hostIndex, final Exception e) {
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        new ErrorDialog(e, false).setVisible(true); // show non-critical error dialog
                     }
+                });
+            }
+        });
 
+        /* record the raw counters (optional): */
+        final HistoryRecorder historyRecorder = HistoryRecorder.fromProperties(validProperties, poller);
+        if (historyRecorder != null) {
+            poller.addListener(historyRecorder);
+
+            /* on exit (e.g. by the popup menu), stop polling and write the mapped history files to disk: */
+            Runtime.getRuntime().addShutdownHook(new Thread("IPFireTray shutdown") {
+
+                @Override
+                public void run() {
+                    poller.stop();
+                    try {
+                        historyRecorder.close();
+                    }
+                    catch (IOException e) {
+                        // silent fail: nobody left to tell, the history is optional
+                    }
                 }
-            }
-        }.start();
+            });
+        }
+
+        /* publish poll timing and failures (e.g. for JConsole): */
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(poller.getMetrics(), new ObjectName(PollMetrics.OBJECT_NAME));
+        }
+        catch (JMException e) {
+            // silent fail: the metrics are optional
+        }
+
+        poller.start();
 
     }
 
     /**
-     * update tray icon and tooltip
+     * update tray icon and tooltip (on the EDT)
      * 
      * @param trayIcon
-     * @throws Exception
+     * @param sample the latest sample of the host shown in the tray (only valid during the call)
      */
-    private void updateTray(final TrayIcon trayIcon) throws Exception {
+    private void updateTray(final TrayIcon trayIcon, final MutableTrafficSample sample) {
+
+        final PollMetrics metrics = poller.getMetrics();
 
-        final float[] speedValues = dataProvider.getSpeedParams();
+        /* the error bars only for a failed poll, the very first one can't have a speed yet: */
+        final boolean isOk = sample.getOutcome() == PollOutcome.OK;
+        final float downKBpS = isOk ? Math.max(0, sample.getDownKBpS()) : sample.getDownKBpS();
+        final float upKBpS   = isOk ? Math.max(0, sample.getUpKBpS())   : sample.getUpKBpS();
+
+        final long renderStartNanos = System.nanoTime();
+        final Image image = graphInterfaces != null ? getInterfacesIcon(sample, isOk) : getDynamicIcon(downKBpS, upKBpS);
+        final long renderEndNanos = System.nanoTime();
+        metrics.record(PollMetrics.Phase.RENDER, renderEndNanos - renderStartNanos);
+
+        if (trayImage.isImageChanged()) {
+            trayIcon.setImage(image); // no need to repaint a pixel-identical image (e.g. on an idle link)
+            metrics.record(PollMetrics.Phase.SET_IMAGE, System.nanoTime() - renderEndNanos);
+        }
 
-        trayIcon.setImage(getDynamicIcon(speedValues[0], speedValues[1]));
+        trayIconTooltip.setValues(sample.getOutcome(), downKBpS, upKBpS); // only shown (formatted) while visible
 
-        // @TODO: optimize
-        trayIconTooltip.setDownloadKBpS(speedValues[0]);
-        trayIconTooltip.setUploadKBpS(speedValues[1]);
-        trayIconTooltip.pack();
+        poller.setUserAway(isUserAway());
+    }
+
+    /**
+     * guess whether anybody can see the tray icon: the mouse pointer hasn't moved for a while
+     * or isn't available at all (e.g. on a locked screen)
+     * the pointer is only looked at every few seconds, in between the last guess is returned
+     *
+     * @return true if the user seems to be away
+     */
+    private boolean isUserAway() {
+
+        final long now = System.currentTimeMillis();
+        if (now - lastPresenceCheck < PRESENCE_CHECK_INTERVAL && now >= lastPresenceCheck) {
+            return isUserAway;
+        }
+        lastPresenceCheck = now;
+
+        final PointerInfo pointerInfo = MouseInfo.getPointerInfo();
+        if (pointerInfo == null) {
+            isUserAway = true;
+            return isUserAway;
+        }
+
+        final Point location = pointerInfo.getLocation();
+        if (!location.equals(lastPointerLocation)) {
+            lastPointerLocation = location;
+            lastPointerMove = now;
+        }
+        isUserAway = now - lastPointerMove > USER_AWAY_AFTER;
+        return isUserAway;
     }
 
     public void mouseStay(final MouseEvent e) {
         trayIconTooltip.showTooltip(((TrayMouseAdapter) e.getSource()).getEstimatedTopLeft());
+        poller.setUserWatching(true);
     }
 
     @Override
     public void mousePressed(final MouseEvent e) {
         trayIconTooltip.hideTooltip();
+        poller.setUserWatching(false);
         if (e.isPopupTrigger()) {
             popupMenu.showPopup(e.getPoint());
         }
@@ -144,9 +250,17 @@ public final class IPFireTray extends MouseAdapter {
         }
     }
 
+    @Override
+    public void mouseEntered(final MouseEvent e) {
+        /* the tray's icon size may have changed meanwhile (e.g. another panel size), the graph keeps its history: */
+        final Dimension size = SystemTray.getSystemTray().getTrayIconSize();
+        trayImage.resize(size.width, size.height);
+    }
+
     @Override
     public void mouseExited(final MouseEvent e) {
         trayIconTooltip.hideTooltip();
+        poller.setUserWatching(false);
     }
 
     /**
@@ -157,6 +271,34 @@ public final class IPFireTray extends MouseAdapter {
      * @return the updated image showing the current speed graph
      */
     private Image getDynamicIcon(final float currentDownKBpS, final float currentUpKBpS) {
-        return DynamicTrayImage.getDynamicSpeedImageV2(currentDownKBpS, currentUpKBpS, maxDownKBpS, maxUpKBpS);
+        return trayImage.getDynamicSpeedImageV2(currentDownKBpS, currentUpKBpS, maxDownKBpS, maxUpKBpS);
+    }
+
+    /**
+     * get tray icon image of the configured interfaces (one graph, or the interfaces stacked),
+     * based on the speed of each interface read with the sample's poll
+     *
+     * @param sample the latest sample of the host shown in the tray
+     * @param isOk false if the poll failed
+     * @return the updated image, an interface the sample doesn't have is shown as a connection problem
+     */
+    private Image getInterfacesIcon(final MutableTrafficSample sample, final boolean isOk) {
+
+        for (int k = 0; k < graphInterfaces.length; k++) {
+            final int index = sample.getInterfaceIndex(graphInterfaces[k]);
+            if (index < 0) {
+                graphDownKBpS[k] = -1.0f;
+                graphUpKBpS[k] = -1.0f;
+            }
+            else {
+                graphDownKBpS[k] = isOk ? Math.max(0, sample.getInterfaceDownKBpS(index)) : sample.getInterfaceDownKBpS(index);
+                graphUpKBpS[k]   = isOk ? Math.max(0, sample.getInterfaceUpKBpS(index))   : sample.getInterfaceUpKBpS(index);
+            }
+        }
+
+        if (graphInterfaces.length == 1) {
+            return getDynamicIcon(graphDownKBpS[0], graphUpKBpS[0]);
+        }
+        return trayImage.getStackedSpeedImage(graphDownKBpS, graphUpKBpS, graphInterfaces.length, maxDownKBpS, maxUpKBpS);
     }
 }
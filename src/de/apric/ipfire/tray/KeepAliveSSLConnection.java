@@ -0,0 +1,517 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * a single HTTP/1.1 keep-alive connection via SSL:
+ * the socket (and its TLS session) is opened once and reused for every request,
+ * if the server closes it, a new one is opened transparently
+ *
+ * the SSL sessions are cached by the factory's context (per host and port), so a new connection
+ * usually resumes the previous session with an abbreviated handshake (no certificate exchange)
+ *
+ * every request has a deadline covering connect, handshake and reading the response
+ * (only the name lookup can't be bounded, it's left to the OS resolver)
+ *
+ * several requests can be pipelined: they're sent at once and the responses are read one after another,
+ * so fetching several pages costs a single round trip
+ *
+ * @author apric
+ */
+public final class KeepAliveSSLConnection {
+
+    public static final long MAX_RETRY_JITTER_MILLIS = 100;
+    private static final int OUTPUT_BUFFER_SIZE = 8192; // pipelined requests leave in one SSL record
+
+    /**
+     * receives the responses of pipelined requests
+     */
+    public interface ResponseHandler {
+
+        /**
+         * called for every response in the order of the requests (with the connection locked), must not throw
+         *
+         * @param requestIndex index of the request the response belongs to
+         * @param response the decoded response, only valid during the call
+         */
+        void responseReceived(int requestIndex, HttpResponseReader response);
+    }
+
+    private final SSLSocketFactory sslSocketFactory;
+    private final String host;
+    private final int    port;
+
+    private Socket socket;
+    private Socket plainSocket; // below the SSL socket
+    private InputStream inStream;
+    private OutputStream outStream;
+    private final HttpResponseReader responseReader = new HttpResponseReader();
+    private final Random random = new Random();
+    private long deadlineNanos = 0; // of the current request
+    private PollMetrics metrics;
+    private long lastRequestNanos = 0;
+    private SSLSession lastSession; // of the last handshake
+    private boolean isLastHandshakeResumed = false;
+    private final long[] lastPhaseNanos = new long[PollMetrics.Phase.values().length]; // of the last request
+    private int pipelineAnswered = 0; // requests of the current pipeline answered so far
+
+    /* statistics: */
+    private long connectionCount = 0;
+    private long resumedCount = 0;
+    private long totalRequestCount = 0;
+    private int requestsOnCurrentConnection = 0;
+    private int requestsOnLastConnection = 0;
+
+
+    /**
+     * create a (not yet connected) keep-alive connection, the socket will be opened with the first request
+     *
+     * @param sslSocketFactory factory for the SSL sockets
+     * @param host valid hostname
+     * @param port valid port
+     * @param metrics receives the timing of connection setup, first byte and body
+     */
+    public KeepAliveSSLConnection(final SSLSocketFactory sslSocketFactory, final String host, final int port, final PollMetrics metrics) {
+
+        this.sslSocketFactory = sslSocketFactory;
+        this.host = host;
+        this.port = port;
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * send a complete HTTP/1.1 request and read the response
+     * if it fails and there's time left until the deadline, the request is sent once more on a new connection:
+     * right away if the server closed the idle connection, after a short random delay if a fresh connection failed
+     *
+     * @param request the raw request bytes (request line, header and the empty line)
+     * @param deadlineNanos {@link System#nanoTime()} by which the response must have been read
+     * @return the decoded response (status code and body), only valid until the next request
+     * @throws SocketTimeoutException in case the deadline passed
+     * @throws IOException in case the retry failed, too
+     */
+    public synchronized HttpResponseReader execute(final byte[] request, final long deadlineNanos) throws IOException {
+
+        Arrays.fill(lastPhaseNanos, 0);
+        this.deadlineNanos = deadlineNanos;
+
+        final boolean isReused = socket != null;
+        try {
+            return executeOnce(request);
+        }
+        catch (IOException e) {
+            prepareRetry(e, isReused);
+        }
+
+        return executeOnce(request); // one more try on a new connection
+    }
+
+
+    /**
+     * send several complete HTTP/1.1 requests at once (pipelined) and read their responses in turn
+     * if the server closes the connection after a response, the remaining requests are sent on a new one.
+     * if it fails before the first response and there's time left until the deadline, the requests are sent once more (see {@link #execute}),
+     * once a response was handled there's no retry: the failure is thrown, {@link #getPipelineAnswered()} tells how many were answered
+     * (e.g. to keep the main response, the requests after it being optional)
+     *
+     * @param requests the raw request bytes (request line, header and the empty line), only idempotent requests (e.g. GET)
+     * @param handler receives every response right after it was read
+     * @param deadlineNanos {@link System#nanoTime()} by which all responses must have been read
+     * @return the response to the last request, only valid until the next request
+     * @throws SocketTimeoutException in case the deadline passed
+     * @throws IOException in case the retry failed, too
+     */
+    public synchronized HttpResponseReader executePipelined(final byte[][] requests, final ResponseHandler handler, final long deadlineNanos) throws IOException {
+
+        Arrays.fill(lastPhaseNanos, 0);
+        this.deadlineNanos = deadlineNanos;
+        pipelineAnswered = 0;
+
+        final boolean isReused = socket != null;
+        try {
+            return executePipelinedOnce(requests, handler);
+        }
+        catch (IOException e) {
+            if (pipelineAnswered > 0) {
+                abort();
+                throw e;
+            }
+            prepareRetry(e, isReused);
+        }
+
+        return executePipelinedOnce(requests, handler); // the requests once more on a new connection
+    }
+
+
+    /**
+     * @return the number of requests of the last pipeline whose responses were handled (all of them, unless it failed)
+     */
+    public synchronized int getPipelineAnswered() {
+        return pipelineAnswered;
+    }
+
+
+    /**
+     * drop the failed connection and wait before the retry, if necessary
+     *
+     * @param e the failure
+     * @param isReused whether the failed connection had been used before
+     * @throws IOException the given failure, in case there's no time left for a retry
+     */
+    private void prepareRetry(final IOException e, final boolean isReused) throws IOException {
+
+        abort();
+
+        final long remainingNanos = deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+            throw e;
+        }
+        if (!isReused) { // a fresh connection failed: don't retry in lockstep with other clients
+            final long maxJitterMillis = Math.min(MAX_RETRY_JITTER_MILLIS, remainingNanos / 4000000);
+            try {
+                Thread.sleep((long) (random.nextDouble() * maxJitterMillis));
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted before retry");
+            }
+        }
+    }
+
+
+    /**
+     * @param metrics receives the timing of connection setup, first byte and body
+     */
+    public synchronized void setMetrics(final PollMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * @return {@link System#nanoTime()} when the last request was sent (the response's arrival is {@link HttpResponseReader#getStatusLineNanos()}),
+     *          during a {@link ResponseHandler} call: when the request of that response was sent
+     *          (pipelined requests are sent at once, the unanswered ones on a new connection if the server closed the current one)
+     */
+    public synchronized long getLastRequestNanos() {
+        return lastRequestNanos;
+    }
+
+
+    /**
+     * @param phase
+     * @return duration of the given phase during the last request (ns), 0 if it didn't occur (e.g. no handshake on a reused connection)
+     */
+    public synchronized long getLastPhaseNanos(final PollMetrics.Phase phase) {
+        return lastPhaseNanos[phase.ordinal()];
+    }
+
+
+    /**
+     * @return number of connections (i.e. SSL handshakes) opened so far
+     */
+    public synchronized long getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * @return number of connections that resumed a cached SSL session
+     */
+    public synchronized long getResumedCount() {
+        return resumedCount;
+    }
+
+    /**
+     * @return true if the last opened connection resumed a cached SSL session
+     */
+    public synchronized boolean isLastHandshakeResumed() {
+        return isLastHandshakeResumed;
+    }
+
+    /**
+     * @return number of requests answered on all connections
+     */
+    public synchronized long getTotalRequestCount() {
+        return totalRequestCount;
+    }
+
+    /**
+     * @return number of requests answered on the currently open connection
+     */
+    public synchronized int getRequestsOnCurrentConnection() {
+        return requestsOnCurrentConnection;
+    }
+
+    /**
+     * @return number of requests the previous (closed) connection served
+     */
+    public synchronized int getRequestsOnLastConnection() {
+        return requestsOnLastConnection;
+    }
+
+
+    /**
+     * close the socket (if open), the next request will open a new one
+     */
+    public synchronized void close() {
+        close(socket);
+    }
+
+
+    /**
+     * close a broken connection right away: without the SSL close_notify (the server might not answer it)
+     */
+    private void abort() {
+        close(plainSocket);
+    }
+
+
+    private void close(final Socket closedSocket) {
+
+        if (socket != null) {
+            try {
+                closedSocket.close();
+            }
+            catch (IOException e) {
+                // ignore, the socket is gone anyway
+            }
+            socket = null;
+            plainSocket = null;
+            inStream = null;
+            outStream = null;
+            responseReader.reset();
+
+            requestsOnLastConnection = requestsOnCurrentConnection;
+            requestsOnCurrentConnection = 0;
+        }
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return host + ":" + port + " (connections: " + connectionCount
+                + ", resumed: " + resumedCount
+                + ", requests: " + totalRequestCount
+                + ", on current connection: " + requestsOnCurrentConnection
+                + ", on last connection: " + requestsOnLastConnection + ")";
+    }
+
+
+    /**
+     * send the request on the current connection (opening one if necessary) and read one response
+     */
+    private HttpResponseReader executeOnce(final byte[] request) throws IOException {
+
+        if (socket == null) {
+            connect();
+        }
+
+        final long requestNanos = System.nanoTime();
+        lastRequestNanos = requestNanos;
+        outStream.write(request);
+        outStream.flush();
+
+        responseReader.readResponse(inStream);
+
+        final long statusLineNanos = responseReader.getStatusLineNanos();
+        record(PollMetrics.Phase.FIRST_BYTE, statusLineNanos - requestNanos);
+        record(PollMetrics.Phase.BODY, System.nanoTime() - statusLineNanos);
+
+        requestsOnCurrentConnection++;
+        totalRequestCount++;
+
+        if (!responseReader.isKeepAlive()) {
+            close();
+        }
+
+        return responseReader;
+    }
+
+
+    /**
+     * send the unanswered requests of the pipeline (opening a connection if necessary) and read their responses,
+     * continuing on a new connection as long as the server closes the current one
+     */
+    private HttpResponseReader executePipelinedOnce(final byte[][] requests, final ResponseHandler handler) throws IOException {
+
+        while (pipelineAnswered < requests.length) {
+
+            if (socket == null) {
+                connect();
+            }
+
+            final long requestNanos = System.nanoTime();
+            lastRequestNanos = requestNanos;
+            for (int i = pipelineAnswered; i < requests.length; i++) {
+                outStream.write(requests[i]);
+            }
+            outStream.flush();
+
+            boolean isKeepAlive = true;
+            long firstStatusLineNanos = 0;
+            while (isKeepAlive && pipelineAnswered < requests.length) {
+
+                responseReader.readResponse(inStream);
+                if (firstStatusLineNanos == 0) {
+                    firstStatusLineNanos = responseReader.getStatusLineNanos();
+                    record(PollMetrics.Phase.FIRST_BYTE, firstStatusLineNanos - requestNanos);
+                }
+                requestsOnCurrentConnection++;
+                totalRequestCount++;
+                isKeepAlive = responseReader.isKeepAlive();
+
+                try {
+                    handler.responseReceived(pipelineAnswered++, responseReader);
+                }
+                catch (RuntimeException e) {
+                    abort(); // the remaining responses are still on their way
+                    throw e;
+                }
+            }
+            record(PollMetrics.Phase.BODY, System.nanoTime() - firstStatusLineNanos);
+
+            if (!isKeepAlive) {
+                close(); // the rest (if any) on a new connection
+            }
+        }
+
+        return responseReader;
+    }
+
+
+    private void record(final PollMetrics.Phase phase, final long nanos) {
+        lastPhaseNanos[phase.ordinal()] += nanos; // summed up in case of a retry
+        metrics.record(phase, nanos);
+    }
+
+
+    /**
+     * open a new connection, the phases (name lookup, TCP connect, SSL handshake) are done one by one to time them separately
+     */
+    private void connect() throws IOException {
+
+        final long startNanos = System.nanoTime();
+        final InetAddress address = InetAddress.getByName(host);
+        final long resolvedNanos = System.nanoTime();
+        record(PollMetrics.Phase.DNS, resolvedNanos - startNanos);
+
+        final Socket newPlainSocket = new Socket();
+        final SSLSocket sslSocket;
+        try {
+            newPlainSocket.connect(new InetSocketAddress(address, port), remainingMillis());
+            final long connectedNanos = System.nanoTime();
+            record(PollMetrics.Phase.CONNECT, connectedNanos - resolvedNanos);
+
+            sslSocket = (SSLSocket) sslSocketFactory.createSocket(newPlainSocket, host, port, true);
+            sslSocket.setSoTimeout(remainingMillis());
+            sslSocket.startHandshake();
+            record(PollMetrics.Phase.HANDSHAKE, System.nanoTime() - connectedNanos);
+        }
+        catch (IOException e) {
+            newPlainSocket.close();
+            throw e;
+        }
+
+        /* a resumed session keeps the creation time of the cached one
+           (TLS 1.2 hands out the cached session itself, TLS 1.3 a copy): */
+        final SSLSession session = sslSocket.getSession();
+        isLastHandshakeResumed = lastSession != null
+                && (session == lastSession || session.getCreationTime() == lastSession.getCreationTime());
+        lastSession = session;
+        if (isLastHandshakeResumed) {
+            resumedCount++;
+        }
+        metrics.recordHandshake(isLastHandshakeResumed);
+
+        socket = sslSocket;
+        plainSocket = newPlainSocket;
+        inStream = new DeadlineInputStream(sslSocket); // buffered by the response reader
+        outStream = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+        connectionCount++;
+    }
+
+
+    /**
+     * @return time left until the deadline (ms, at least 1, since 0 would mean "no timeout")
+     * @throws SocketTimeoutException in case the deadline has passed
+     */
+    private int remainingMillis() throws SocketTimeoutException {
+
+        final long remainingNanos = deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+            throw new SocketTimeoutException("poll deadline exceeded");
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (remainingNanos + 999999) / 1000000));
+    }
+
+
+    /**
+     * limits every read to the time left until the request's deadline (checked before every read),
+     * a read never blocks beyond the deadline: the socket's timeout is lowered as soon as it's longer than the time left.
+     * it's only raised once it's more than a quarter shorter than the time left (e.g. by the next request's deadline):
+     * setting it is a system call and boxes the value, so a short timeout is kept as long as it doesn't cut the time left by much
+     */
+    private final class DeadlineInputStream extends FilterInputStream {
+
+        private final Socket timedSocket;
+        private int soTimeout = -1; // set on the socket, -1: not yet
+
+        DeadlineInputStream(final Socket timedSocket) throws IOException {
+            super(timedSocket.getInputStream());
+            this.timedSocket = timedSocket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            limitToDeadline();
+            return super.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            limitToDeadline();
+            return super.read(b, off, len);
+        }
+
+        private void limitToDeadline() throws IOException {
+
+            final int remaining = remainingMillis();
+            if (soTimeout < 0 || soTimeout > remaining || soTimeout < remaining - remaining / 4) {
+                timedSocket.setSoTimeout(remaining);
+                soTimeout = remaining;
+            }
+        }
+    }
+
+}
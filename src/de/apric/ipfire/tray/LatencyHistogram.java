@@ -0,0 +1,152 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock-free latency histogram with log-linear buckets (8 per power of two, i.e. max. 12.5% relative error),
+ * recording is a handful of atomic increments without any allocation, so it can be used on every poll
+ *
+ * values are recorded in nanoseconds and bucketed in microseconds (from 1 µs up to about 12 days)
+ *
+ * @author apric
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // 2^40 µs
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+
+    /**
+     * @param nanos duration to record (negative values are recorded as 0)
+     */
+    public void record(final long nanos) {
+
+        final long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketIndex(value / 1000));
+        count.incrementAndGet();
+        sumNanos.addAndGet(value);
+
+        long max = maxNanos.get();
+        while (value > max && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get();
+        }
+    }
+
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return mean of all recorded values (ms), 0 if empty
+     */
+    public double getMeanMillis() {
+        final long n = count.get();
+        return n > 0 ? sumNanos.get() / 1e6 / n : 0;
+    }
+
+    /**
+     * @return largest recorded value (ms)
+     */
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+
+    /**
+     * @param percentile e.g. 99.0
+     * @return the upper bound of the bucket holding the given percentile (ms), 0 if empty
+     */
+    public double getPercentileMillis(final double percentile) {
+
+        final long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBoundMicros(i) / 1e3, getMaxMillis());
+            }
+        }
+        return getMaxMillis(); // values recorded concurrently
+    }
+
+
+    /**
+     * forget all recorded values (not atomic with respect to concurrent recording)
+     */
+    public void reset() {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sumNanos.set(0);
+        maxNanos.set(0);
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+    }
+
+
+    /**
+     * values below 8 µs get a bucket of their own, above that every power of two is split into 8 buckets
+     */
+    private static int bucketIndex(final long micros) {
+
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+
+    private static long bucketUpperBoundMicros(final int index) {
+
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+}
@@ -25,6 +25,9 @@ import javax.swing.SwingUtilities;
 /**
  * IPFireTray application entry point: load properties and start the system tray icon
  *
+ * started with "--headless [--format=csv|json] [--output=file]", only the hosts are polled and the samples are written
+ * to stdout or the given file (see {@link HeadlessCollector}), no AWT class is loaded then
+ *
  * @author apric
  */
 public class Main {
@@ -34,6 +37,11 @@ public class Main {
      */
     public static void main(final String[] args) {
 
+        if (args.length > 0 && "--headless".equals(args[0])) {
+            startHeadless(args);
+            return;
+        }
+
         try {
             final Properties validProperties = SettingsManager.loadProperties(); // load the properties file first
 
@@ -62,5 +70,73 @@ public class Main {
     }
 
 
+    /**
+     * poll the configured hosts and write their samples until the process is terminated
+     * (errors are reported on stderr, since there is no desktop to show them)
+     *
+     * @param args "--headless" followed by the options
+     */
+    private static void startHeadless(final String[] args) {
+
+        System.setProperty("java.awt.headless", "true");
+
+        HeadlessCollector.Format format = HeadlessCollector.Format.CSV;
+        String fileName = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--format=")) {
+                format = HeadlessCollector.Format.valueOf(args[i].substring("--format=".length()).toUpperCase());
+            }
+            else if (args[i].startsWith("--output=")) {
+                fileName = args[i].substring("--output=".length());
+            }
+            else {
+                System.err.println("unknown option: " + args[i]);
+                System.err.println("usage: --headless [--format=csv|json] [--output=file]");
+                System.exit(2);
+            }
+        }
+
+        try {
+            final Properties validProperties = SettingsManager.loadProperties();
+
+            final MultiHostPoller poller = MultiHostPoller.fromProperties(validProperties);
+            final HeadlessCollector collector = HeadlessCollector.create(fileName, format);
+            final HistoryRecorder historyRecorder = HistoryRecorder.fromProperties(validProperties, poller);
+
+            poller.addListener(collector);
+            if (historyRecorder != null) {
+                poller.addListener(historyRecorder);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread("IPFireTray shutdown") {
+
+                @Override
+                public void run() {
+                    poller.stop();
+                    try {
+                        collector.close();
+                        if (historyRecorder != null) {
+                            historyRecorder.close();
+                        }
+                    }
+                    catch (Exception e) {
+                        System.err.println("error writing the output: " + e);
+                    }
+                }
+            });
+
+            poller.start();
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Check your configuration file for errors: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (Exception e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+    }
+
+
 
 }
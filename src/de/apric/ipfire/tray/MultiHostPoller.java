@@ -0,0 +1,564 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * polls any number of IPFire hosts concurrently, using a small, bounded pool of threads:
+ * every host has its own periodic task, each thread of the pool runs the task that's due next,
+ * so a slow host only occupies one pool thread while the others keep being polled.
+ * the latest sample of every host is kept and can be read from any thread
+ *
+ * each task sets its next deadline itself at a fixed rate: the next deadline is the previous one plus the interval
+ * (measured with {@link System#nanoTime()}), so the poll duration doesn't add up to a drift.
+ * polls that can't be made in time (the previous one took longer than an interval) are skipped and counted.
+ * the interval adapts to the traffic and the user's presence (see {@link AdaptivePollingInterval})
+ *
+ * the samples are published on a {@link SampleBus}, every listener gets them on a thread of its own,
+ * so a slow listener never delays the polls. every host is polled into a reused sample, and the pool's threads
+ * wait on the poller's monitor (no scheduled future per poll), so a steady-state poll -> publish -> render cycle
+ * doesn't allocate
+ *
+ * @author apric
+ */
+public final class MultiHostPoller {
+
+    public static final int DEFAULT_THREAD_COUNT = 8;
+    public static final long LISTENER_STOP_TIMEOUT = 1000; // ms to wait for a listener to catch up on stop
+
+    private final TrafficDataSource[] providers;
+    private final long refreshInterval;
+    private final long minInterval;
+    private final long maxInterval;
+    private final int threadCount;
+
+    private final PollMetrics metrics = new PollMetrics();
+    private final MutableTrafficSample[] latestSamples; // each guarded by itself
+    private final List<TrafficSampleListener> listeners = new CopyOnWriteArrayList<TrafficSampleListener>();
+    private final SampleBus bus = new SampleBus(SampleBus.DEFAULT_CAPACITY);
+    private final List<SampleDispatcher> dispatchers = new ArrayList<SampleDispatcher>(); // while polling
+    private volatile CoalescingSampleRenderer[] renderers = new CoalescingSampleRenderer[0]; // copied on change, iterated without an iterator
+
+    private volatile boolean isUserWatching = false;
+    private volatile boolean isUserAway = false;
+
+    private Thread[] workers; // the pool's threads while polling, replaced on every start
+    private final PollTask[] pollTasks;
+    private final boolean[] isStopped;
+
+
+    /**
+     * poll at a fixed interval
+     *
+     * @param providers one data source per host (e.g. an IPFire firewall or a local interface)
+     * @param refreshInterval time between the polls of a host (in ms)
+     * @param threadCount max. number of polling threads
+     */
+    public MultiHostPoller(final List<? extends TrafficDataSource> providers, final long refreshInterval, final int threadCount) {
+        this(providers, refreshInterval, refreshInterval, refreshInterval, threadCount);
+    }
+
+
+    /**
+     * poll at an adaptive interval
+     *
+     * @param providers one data source per host (e.g. an IPFire firewall or a local interface)
+     * @param refreshInterval normal time between the polls of a host (in ms)
+     * @param minInterval min. time between the polls of a host, e.g. during traffic bursts (in ms)
+     * @param maxInterval max. time between the polls of a host, e.g. on an idle link (in ms)
+     * @param threadCount max. number of polling threads
+     */
+    public MultiHostPoller(final List<? extends TrafficDataSource> providers, final long refreshInterval, final long minInterval, final long maxInterval, final int threadCount) {
+
+        if (providers.isEmpty()) {
+            throw new IllegalArgumentException("at least one host is required");
+        }
+        if (minInterval < 1 || threadCount < 1) {
+            throw new IllegalArgumentException("interval and thread count must be > 0");
+        }
+        if (minInterval > refreshInterval || refreshInterval > maxInterval) {
+            throw new IllegalArgumentException("intervals must be min <= interval <= max");
+        }
+
+        this.providers = providers.toArray(new TrafficDataSource[providers.size()]);
+        this.refreshInterval = refreshInterval;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.threadCount = threadCount;
+
+        for (TrafficDataSource provider : this.providers) {
+            provider.setMetrics(metrics);
+        }
+
+        latestSamples = new MutableTrafficSample[this.providers.length];
+        for (int i = 0; i < latestSamples.length; i++) {
+            latestSamples[i] = new MutableTrafficSample();
+        }
+        pollTasks = new PollTask[this.providers.length];
+        isStopped = new boolean[this.providers.length];
+    }
+
+
+    /**
+     * create a poller for all hosts configured in the (valid) properties: "host" and the optional, comma-separated "hosts"
+     * (each as "hostname" or "hostname:port", all using the same login),
+     * polled at "interval" or - if configured - adaptively between "minInterval" and "maxInterval",
+     * each poll bounded by the optional "pollTimeout", the certificates pinned in the optional "pinnedCertificates" file,
+     * with the optional "localInterface" (e.g. "eth0") the first host is that local network interface instead of "host"
+     *
+     * @param validProperties
+     * @return a poller (not yet started)
+     * @throws Exception
+     */
+    public static MultiHostPoller fromProperties(final Properties validProperties) throws Exception {
+
+        final String user = validProperties.getProperty("user");
+        final String pass = validProperties.getProperty("pass");
+        final int defaultPort = Integer.parseInt(validProperties.getProperty("port"));
+
+        final List<TrafficDataSource> sources = new ArrayList<TrafficDataSource>();
+        final List<IPFireDataProvider> providers = new ArrayList<IPFireDataProvider>(); // the firewalls among them
+        if (validProperties.getProperty("localInterface") != null) { // shown in the tray instead of the firewall
+            sources.add(new ProcNetDevDataSource(validProperties.getProperty("localInterface").trim()));
+        }
+        else {
+            providers.add(new IPFireDataProvider(validProperties.getProperty("host"), defaultPort, user, pass));
+        }
+
+        final String additionalHosts = validProperties.getProperty("hosts");
+        if (additionalHosts != null) {
+            for (String hostAndPort : additionalHosts.split(",")) {
+                hostAndPort = hostAndPort.trim();
+                if (hostAndPort.isEmpty()) {
+                    continue;
+                }
+                final int colon = hostAndPort.lastIndexOf(':');
+                if (colon > 0) {
+                    providers.add(new IPFireDataProvider(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)), user, pass));
+                }
+                else {
+                    providers.add(new IPFireDataProvider(hostAndPort, defaultPort, user, pass));
+                }
+            }
+        }
+
+        final int threadCount = validProperties.getProperty("pollThreads") != null
+                ? Integer.parseInt(validProperties.getProperty("pollThreads"))
+                : Math.min(providers.size() + sources.size(), DEFAULT_THREAD_COUNT);
+
+        final long refreshInterval = Long.parseLong(validProperties.getProperty("interval"));
+        final long minInterval = validProperties.getProperty("minInterval") != null
+                ? Math.min(Long.parseLong(validProperties.getProperty("minInterval")), refreshInterval)
+                : refreshInterval;
+        final long maxInterval = validProperties.getProperty("maxInterval") != null
+                ? Math.max(Long.parseLong(validProperties.getProperty("maxInterval")), refreshInterval)
+                : refreshInterval;
+
+        if (validProperties.getProperty("pollTimeout") != null) {
+            final long pollTimeout = Long.parseLong(validProperties.getProperty("pollTimeout"));
+            for (IPFireDataProvider provider : providers) {
+                provider.setPollTimeout(pollTimeout);
+            }
+        }
+
+        if (validProperties.getProperty("pinnedCertificates") != null) { // trust on first use instead of any certificate
+            final PinnedCertificateStore pinnedCertificates = new PinnedCertificateStore(new File(validProperties.getProperty("pinnedCertificates")));
+            for (IPFireDataProvider provider : providers) {
+                provider.setPinnedCertificates(pinnedCertificates);
+            }
+        }
+
+        if (validProperties.getProperty("statusEndpoints") != null) { // fetched together with speed.cgi
+            final List<StatusEndpoint> statusEndpoints = StatusEndpoint.parseList(validProperties.getProperty("statusEndpoints"));
+            for (IPFireDataProvider provider : providers) {
+                provider.setStatusEndpoints(statusEndpoints);
+            }
+        }
+
+        sources.addAll(providers);
+        return new MultiHostPoller(sources, refreshInterval, minInterval, maxInterval, threadCount);
+    }
+
+
+    /**
+     * start polling all hosts (the first polls are spread over one interval)
+     */
+    public synchronized void start() {
+
+        if (workers != null) {
+            return; // already running
+        }
+
+        for (TrafficSampleListener listener : listeners) {
+            startDispatcher(listener);
+        }
+
+        final long now = System.nanoTime();
+        for (int i = 0; i < providers.length; i++) {
+            final long initialDelay = refreshInterval * i / providers.length;
+            isStopped[i] = false;
+            pollTasks[i] = new PollTask(i, now + TimeUnit.MILLISECONDS.toNanos(initialDelay));
+        }
+
+        final Thread[] newWorkers = new Thread[Math.min(threadCount, providers.length)]; // more would never get a task
+        for (int i = 0; i < newWorkers.length; i++) {
+            newWorkers[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (PollTask task = nextTask(newWorkers); task != null; task = nextTask(newWorkers)) {
+                        task.run();
+                    }
+                }
+            }, "IPFireTray poller " + (i + 1));
+        }
+        workers = newWorkers;
+        for (Thread worker : newWorkers) {
+            worker.start();
+        }
+    }
+
+
+    /**
+     * stop polling and close all connections,
+     * the listeners still get the samples published so far
+     */
+    public void stop() {
+
+        final List<SampleDispatcher> stoppedDispatchers;
+        synchronized (this) {
+            if (workers == null) {
+                return;
+            }
+
+            workers = null; // the waiting threads end, the polling ones after their poll
+            notifyAll();
+
+            for (TrafficDataSource provider : providers) {
+                provider.close();
+            }
+
+            stoppedDispatchers = new ArrayList<SampleDispatcher>(dispatchers);
+            dispatchers.clear();
+        }
+
+        for (SampleDispatcher dispatcher : stoppedDispatchers) { // not synchronized: a listener might call the poller
+            dispatcher.stop(LISTENER_STOP_TIMEOUT);
+        }
+    }
+
+
+    /**
+     * while the user is watching (e.g. the tooltip is open), all hosts are polled at the min. interval,
+     * starting right now
+     *
+     * @param isWatching
+     */
+    public synchronized void setUserWatching(final boolean isWatching) {
+
+        final boolean wasWatching = isUserWatching;
+        isUserWatching = isWatching;
+
+        if (isWatching && !wasWatching && workers != null) {
+            final long now = System.nanoTime();
+            for (int i = 0; i < providers.length; i++) {
+                if (!isStopped[i] && !pollTasks[i].isRunning && pollTasks[i].interval.getCurrentInterval() > minInterval) {
+                    pollTasks[i].deadlineNanos = now;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * while the user is away (e.g. the screen is locked), polling backs off to the max. interval
+     *
+     * @param isAway
+     */
+    public void setUserAway(final boolean isAway) {
+        isUserAway = isAway;
+    }
+
+
+    /**
+     * @param hostIndex
+     * @return number of polls of the given host that were skipped because the previous one was late
+     */
+    public synchronized long getMissedTicks(final int hostIndex) {
+        return pollTasks[hostIndex] != null ? pollTasks[hostIndex].missedTicks : 0;
+    }
+
+    /**
+     * @param hostIndex
+     * @return current delay between the polls of the given host (in ms)
+     */
+    public synchronized long getCurrentInterval(final int hostIndex) {
+        return pollTasks[hostIndex] != null ? pollTasks[hostIndex].interval.getCurrentInterval() : refreshInterval;
+    }
+
+
+    /**
+     * @param listener gets the samples on a thread of its own (starting with the next one)
+     */
+    public synchronized void addListener(final TrafficSampleListener listener) {
+
+        listeners.add(listener);
+        if (workers != null) {
+            startDispatcher(listener);
+        }
+    }
+
+    public void removeListener(final TrafficSampleListener listener) {
+
+        SampleDispatcher removedDispatcher = null;
+        synchronized (this) {
+            listeners.remove(listener);
+            for (SampleDispatcher dispatcher : dispatchers) {
+                if (dispatcher.getListener() == listener) {
+                    removedDispatcher = dispatcher;
+                }
+            }
+            dispatchers.remove(removedDispatcher);
+        }
+
+        if (removedDispatcher != null) {
+            removedDispatcher.stop(LISTENER_STOP_TIMEOUT);
+        }
+    }
+
+
+    /**
+     * @param hostIndex
+     * @param renderer gets only the newest sample of the given host, on the event dispatch thread
+     *          (a burst of samples is coalesced into one call, e.g. to render the tray icon)
+     */
+    public synchronized void addRenderer(final int hostIndex, final TrafficSampleRenderer renderer) {
+
+        final CoalescingSampleRenderer[] added = Arrays.copyOf(renderers, renderers.length + 1);
+        added[added.length - 1] = new CoalescingSampleRenderer(bus, hostIndex, renderer);
+        renderers = added;
+    }
+
+
+    /**
+     * @return the bus all samples are published on (e.g. to read them on the EDT)
+     */
+    public SampleBus getSampleBus() {
+        return bus;
+    }
+
+
+    /**
+     * @return number of samples the listeners missed because they fell behind by more than the bus capacity
+     */
+    public synchronized long getDroppedSamples() {
+
+        long dropped = 0;
+        for (SampleDispatcher dispatcher : dispatchers) {
+            dropped += dispatcher.getOverruns();
+        }
+        return dropped;
+    }
+
+
+    /**
+     * @return number of polled hosts
+     */
+    public int getHostCount() {
+        return providers.length;
+    }
+
+    /**
+     * @param hostIndex
+     * @return the data source of the given host
+     */
+    public TrafficDataSource getProvider(final int hostIndex) {
+        return providers[hostIndex];
+    }
+
+    /**
+     * @return poll timing and failures of all hosts
+     */
+    public PollMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param hostIndex
+     * @return the latest sample of the given host, null if it wasn't polled yet
+     */
+    public TrafficSample getLatestSample(final int hostIndex) {
+
+        final MutableTrafficSample latest = latestSamples[hostIndex];
+        synchronized (latest) {
+            return latest.getHost() != null ? latest.toTrafficSample() : null;
+        }
+    }
+
+    /**
+     * @return the latest samples of all hosts (an entry is null if the host wasn't polled yet)
+     */
+    public TrafficSample[] getLatestSamples() {
+
+        final TrafficSample[] samples = new TrafficSample[providers.length];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = getLatestSample(i);
+        }
+        return samples;
+    }
+
+
+    /**
+     * @return the threads of the pool, empty while not polling (e.g. to measure their allocation)
+     */
+    synchronized List<Thread> getPollThreads() {
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        if (workers != null) {
+            threads.addAll(Arrays.asList(workers));
+        }
+        return threads;
+    }
+
+
+    private void startDispatcher(final TrafficSampleListener listener) {
+        dispatchers.add(new SampleDispatcher(bus, listener, "IPFireTray listener " + listener.getClass().getSimpleName()));
+    }
+
+
+    /**
+     * wait until a host's poll is due and claim it (for a thread of the pool)
+     *
+     * @param pool the threads of the pool the calling thread belongs to
+     * @return the task to run, null if polling was stopped (or restarted with a new pool)
+     */
+    private synchronized PollTask nextTask(final Thread[] pool) {
+
+        while (workers == pool) {
+
+            PollTask next = null;
+            for (PollTask task : pollTasks) {
+                if (!task.isRunning && !isStopped[task.hostIndex] && (next == null || task.deadlineNanos - next.deadlineNanos < 0)) {
+                    next = task;
+                }
+            }
+
+            final long waitNanos = next != null ? next.deadlineNanos - System.nanoTime() : 0;
+            if (next != null && waitNanos <= 0) {
+                next.isRunning = true;
+                return next;
+            }
+
+            try {
+                if (next != null) {
+                    wait(waitNanos / 1000000, (int) (waitNanos % 1000000)); // or until a task is done or rescheduled
+                }
+                else {
+                    wait(); // all hosts are being polled or stopped
+                }
+            }
+            catch (InterruptedException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * periodic poll of a single host, schedules its next run itself
+     */
+    private final class PollTask implements Runnable {
+
+        private final int hostIndex;
+        private final AdaptivePollingInterval interval = new AdaptivePollingInterval(refreshInterval, minInterval, maxInterval);
+        private final MutableTrafficSample sample = new MutableTrafficSample(); // polled into on every run
+        private long deadlineNanos; // System.nanoTime() this run was due (guarded by the poller)
+        private boolean isRunning = false; // claimed by a thread of the pool (guarded by the poller)
+        private long missedTicks = 0; // (guarded by the poller)
+
+        PollTask(final int hostIndex, final long deadlineNanos) {
+            this.hostIndex = hostIndex;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public void run() {
+
+            final TrafficDataSource provider = providers[hostIndex];
+
+            try {
+                provider.poll(sample);
+            }
+            catch (Exception e) {
+                if (provider.getLastOutcome() == PollOutcome.AUTH_FAILED) { // invalid login: polling again won't help
+                    synchronized (MultiHostPoller.this) {
+                        isStopped[hostIndex] = true;
+                        isRunning = false;
+                    }
+                    for (TrafficSampleListener listener : listeners) {
+                        listener.pollingStopped(hostIndex, e);
+                    }
+                    for (CoalescingSampleRenderer renderer : renderers) {
+                        renderer.getRenderer().pollingStopped(hostIndex, e);
+                    }
+                    return;
+                }
+
+                /* anything else (e.g. an unexpected exception of the source): report "no data" and try again next time */
+                sample.setFailed(provider.getHost(), PollOutcome.INVALID_RESPONSE);
+            }
+
+            final MutableTrafficSample latest = latestSamples[hostIndex];
+            synchronized (latest) {
+                latest.set(sample);
+            }
+            bus.publish(hostIndex, sample);
+            for (CoalescingSampleRenderer renderer : renderers) {
+                renderer.published(hostIndex);
+            }
+
+            final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval.next(sample, sample.getOutcome() != PollOutcome.OK, isUserWatching, isUserAway));
+
+            synchronized (MultiHostPoller.this) {
+                isRunning = false;
+                deadlineNanos += intervalNanos;
+
+                /* skip the ticks that are over completely, a late one is run right away: */
+                final long now = System.nanoTime();
+                if (now - deadlineNanos >= intervalNanos) {
+                    final long missed = (now - deadlineNanos) / intervalNanos;
+                    deadlineNanos += missed * intervalNanos;
+                    missedTicks += missed;
+                    metrics.recordMissedTicks(missed);
+                }
+
+                MultiHostPoller.this.notifyAll(); // a waiting thread of the pool may take it
+            }
+        }
+    }
+
+}
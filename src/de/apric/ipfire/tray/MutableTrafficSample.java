@@ -0,0 +1,248 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.Arrays;
+
+/**
+ * reusable holder for the result of one poll of one firewall:
+ * filled by {@link TrafficDataSource#poll(MutableTrafficSample)} without allocating a new sample per poll,
+ * handed to other threads by copying it (e.g. into the {@link SampleBus}) or as {@link #toTrafficSample() snapshot}
+ *
+ * @author apric
+ */
+public final class MutableTrafficSample {
+
+    private String host;
+    private long timestamp;
+    private long totalDownKB;
+    private long totalUpKB;
+    private float downKBpS = -1.0f;
+    private float upKBpS = -1.0f;
+    private PollOutcome outcome = PollOutcome.OK;
+    private String[] metricNames = new String[0];
+    private long[] metricValues = new long[0];
+    private String[] interfaceNames = new String[0];
+    private float[] interfaceDownKBpS = new float[0];
+    private float[] interfaceUpKBpS = new float[0];
+
+
+    /**
+     * @param host the polled firewall
+     * @param timestamp time the total counters were read (ms since epoch), unchanged if the poll failed
+     * @param totalDownKB total download counter ("rxb")
+     * @param totalUpKB total upload counter ("txb")
+     * @param downKBpS current download KB/s, -1 if unknown
+     * @param upKBpS current upload KB/s, -1 if unknown
+     * @param outcome result of the poll
+     */
+    public void set(final String host, final long timestamp, final long totalDownKB, final long totalUpKB, final float downKBpS, final float upKBpS,
+            final PollOutcome outcome) {
+
+        this.host = host;
+        this.timestamp = timestamp;
+        this.totalDownKB = totalDownKB;
+        this.totalUpKB = totalUpKB;
+        this.downKBpS = downKBpS;
+        this.upKBpS = upKBpS;
+        this.outcome = outcome;
+    }
+
+
+    /**
+     * copy all values of the given sample (allocates only if it has a different number of metrics or interfaces)
+     *
+     * @param other
+     */
+    public void set(final MutableTrafficSample other) {
+
+        set(other.host, other.timestamp, other.totalDownKB, other.totalUpKB, other.downKBpS, other.upKBpS, other.outcome);
+        setMetrics(other.metricNames, other.metricValues);
+        setInterfaces(other.interfaceNames, other.interfaceDownKBpS, other.interfaceUpKBpS);
+    }
+
+
+    /**
+     * mark the poll as failed: the counters and their timestamp of the last successful poll are kept,
+     * the speed values (also of the interfaces) become -1 and the metrics {@link TrafficSample#NO_VALUE}
+     *
+     * @param host the polled firewall
+     * @param outcome why the poll failed
+     */
+    public void setFailed(final String host, final PollOutcome outcome) {
+
+        set(host, timestamp, totalDownKB, totalUpKB, -1.0f, -1.0f, outcome);
+        Arrays.fill(metricValues, TrafficSample.NO_VALUE);
+        Arrays.fill(interfaceDownKBpS, -1.0f);
+        Arrays.fill(interfaceUpKBpS, -1.0f);
+    }
+
+
+    /**
+     * @param names names of the status endpoints' metrics (not copied, must not be changed afterwards)
+     * @param values one value per name, {@link TrafficSample#NO_VALUE} if not available (copied)
+     */
+    public void setMetrics(final String[] names, final long[] values) {
+
+        if (names.length != values.length) {
+            throw new IllegalArgumentException("one value per metric name required");
+        }
+        if (metricValues.length != values.length) {
+            metricValues = new long[values.length]; // only if the endpoints were changed
+        }
+        metricNames = names;
+        System.arraycopy(values, 0, metricValues, 0, values.length);
+    }
+
+
+    /**
+     * @param names names of the network interfaces read with the poll (not copied, must not be changed afterwards)
+     * @param downKBpS current download KB/s of each interface, -1 if unknown (copied)
+     * @param upKBpS current upload KB/s of each interface, -1 if unknown (copied)
+     */
+    public void setInterfaces(final String[] names, final float[] downKBpS, final float[] upKBpS) {
+
+        if (names.length != downKBpS.length || names.length != upKBpS.length) {
+            throw new IllegalArgumentException("one value per interface name required");
+        }
+        if (interfaceDownKBpS.length != names.length) {
+            interfaceDownKBpS = new float[names.length]; // only if an interface was added
+            interfaceUpKBpS = new float[names.length];
+        }
+        interfaceNames = names;
+        System.arraycopy(downKBpS, 0, interfaceDownKBpS, 0, names.length);
+        System.arraycopy(upKBpS, 0, interfaceUpKBpS, 0, names.length);
+    }
+
+
+    public String getHost() {
+        return host;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getTotalDownKB() {
+        return totalDownKB;
+    }
+
+    public long getTotalUpKB() {
+        return totalUpKB;
+    }
+
+    public float getDownKBpS() {
+        return downKBpS;
+    }
+
+    public float getUpKBpS() {
+        return upKBpS;
+    }
+
+    /**
+     * @return why the poll failed (the speed values are -1 then), {@link PollOutcome#OK} if it succeeded
+     */
+    public PollOutcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return false if the poll failed or there was no previous poll to calculate the speed from
+     */
+    public boolean isValid() {
+        return downKBpS >= 0 && upKBpS >= 0;
+    }
+
+
+    /**
+     * @return number of metrics read from the status endpoints (0 if none are configured)
+     */
+    public int getMetricCount() {
+        return metricNames.length;
+    }
+
+    public String getMetricName(final int index) {
+        return metricNames[index];
+    }
+
+    /**
+     * @param index
+     * @return value of the metric, {@link TrafficSample#NO_VALUE} if not available
+     */
+    public long getMetricValue(final int index) {
+        return metricValues[index];
+    }
+
+
+    /**
+     * @return number of interfaces read with the poll (0 if the source reads only one)
+     */
+    public int getInterfaceCount() {
+        return interfaceNames.length;
+    }
+
+    public String getInterfaceName(final int index) {
+        return interfaceNames[index];
+    }
+
+    /**
+     * @param name name of the interface (e.g. "eth0")
+     * @return index of the interface, -1 if it wasn't read
+     */
+    public int getInterfaceIndex(final String name) {
+
+        for (int i = 0; i < interfaceNames.length; i++) {
+            if (interfaceNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index
+     * @return current download KB/s of the interface, -1 if unknown
+     */
+    public float getInterfaceDownKBpS(final int index) {
+        return interfaceDownKBpS[index];
+    }
+
+    /**
+     * @param index
+     * @return current upload KB/s of the interface, -1 if unknown
+     */
+    public float getInterfaceUpKBpS(final int index) {
+        return interfaceUpKBpS[index];
+    }
+
+
+    /**
+     * @return an immutable copy of the current values
+     */
+    public TrafficSample toTrafficSample() {
+        return new TrafficSample(host, timestamp, totalDownKB, totalUpKB, downKBpS, upKBpS, outcome, metricNames, metricValues,
+                interfaceNames, interfaceDownKBpS, interfaceUpKBpS);
+    }
+
+
+    @Override
+    public String toString() {
+        return toTrafficSample().toString();
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+
+/**
+ * trust on first use: the fingerprint (SHA-256) of the certificate a host presents the first time is pinned,
+ * later certificates of that host are only trusted if they match. replaces the blind trust in every certificate,
+ * since IPFire's certificates are usually self-signed and can't be validated against a CA
+ *
+ * the pins ("host:port=fingerprint") are held in memory and written to a properties file when a host is pinned,
+ * to accept a new certificate (e.g. after reinstalling the firewall) its line has to be removed from the file.
+ * a certificate is only checked on a full SSL handshake, not for resumed sessions or reused connections
+ *
+ * @author apric
+ */
+public final class PinnedCertificateStore {
+
+    /**
+     * thrown if a host presents a certificate that doesn't match its pinned one
+     */
+    public static final class CertificateChangedException extends CertificateException {
+
+        private static final long serialVersionUID = 1L;
+
+        public CertificateChangedException(final String message) {
+            super(message);
+        }
+    }
+
+    private final File file;
+    private final Properties pins = new Properties();
+    private volatile IOException lastError;
+
+
+    /**
+     * @param file the pinned fingerprints, created with the first pinned host
+     * @throws IOException in case the existing file can't be read
+     */
+    public PinnedCertificateStore(final File file) throws IOException {
+
+        this.file = file;
+
+        if (file.exists()) {
+            final InputStream in = new FileInputStream(file);
+            try {
+                pins.load(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+
+
+    /**
+     * trust the given certificate if it matches the host's pinned one, pin it if the host has none yet
+     *
+     * @param hostAndPort e.g. "ipfire:444"
+     * @param certificate the server's certificate (first of the chain)
+     * @throws CertificateChangedException in case the host presents a different certificate
+     * @throws CertificateException in case the certificate can't be encoded
+     */
+    public synchronized void check(final String hostAndPort, final X509Certificate certificate) throws CertificateException {
+
+        final String fingerprint = getFingerprint(certificate);
+        final String pinned = pins.getProperty(hostAndPort);
+
+        if (pinned == null) {
+            pins.setProperty(hostAndPort, fingerprint);
+            save();
+        }
+        else if (!pinned.equals(fingerprint)) {
+            throw new CertificateChangedException("certificate of " + hostAndPort + " changed (pinned: " + pinned + ", presented: " + fingerprint
+                    + "), remove its line from \"" + file + "\" if the change is expected");
+        }
+    }
+
+
+    /**
+     * @param hostAndPort
+     * @return the pinned fingerprint of the host, null if it wasn't pinned yet
+     */
+    public synchronized String getPinnedFingerprint(final String hostAndPort) {
+        return pins.getProperty(hostAndPort);
+    }
+
+
+    /**
+     * @return the last error writing the file, null if there was none (the pins are kept in memory anyway)
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+
+    /**
+     * @param e an exception thrown while polling
+     * @return true if it was caused by a changed certificate
+     */
+    public static boolean isCertificateChanged(final Throwable e) {
+
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CertificateChangedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @param certificate
+     * @return SHA-256 of the encoded certificate, as colon-separated hex bytes (the format browsers show)
+     * @throws CertificateEncodingException
+     */
+    public static String getFingerprint(final X509Certificate certificate) throws CertificateEncodingException {
+
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE has SHA-256
+        }
+
+        final StringBuilder sb = new StringBuilder(digest.length * 3);
+        for (byte b : digest) {
+            if (sb.length() > 0) {
+                sb.append(':');
+            }
+            sb.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+        }
+        return sb.toString();
+    }
+
+
+    private void save() {
+
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                pins.store(out, "IPFireTray pinned certificates (SHA-256), remove a line to accept a changed certificate");
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            lastError = e; // silent fail: pinned in memory until the next start
+        }
+    }
+
+}
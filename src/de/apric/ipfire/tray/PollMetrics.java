@@ -0,0 +1,374 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+import javax.net.ssl.SSLException;
+
+/**
+ * timing of every phase of a poll (one latency histogram per phase) and failure counters by cause,
+ * shared by all polled hosts and published as MBean (e.g. for JConsole/VisualVM):
+ * per phase the attributes "&lt;Phase&gt;Count", "&lt;Phase&gt;MeanMillis", "&lt;Phase&gt;P50Millis", "&lt;Phase&gt;P99Millis"
+ * and "&lt;Phase&gt;MaxMillis", per cause "&lt;Cause&gt;Failures", plus "FullHandshakes", "ResumedHandshakes",
+ * "ResumptionHitRate", "MissedTicks", "LastFailure" and the operation "reset"
+ *
+ * @author apric
+ */
+public final class PollMetrics implements DynamicMBean {
+
+    public static final String OBJECT_NAME = "de.apric.ipfire.tray:type=PollMetrics";
+
+    /**
+     * phases of a poll, the first three only occur when a new connection is opened
+     */
+    public enum Phase {
+        DNS, CONNECT, HANDSHAKE, FIRST_BYTE, BODY, PARSE, RENDER, SET_IMAGE,
+        POLL // complete poll: request, response and parsing
+    }
+
+    /**
+     * reasons for a failed poll
+     */
+    public enum Cause {
+        DNS, CONNECT, TLS, TIMEOUT, CONNECTION_CLOSED, IO, HTTP_STATUS, AUTH, PARSE, OTHER
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+    private final AtomicLongArray failures = new AtomicLongArray(Cause.values().length);
+    private final AtomicReference<String> lastFailure = new AtomicReference<String>();
+    private final AtomicLong missedTicks = new AtomicLong();
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    private final MBeanInfo mBeanInfo;
+
+
+    public PollMetrics() {
+
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        mBeanInfo = createMBeanInfo();
+    }
+
+
+    /**
+     * @param phase
+     * @param nanos duration of the phase
+     */
+    public void record(final Phase phase, final long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+
+    /**
+     * count a failed poll
+     *
+     * @param cause
+     * @param host the polled host
+     * @param e the exception that made the poll fail (may be null)
+     */
+    public void recordFailure(final Cause cause, final String host, final Exception e) {
+        failures.incrementAndGet(cause.ordinal());
+        lastFailure.set(host + ": " + cause + (e != null ? " (" + e + ")" : ""));
+    }
+
+
+    /**
+     * count an SSL handshake of a new connection
+     *
+     * @param isResumed true if a cached session was resumed (abbreviated handshake without certificate exchange)
+     */
+    public void recordHandshake(final boolean isResumed) {
+        (isResumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+    }
+
+
+    /**
+     * count polls that were skipped because the previous one took longer than the interval
+     *
+     * @param ticks
+     */
+    public void recordMissedTicks(final long ticks) {
+        missedTicks.addAndGet(ticks);
+    }
+
+
+    /**
+     * @param e an exception thrown while polling
+     * @return the cause the exception stands for
+     */
+    public static Cause classify(final Exception e) {
+
+        if (e instanceof UnknownHostException) {
+            return Cause.DNS;
+        }
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException) {
+            return Cause.CONNECT;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return Cause.TIMEOUT;
+        }
+        if (e instanceof SSLException) {
+            return Cause.TLS;
+        }
+        if (e instanceof EOFException) {
+            return Cause.CONNECTION_CLOSED;
+        }
+        if (e instanceof HttpResponseReader.ResponseTooLargeException) {
+            return Cause.PARSE;
+        }
+        if (e instanceof IOException) {
+            return Cause.IO;
+        }
+        return Cause.OTHER;
+    }
+
+
+    public LatencyHistogram getHistogram(final Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    public long getFailureCount(final Cause cause) {
+        return failures.get(cause.ordinal());
+    }
+
+    public long getMissedTicks() {
+        return missedTicks.get();
+    }
+
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return share of the handshakes that resumed a cached session (0..1), 0 if there was none
+     */
+    public double getResumptionHitRate() {
+
+        final long resumed = resumedHandshakes.get();
+        final long total = resumed + fullHandshakes.get();
+        return total > 0 ? (double) resumed / total : 0;
+    }
+
+    /**
+     * @return description of the last failure, null if there was none
+     */
+    public String getLastFailure() {
+        return lastFailure.get();
+    }
+
+
+    /**
+     * forget all timings and failures
+     */
+    public void reset() {
+
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < failures.length(); i++) {
+            failures.set(i, 0);
+        }
+        lastFailure.set(null);
+        missedTicks.set(0);
+        fullHandshakes.set(0);
+        resumedHandshakes.set(0);
+    }
+
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            sb.append(phase).append(": ").append(getHistogram(phase)).append('\n');
+        }
+        for (Cause cause : Cause.values()) {
+            sb.append(cause).append(" failures: ").append(getFailureCount(cause)).append('\n');
+        }
+        sb.append("handshakes: ").append(getFullHandshakes()).append(" full, ").append(getResumedHandshakes()).append(" resumed\n");
+        sb.append("missed ticks: ").append(getMissedTicks()).append('\n');
+        return sb.toString();
+    }
+
+
+    /* DynamicMBean: */
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+
+        if ("LastFailure".equals(attribute)) {
+            return getLastFailure();
+        }
+        if ("MissedTicks".equals(attribute)) {
+            return getMissedTicks();
+        }
+        if ("FullHandshakes".equals(attribute)) {
+            return getFullHandshakes();
+        }
+        if ("ResumedHandshakes".equals(attribute)) {
+            return getResumedHandshakes();
+        }
+        if ("ResumptionHitRate".equals(attribute)) {
+            return getResumptionHitRate();
+        }
+        for (Cause cause : Cause.values()) {
+            if (attribute.equals(camelCase(cause.name()) + "Failures")) {
+                return getFailureCount(cause);
+            }
+        }
+        for (Phase phase : Phase.values()) {
+            final String prefix = camelCase(phase.name());
+            if (attribute.startsWith(prefix)) {
+                final LatencyHistogram histogram = getHistogram(phase);
+                final String statistic = attribute.substring(prefix.length());
+                if ("Count".equals(statistic)) {
+                    return histogram.getCount();
+                }
+                if ("MeanMillis".equals(statistic)) {
+                    return histogram.getMeanMillis();
+                }
+                if ("P50Millis".equals(statistic)) {
+                    return histogram.getPercentileMillis(50);
+                }
+                if ("P99Millis".equals(statistic)) {
+                    return histogram.getPercentileMillis(99);
+                }
+                if ("MaxMillis".equals(statistic)) {
+                    return histogram.getMaxMillis();
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            }
+            catch (AttributeNotFoundException e) {
+                // not in the list
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList(); // all read-only
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) throws ReflectionException {
+
+        if ("reset".equals(actionName)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return mBeanInfo;
+    }
+
+
+    private MBeanInfo createMBeanInfo() {
+
+        final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Phase phase : Phase.values()) {
+            final String prefix = camelCase(phase.name());
+            attributes.add(new MBeanAttributeInfo(prefix + "Count", "long", "number of timed " + phase + " phases", true, false, false));
+            attributes.add(new MBeanAttributeInfo(prefix + "MeanMillis", "double", "mean " + phase + " time (ms)", true, false, false));
+            attributes.add(new MBeanAttributeInfo(prefix + "P50Millis", "double", "median " + phase + " time (ms)", true, false, false));
+            attributes.add(new MBeanAttributeInfo(prefix + "P99Millis", "double", "99th percentile of the " + phase + " time (ms)", true, false, false));
+            attributes.add(new MBeanAttributeInfo(prefix + "MaxMillis", "double", "max. " + phase + " time (ms)", true, false, false));
+        }
+        for (Cause cause : Cause.values()) {
+            attributes.add(new MBeanAttributeInfo(camelCase(cause.name()) + "Failures", "long", "polls failed by " + cause, true, false, false));
+        }
+        attributes.add(new MBeanAttributeInfo("FullHandshakes", "long", "SSL handshakes with certificate exchange", true, false, false));
+        attributes.add(new MBeanAttributeInfo("ResumedHandshakes", "long", "SSL handshakes resuming a cached session", true, false, false));
+        attributes.add(new MBeanAttributeInfo("ResumptionHitRate", "double", "share of resumed SSL handshakes (0..1)", true, false, false));
+        attributes.add(new MBeanAttributeInfo("MissedTicks", "long", "polls skipped because the previous one was late", true, false, false));
+        attributes.add(new MBeanAttributeInfo("LastFailure", "java.lang.String", "host and cause of the last failed poll", true, false, false));
+
+        return new MBeanInfo(getClass().getName(), "IPFireTray poll timing and failures",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null,
+                new MBeanOperationInfo[] {
+                    new MBeanOperationInfo("reset", "forget all timings and failures", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+                },
+                null);
+    }
+
+
+    /**
+     * "FIRST_BYTE" -&gt; "FirstByte"
+     */
+    private static String camelCase(final String enumName) {
+
+        final StringBuilder sb = new StringBuilder(enumName.length());
+        boolean isWordStart = true;
+        for (char c : enumName.toCharArray()) {
+            if (c == '_') {
+                isWordStart = true;
+            }
+            else {
+                sb.append(isWordStart ? c : Character.toLowerCase(c));
+                isWordStart = false;
+            }
+        }
+        return sb.toString();
+    }
+
+}
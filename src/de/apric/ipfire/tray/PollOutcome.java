@@ -0,0 +1,89 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * result of one poll of one firewall
+ *
+ * @author apric
+ */
+public enum PollOutcome {
+
+    OK("ok"),
+    TIMEOUT("timeout"),
+    REFUSED("connection refused"),
+    UNREACHABLE("host unreachable"),
+    TLS_ERROR("SSL error"),
+    CERTIFICATE_CHANGED("certificate changed!"),
+    CONNECTION_ERROR("connection error"),
+    AUTH_FAILED("login failed"),
+    HTTP_ERROR("HTTP error"),
+    INVALID_RESPONSE("invalid response"),
+    CIRCUIT_OPEN("host unreachable, retrying later");
+
+    private final String description;
+
+    private PollOutcome(final String description) {
+        this.description = description;
+    }
+
+
+    /**
+     * @return short text for the user
+     */
+    public String getDescription() {
+        return description;
+    }
+
+
+    /**
+     * @return true if the firewall couldn't be reached at all (as opposed to an unexpected answer)
+     */
+    public boolean isConnectionFailure() {
+        return this == TIMEOUT || this == REFUSED || this == UNREACHABLE || this == TLS_ERROR || this == CERTIFICATE_CHANGED
+                || this == CONNECTION_ERROR;
+    }
+
+
+    /**
+     * @param cause a failure cause as counted by the metrics
+     * @return the matching outcome
+     */
+    public static PollOutcome fromCause(final PollMetrics.Cause cause) {
+
+        switch (cause) {
+            case DNS:
+                return UNREACHABLE;
+            case CONNECT:
+                return REFUSED;
+            case TLS:
+                return TLS_ERROR;
+            case TIMEOUT:
+                return TIMEOUT;
+            case HTTP_STATUS:
+                return HTTP_ERROR;
+            case AUTH:
+                return AUTH_FAILED;
+            case PARSE:
+                return INVALID_RESPONSE;
+            default:
+                return CONNECTION_ERROR;
+        }
+    }
+
+}
@@ -0,0 +1,439 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * traffic data source of a local network interface: reads the byte counters from Linux' /proc/net/dev
+ * (the counters of all interfaces in one read, the sysfs statistics would take a file per counter)
+ *
+ * reading a local file is cheap, so this source can be polled at short intervals (e.g. 50 ms):
+ * the file is opened once and read again from the start on every poll into a reused buffer,
+ * the counters are parsed right from the bytes, so the steady state doesn't allocate
+ *
+ * the samples are those of the selected interface, together with the speed of every interface in the file
+ * (see {@link TrafficSample#getInterfaceCount()}, an interface keeps its index once it was seen)
+ *
+ * the totals and rates have the same units as those of speed.cgi (bytes, bytes per ms = ~KB/s),
+ * a rate is -1 if the counter went backwards (e.g. the interface was recreated)
+ *
+ * @author apric
+ */
+public final class ProcNetDevDataSource implements TrafficDataSource {
+
+    public static final String PROC_NET_DEV = "/proc/net/dev";
+
+    private static final int INITIAL_BUFFER_SIZE = 4096; // grown if there are many interfaces
+    private static final int RX_BYTES_COLUMN = 0; // of the numbers after "<interface>:"
+    private static final int TX_BYTES_COLUMN = 8;
+    private static final String[] NO_METRIC_NAMES = new String[0];
+    private static final long[] NO_METRIC_VALUES = new long[0];
+
+    private final String interfaceName;
+    private final File file;
+
+    private FileChannel channel; // open between the polls, null after a failure
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private volatile PollMetrics metrics = new PollMetrics(); // replaced by the poller's shared one
+    private volatile PollOutcome lastOutcome = PollOutcome.OK;
+
+    /* all interfaces of the file, by index (grown when an interface shows up, the names are replaced - not changed - then): */
+    private String[] interfaceNames = new String[0];
+    private byte[][] interfaceNameBytes = new byte[0][]; // interface names are ASCII
+    private long[] parsedTotalDown = new long[0]; // of the last read
+    private long[] parsedTotalUp = new long[0];
+    private boolean[] isParsed = new boolean[0]; // listed in the last read
+    private long[] lastTotalDown = new long[0]; // of the last successful poll
+    private long[] lastTotalUp = new long[0];
+    private boolean[] isLastRead = new boolean[0];
+    private float[] interfaceDownKBpS = new float[0]; // of the last poll
+    private float[] interfaceUpKBpS = new float[0];
+
+    private long lastRefresh = System.currentTimeMillis();
+    private long lastSampleNanos = 0; // System.nanoTime() the last counters were read at
+    private long lastTotalDownKB = 0; // of the selected interface
+    private long lastTotalUpKB = 0;
+    private float currentDownKBpS = -1.0f;
+    private float currentUpKBpS = -1.0f;
+
+
+    /**
+     * @param interfaceName name of the network interface (e.g. "eth0")
+     */
+    public ProcNetDevDataSource(final String interfaceName) {
+        this(interfaceName, new File(PROC_NET_DEV));
+    }
+
+
+    /**
+     * @param interfaceName name of the network interface (e.g. "eth0")
+     * @param procNetDev a file in the format of /proc/net/dev (e.g. of another network namespace: /proc/&lt;pid&gt;/net/dev)
+     */
+    public ProcNetDevDataSource(final String interfaceName, final File procNetDev) {
+
+        if (interfaceName == null || interfaceName.isEmpty() || interfaceName.indexOf(':') >= 0) {
+            throw new IllegalArgumentException("invalid interface name: " + interfaceName);
+        }
+
+        this.interfaceName = interfaceName;
+        this.file = procNetDev;
+    }
+
+
+    /**
+     * calculate the current down and up KB/s values by comparing the previous total values with the current ones
+     * a failed read is reported by {@link #getLastOutcome()}
+     *
+     * @return float values for current down and up KB/s, -1 if unknown
+     */
+    @Override
+    public synchronized float[] getSpeedParams() {
+
+        update();
+        return new float[]{currentDownKBpS, currentUpKBpS};
+    }
+
+
+    /**
+     * read the counters once
+     *
+     * @return the calculated speed values together with the total values they're based on, and the speed of every interface
+     */
+    @Override
+    public synchronized TrafficSample poll() {
+
+        update();
+        return new TrafficSample(interfaceName, lastRefresh, lastTotalDownKB, lastTotalUpKB, currentDownKBpS, currentUpKBpS, lastOutcome,
+                NO_METRIC_NAMES, NO_METRIC_VALUES, interfaceNames, interfaceDownKBpS, interfaceUpKBpS);
+    }
+
+
+    /**
+     * read the counters once, like {@link #poll()}, but into a reused holder (nothing is allocated on the heap)
+     *
+     * @param sample receives the calculated speed values together with the total values they're based on, and the speed of every interface
+     */
+    @Override
+    public synchronized void poll(final MutableTrafficSample sample) {
+
+        update();
+        sample.set(interfaceName, lastRefresh, lastTotalDownKB, lastTotalUpKB, currentDownKBpS, currentUpKBpS, lastOutcome);
+        sample.setMetrics(NO_METRIC_NAMES, NO_METRIC_VALUES);
+        sample.setInterfaces(interfaceNames, interfaceDownKBpS, interfaceUpKBpS);
+    }
+
+
+    /**
+     * read the counters and calculate the current speed values,
+     * the results are left in the fields (no result arrays or samples, so the steady state doesn't allocate)
+     */
+    private void update() {
+
+        currentDownKBpS = -1.0f;
+        currentUpKBpS = -1.0f;
+        Arrays.fill(interfaceDownKBpS, -1.0f);
+        Arrays.fill(interfaceUpKBpS, -1.0f);
+
+        final long startNanos = System.nanoTime();
+        final int length;
+        try {
+            length = read();
+        }
+        catch (IOException e) {
+            close(); // e.g. the network namespace is gone: open the file again next time
+            fail(PollMetrics.Cause.IO, e);
+            return;
+        }
+        final long sampleNanos = System.nanoTime();
+
+        parseCounters(length);
+        final int selected = indexOf(interfaceName);
+        if (selected < 0 || !isParsed[selected]) {
+            fail(PollMetrics.Cause.PARSE, new IOException("interface not found in " + file + ": " + interfaceName));
+            return;
+        }
+        metrics.record(PollMetrics.Phase.PARSE, System.nanoTime() - sampleNanos);
+        lastOutcome = PollOutcome.OK;
+
+        final float elapsedMillis = (sampleNanos - lastSampleNanos) / 1e6f;
+        for (int i = 0; i < interfaceNames.length; i++) {
+            if (isParsed[i] && isLastRead[i] && elapsedMillis > 0
+                    && parsedTotalDown[i] >= lastTotalDown[i] && parsedTotalUp[i] >= lastTotalUp[i]) {
+                interfaceDownKBpS[i] = (parsedTotalDown[i] - lastTotalDown[i]) / elapsedMillis;
+                interfaceUpKBpS[i]   = (parsedTotalUp[i] - lastTotalUp[i])     / elapsedMillis;
+            }
+        }
+        currentDownKBpS = interfaceDownKBpS[selected];
+        currentUpKBpS = interfaceUpKBpS[selected];
+
+        lastRefresh = Math.max(System.currentTimeMillis(), lastRefresh + 1); // strictly increasing, even if the wall clock was set back
+        lastSampleNanos = sampleNanos;
+        lastTotalDownKB = parsedTotalDown[selected];
+        lastTotalUpKB = parsedTotalUp[selected];
+        System.arraycopy(parsedTotalDown, 0, lastTotalDown, 0, interfaceNames.length);
+        System.arraycopy(parsedTotalUp, 0, lastTotalUp, 0, interfaceNames.length);
+        System.arraycopy(isParsed, 0, isLastRead, 0, interfaceNames.length);
+
+        metrics.record(PollMetrics.Phase.POLL, System.nanoTime() - startNanos);
+    }
+
+
+    /**
+     * read the whole file into the buffer (from the start, the file stays open)
+     *
+     * @return number of bytes read
+     */
+    private int read() throws IOException {
+
+        if (channel == null) {
+            channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        buffer.clear();
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) >= 0) {
+            position += read;
+            if (!buffer.hasRemaining()) {
+                final ByteBuffer grown = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+        return buffer.position();
+    }
+
+
+    /**
+     * parse the byte counters of every interface line ("  eth0: rxBytes rxPackets ... txBytes ..."),
+     * the header lines have no "name:" and are skipped
+     *
+     * @param length number of bytes in the buffer
+     */
+    private void parseCounters(final int length) {
+
+        Arrays.fill(isParsed, false);
+
+        int i = 0;
+        while (i < length) {
+
+            /* interface name (indented): */
+            while (i < length && buffer.get(i) == ' ') {
+                i++;
+            }
+            final int nameStart = i;
+            while (i < length && buffer.get(i) != ':' && buffer.get(i) != ' ' && buffer.get(i) != '|' && buffer.get(i) != '\n') {
+                i++;
+            }
+            if (i < length && i > nameStart && buffer.get(i) == ':') {
+                i = parseNumbers(indexOf(nameStart, i), i + 1, length);
+            }
+
+            /* next line: */
+            while (i < length && buffer.get(i) != '\n') {
+                i++;
+            }
+            i++;
+        }
+    }
+
+
+    /**
+     * parse the space-separated numbers of a line up to the transmitted bytes
+     *
+     * @return position after the last number parsed
+     */
+    private int parseNumbers(final int index, final int start, final int length) {
+
+        int i = start;
+        long rxBytes = 0;
+        for (int column = 0; column <= TX_BYTES_COLUMN; column++) {
+
+            while (i < length && buffer.get(i) == ' ') {
+                i++;
+            }
+            if (i >= length || buffer.get(i) < '0' || buffer.get(i) > '9') {
+                return i; // not a counter line
+            }
+
+            long value = 0;
+            while (i < length && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+                value = value * 10 + (buffer.get(i) - '0');
+                i++;
+            }
+
+            if (column == RX_BYTES_COLUMN) {
+                rxBytes = value;
+            }
+            else if (column == TX_BYTES_COLUMN) {
+                parsedTotalDown[index] = rxBytes;
+                parsedTotalUp[index] = value;
+                isParsed[index] = true;
+            }
+        }
+        return i;
+    }
+
+
+    /**
+     * @return index of the interface whose name is in the buffer at [start, end), added if it's new
+     */
+    private int indexOf(final int start, final int end) {
+
+        for (int index = 0; index < interfaceNameBytes.length; index++) {
+            final byte[] name = interfaceNameBytes[index];
+            if (name.length == end - start) {
+                int j = 0;
+                while (j < name.length && buffer.get(start + j) == name[j]) {
+                    j++;
+                }
+                if (j == name.length) {
+                    return index;
+                }
+            }
+        }
+
+        final byte[] name = new byte[end - start];
+        final char[] chars = new char[name.length];
+        for (int j = 0; j < name.length; j++) {
+            name[j] = buffer.get(start + j);
+            chars[j] = (char) (name[j] & 0xff);
+        }
+        return addInterface(new String(chars), name);
+    }
+
+
+    /**
+     * @return index of the interface, -1 if it wasn't seen yet
+     */
+    private int indexOf(final String name) {
+
+        for (int index = 0; index < interfaceNames.length; index++) {
+            if (interfaceNames[index].equals(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * grow the per-interface arrays by one interface (not seen before, so it has no speed yet)
+     */
+    private int addInterface(final String name, final byte[] nameBytes) {
+
+        final int index = interfaceNames.length;
+        final int count = index + 1;
+
+        interfaceNames = Arrays.copyOf(interfaceNames, count); // a new array: the samples don't copy the names
+        interfaceNames[index] = name;
+        interfaceNameBytes = Arrays.copyOf(interfaceNameBytes, count);
+        interfaceNameBytes[index] = nameBytes;
+        parsedTotalDown = Arrays.copyOf(parsedTotalDown, count);
+        parsedTotalUp = Arrays.copyOf(parsedTotalUp, count);
+        isParsed = Arrays.copyOf(isParsed, count);
+        lastTotalDown = Arrays.copyOf(lastTotalDown, count);
+        lastTotalUp = Arrays.copyOf(lastTotalUp, count);
+        isLastRead = Arrays.copyOf(isLastRead, count);
+        interfaceDownKBpS = Arrays.copyOf(interfaceDownKBpS, count);
+        interfaceDownKBpS[index] = -1.0f;
+        interfaceUpKBpS = Arrays.copyOf(interfaceUpKBpS, count);
+        interfaceUpKBpS[index] = -1.0f;
+
+        return index;
+    }
+
+
+    /**
+     * count a failed poll and remember its outcome
+     */
+    private void fail(final PollMetrics.Cause cause, final Exception e) {
+        metrics.recordFailure(cause, interfaceName, e);
+        lastOutcome = PollOutcome.fromCause(cause);
+    }
+
+
+    /**
+     * @return result of the last poll (a read error is a connection error, a missing interface an invalid response)
+     */
+    @Override
+    public PollOutcome getLastOutcome() {
+        return lastOutcome;
+    }
+
+
+    /**
+     * @return the name of the selected interface
+     */
+    @Override
+    public String getHost() {
+        return interfaceName;
+    }
+
+
+    /**
+     * @return the file the counters are read from
+     */
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+     * @param metrics receives the timing of every poll phase and the failures (e.g. shared by all sources)
+     */
+    @Override
+    public void setMetrics(final PollMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * @return the metrics of this source's polls
+     */
+    @Override
+    public PollMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * close the file, the next poll will open it again
+     */
+    @Override
+    public synchronized void close() {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // silent fail: the file was only read
+            }
+            channel = null;
+        }
+    }
+
+}
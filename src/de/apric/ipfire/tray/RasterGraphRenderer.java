@@ -0,0 +1,273 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * speed graph renderer writing ARGB pixels directly into the int array of an image (no Graphics2D involved):
+ * every possible download column is precomputed, the upload line is blended in using a colour lookup table
+ *
+ * draws the same graph as the Graphics2D path of {@link DynamicTrayImage}, just without antialiasing
+ *
+ * @author apric
+ */
+final class RasterGraphRenderer {
+
+    private static final int BACKGROUND = 0xff404040; // Color.DARK_GRAY
+    private static final int DOWN       = 0xff00ff00; // Color.GREEN
+    private static final int ERROR      = 0xffffff00; // Color.YELLOW
+    private static final int UP         = 0xffff0000; // Color.RED ...
+    private static final int UP_ALPHA   = 204;        // ... slightly transparent (0.8)
+
+    /* download colours of the stacked interfaces (in turn), the first one is that of a single graph: */
+    static final int[] STACK_COLORS = {DOWN, 0xff00c8ff, 0xffc864ff, 0xffff8c00, 0xffffffff, 0xff008c00, 0xff0064ff, 0xffc0c0c0};
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    /* column lookup table: pixels of a column for every download bar height (0..height), the last entry is the "connection problem" column */
+    private final int[][] columns;
+    private final int errorColumn;
+
+    /* colour lookup table: the upload colour blended over each colour a column may contain */
+    private final int[] blendBase;
+    private final int[] blendResult;
+
+    private int lastUpY; // end point of the upload line so far
+
+
+    /**
+     * @param width image width
+     * @param height image height
+     * @param pixels the image's ARGB pixels (row by row, e.g. the data of a TYPE_INT_ARGB image's DataBufferInt)
+     */
+    RasterGraphRenderer(final int width, final int height, final int[] pixels) {
+
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+
+        columns = new int[height + 2][height];
+        for (int barHeight = 0; barHeight <= height; barHeight++) {
+            for (int y = 0; y < height; y++) {
+                columns[barHeight][y] = y >= height - barHeight ? DOWN : BACKGROUND;
+            }
+        }
+        errorColumn = height + 1;
+        for (int y = 0; y < height; y++) {
+            columns[errorColumn][y] = ERROR;
+        }
+
+        blendBase = new int[STACK_COLORS.length + 2];
+        blendBase[0] = BACKGROUND;
+        blendBase[1] = ERROR;
+        System.arraycopy(STACK_COLORS, 0, blendBase, 2, STACK_COLORS.length);
+        blendResult = new int[blendBase.length];
+        for (int i = 0; i < blendBase.length; i++) {
+            blendResult[i] = blend(UP, blendBase[i], UP_ALPHA);
+        }
+
+        lastUpY = height - 1;
+    }
+
+
+    /**
+     * redraw the whole graph from the newest (visible) values
+     */
+    void drawAll(final SampleRingBuffer values, final float maxDownKBpS, final float maxUpKBpS) {
+        drawAll(values, null, 0, maxDownKBpS, maxUpKBpS);
+    }
+
+
+    /**
+     * redraw the whole graph from the newest (visible) values, the download stacked by interface
+     *
+     * @param values the totals (the upload line, a negative download for the "connection problem" column)
+     * @param stackedValues download of each interface (in step with the totals)
+     * @param stackedCount number of interfaces stacked, 0 for a single download bar
+     */
+    void drawAll(final SampleRingBuffer values, final SampleRingBuffer[] stackedValues, final int stackedCount,
+            final float maxDownKBpS, final float maxUpKBpS) {
+
+        final int visibleValues = Math.min(values.size(), width);
+        final int firstVisible = values.size() - visibleValues;
+        final int firstX = width - visibleValues;
+
+        /* background left of the first value: */
+        for (int x = 0; x < firstX; x++) {
+            drawColumn(x, columns[0]);
+        }
+
+        /* download: */
+        for (int i = 0; i < visibleValues; i++) {
+            drawDownColumn(firstX + i, values, stackedValues, stackedCount, firstVisible + i, maxDownKBpS);
+        }
+
+        /* upload: */
+        lastUpY = upY(values.getUp(firstVisible), maxUpKBpS);
+        for (int i = 0; i < visibleValues; i++) {
+            drawUpSegment(firstX + i, values.getUp(firstVisible + i), maxUpKBpS);
+        }
+    }
+
+
+    /**
+     * scroll the graph left by one column and draw the newest value into the rightmost column
+     */
+    void drawNewest(final SampleRingBuffer values, final float maxDownKBpS, final float maxUpKBpS) {
+        drawNewest(values, null, 0, maxDownKBpS, maxUpKBpS);
+    }
+
+
+    /**
+     * scroll the graph left by one column and draw the newest values into the rightmost column, the download stacked by interface
+     *
+     * @param values the totals (the upload line, a negative download for the "connection problem" column)
+     * @param stackedValues download of each interface (in step with the totals)
+     * @param stackedCount number of interfaces stacked, 0 for a single download bar
+     */
+    void drawNewest(final SampleRingBuffer values, final SampleRingBuffer[] stackedValues, final int stackedCount,
+            final float maxDownKBpS, final float maxUpKBpS) {
+
+        final int newest = values.size() - 1;
+        final int x = width - 1;
+
+        for (int row = 0; row < pixels.length; row += width) {
+            System.arraycopy(pixels, row + 1, pixels, row, width - 1);
+        }
+
+        drawDownColumn(x, values, stackedValues, stackedCount, newest, maxDownKBpS);
+        drawUpSegment(x, values.getUp(newest), maxUpKBpS);
+    }
+
+
+    private void drawDownColumn(final int x, final SampleRingBuffer values, final SampleRingBuffer[] stackedValues, final int stackedCount,
+            final int index, final float maxDownKBpS) {
+
+        if (stackedCount > 0 && values.getDown(index) > 0) {
+            drawStackedColumn(x, stackedValues, stackedCount, index, maxDownKBpS);
+        }
+        else {
+            drawColumn(x, columns[columnIndex(values.getDown(index), maxDownKBpS)]);
+        }
+    }
+
+
+    /**
+     * draw the download of the interfaces on top of each other, each bar ends where the sum up to its interface ends
+     */
+    private void drawStackedColumn(final int x, final SampleRingBuffer[] stackedValues, final int stackedCount, final int index, final float maxDownKBpS) {
+
+        float sum = 0;
+        int y = height; // top of the bars so far
+        for (int k = 0; k < stackedCount; k++) {
+            sum += stackedValues[k].getDown(index);
+            final int top = height - columnIndex(sum, maxDownKBpS);
+            final int color = STACK_COLORS[k % STACK_COLORS.length];
+            for (; y > top; y--) {
+                pixels[(y - 1) * width + x] = color;
+            }
+        }
+        for (; y > 0; y--) {
+            pixels[(y - 1) * width + x] = BACKGROUND;
+        }
+    }
+
+
+    /**
+     * @return index into the column lookup table for the given download value
+     */
+    private int columnIndex(final float downKBpS, final float maxDownKBpS) {
+
+        if (downKBpS > 0) {
+            return (int) Math.min(downKBpS / maxDownKBpS * height, height);
+        }
+        else if (downKBpS < 0) {
+            return errorColumn; // connection problems
+        }
+        return 0;
+    }
+
+
+    private int upY(final float upKBpS, final float maxUpKBpS) {
+        return Math.min(height - (int) Math.min(upKBpS / maxUpKBpS * height, height), height - 1);
+    }
+
+
+    private void drawColumn(final int x, final int[] column) {
+
+        int i = x;
+        for (int y = 0; y < height; y++) {
+            pixels[i] = column[y];
+            i += width;
+        }
+    }
+
+
+    /**
+     * draw the upload line from the previous column to the given one: the first half of the vertical distance
+     * in the previous column, the second half in the given column
+     */
+    private void drawUpSegment(final int x, final float upKBpS, final float maxUpKBpS) {
+
+        if (upKBpS > 0) {
+            final int currentUpY = upY(upKBpS, maxUpKBpS);
+            final int middleY = (lastUpY + currentUpY) / 2;
+
+            if (x > 0) {
+                blendUpSpan(x - 1, lastUpY, middleY);
+            }
+            blendUpSpan(x, middleY, currentUpY);
+
+            lastUpY = currentUpY;
+        }
+    }
+
+
+    private void blendUpSpan(final int x, final int y0, final int y1) {
+
+        final int yEnd = Math.max(y0, y1);
+        for (int y = Math.min(y0, y1); y <= yEnd; y++) {
+            final int i = y * width + x;
+            final int pixel = pixels[i];
+            for (int c = 0; c < blendBase.length; c++) {
+                if (pixel == blendBase[c]) {
+                    pixels[i] = blendResult[c];
+                    break;
+                }
+            }
+            // pixels already covered by the upload line stay as they are
+        }
+    }
+
+
+    /**
+     * blend two opaque colours
+     */
+    private static int blend(final int foreground, final int background, final int alpha) {
+
+        int result = 0xff000000;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            final int f = (foreground >> shift) & 0xff;
+            final int b = (background >> shift) & 0xff;
+            result |= ((f * alpha + b * (255 - alpha) + 127) / 255) << shift;
+        }
+        return result;
+    }
+
+}
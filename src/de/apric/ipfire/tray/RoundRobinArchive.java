@@ -0,0 +1,347 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * round-robin archive (RRD-style) of down/up speed values:
+ * several tiers of different resolution (e.g. 1 second, 1 minute, 1 hour, 1 day), each a fixed number of slots
+ * holding min, max and average of all values that fell into the slot's time span.
+ * a value is a speed over the time since the previous sample: the average is weighted by that time (split across
+ * the slots it spans), so it doesn't depend on how often the host was polled (e.g. an adaptive interval).
+ * every value updates all tiers incrementally, the oldest slot of a tier is reused when time moves on
+ *
+ * the slots live in one fixed-size buffer, either on the heap or memory-mapped from a file,
+ * so memory and disk usage don't grow with the uptime
+ *
+ * @author apric
+ */
+public final class RoundRobinArchive implements Closeable {
+
+    /**
+     * receives the slots of a query
+     */
+    public interface Visitor {
+
+        /**
+         * @param start start of the slot's time span (ms since epoch)
+         * @param resolution length of the slot's time span (ms)
+         * @param covered time of the slot's span covered by values (ms), the rest is unknown (e.g. not polled)
+         */
+        void slot(long start, long resolution, long covered,
+                float downMin, float downAvg, float downMax,
+                float upMin, float upAvg, float upMax);
+    }
+
+    public static final long[] DEFAULT_RESOLUTIONS  = {1000L, 60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L};
+    public static final int[]  DEFAULT_SLOTS        = {3600,  1440,       720,             730}; // 1 hour, 1 day, 30 days, 2 years
+
+    private static final int MAGIC = 0x49504652; // "IPFR"
+    private static final int VERSION = 2; // 2: time-weighted averages
+    private static final int LAST_UPDATE = 12; // long: newest timestamp
+    private static final int HEADER_SIZE = 20; // magic, version, tier count, newest timestamp
+    private static final int TIER_HEADER_SIZE = 12; // resolution, slots
+
+    /* slot layout: */
+    private static final int SLOT_START     = 0;  // long
+    private static final int SLOT_COVERED   = 8;  // long: ms covered by the values
+    private static final int SLOT_DOWN_MIN  = 16; // float
+    private static final int SLOT_DOWN_MAX  = 20; // float
+    private static final int SLOT_DOWN_SUM  = 24; // double
+    private static final int SLOT_UP_MIN    = 32; // float
+    private static final int SLOT_UP_MAX    = 36; // float
+    private static final int SLOT_UP_SUM    = 40; // double
+    private static final int SLOT_SIZE      = 48;
+
+    private final long[] resolutions;
+    private final int[] slots;
+    private final int[] tierOffsets; // position of each tier's first slot
+
+    private final RandomAccessFile raf;
+    private final ByteBuffer buffer;
+
+
+    /**
+     * create an archive on the heap (lost on exit)
+     *
+     * @param resolutions slot length of each tier (ms), finest first
+     * @param slots number of slots of each tier
+     */
+    public RoundRobinArchive(final long[] resolutions, final int[] slots) {
+
+        this.resolutions = resolutions.clone();
+        this.slots = slots.clone();
+        this.tierOffsets = new int[resolutions.length];
+
+        raf = null;
+        buffer = ByteBuffer.allocate(layout());
+        writeHeader();
+    }
+
+
+    /**
+     * open (or create) an archive memory-mapped from the given file,
+     * an existing file with a different tier layout is reset
+     *
+     * @param file
+     * @param resolutions slot length of each tier (ms), finest first
+     * @param slots number of slots of each tier
+     * @throws IOException
+     */
+    public RoundRobinArchive(final File file, final long[] resolutions, final int[] slots) throws IOException {
+
+        this.resolutions = resolutions.clone();
+        this.slots = slots.clone();
+        this.tierOffsets = new int[resolutions.length];
+
+        final int size = layout();
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            final boolean isNew = raf.length() != size;
+            raf.setLength(size);
+            final MappedByteBuffer mappedBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer = mappedBuffer;
+
+            if (isNew || !isHeaderValid()) {
+                for (int i = 0; i < size; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                writeHeader();
+            }
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * consolidate a value into the slots of each tier the time it covers falls into (values of the past are ignored)
+     *
+     * @param timestamp ms since epoch, end of the time the value covers
+     * @param coveredMillis time the value covers up to the timestamp (e.g. since the previous sample), its weight in the averages
+     * @param downKBpS
+     * @param upKBpS
+     */
+    public synchronized void update(final long timestamp, final long coveredMillis, final float downKBpS, final float upKBpS) {
+
+        if (coveredMillis <= 0) {
+            return;
+        }
+        if (timestamp > buffer.getLong(LAST_UPDATE)) {
+            buffer.putLong(LAST_UPDATE, timestamp);
+        }
+
+        for (int tier = 0; tier < resolutions.length; tier++) {
+
+            final long resolution = resolutions[tier];
+
+            /* split the covered time at the slot boundaries (only as far back as the tier reaches): */
+            long position = Math.max(timestamp - coveredMillis, timestamp - resolution * slots[tier]);
+            while (position < timestamp) {
+                final long start = position - position % resolution;
+                final long end = Math.min(start + resolution, timestamp);
+                update(slotPosition(tier, start), start, end - position, downKBpS, upKBpS);
+                position = end;
+            }
+        }
+    }
+
+
+    /**
+     * consolidate a value into one slot
+     *
+     * @param slot position of the slot
+     * @param start start of the time span the value falls into
+     * @param covered part of the slot's span the value covers (ms)
+     */
+    private void update(final int slot, final long start, final long covered, final float downKBpS, final float upKBpS) {
+
+        final long slotStart = buffer.getLong(slot + SLOT_START);
+
+        if (slotStart > start) {
+            return; // too old, the slot was already reused
+        }
+        if (slotStart < start) { // reuse the (outdated or empty) slot
+            buffer.putLong(slot + SLOT_START, start);
+            buffer.putLong(slot + SLOT_COVERED, covered);
+            buffer.putFloat(slot + SLOT_DOWN_MIN, downKBpS);
+            buffer.putFloat(slot + SLOT_DOWN_MAX, downKBpS);
+            buffer.putDouble(slot + SLOT_DOWN_SUM, (double) downKBpS * covered);
+            buffer.putFloat(slot + SLOT_UP_MIN, upKBpS);
+            buffer.putFloat(slot + SLOT_UP_MAX, upKBpS);
+            buffer.putDouble(slot + SLOT_UP_SUM, (double) upKBpS * covered);
+        }
+        else {
+            buffer.putLong(slot + SLOT_COVERED, buffer.getLong(slot + SLOT_COVERED) + covered);
+            buffer.putFloat(slot + SLOT_DOWN_MIN, Math.min(buffer.getFloat(slot + SLOT_DOWN_MIN), downKBpS));
+            buffer.putFloat(slot + SLOT_DOWN_MAX, Math.max(buffer.getFloat(slot + SLOT_DOWN_MAX), downKBpS));
+            buffer.putDouble(slot + SLOT_DOWN_SUM, buffer.getDouble(slot + SLOT_DOWN_SUM) + (double) downKBpS * covered);
+            buffer.putFloat(slot + SLOT_UP_MIN, Math.min(buffer.getFloat(slot + SLOT_UP_MIN), upKBpS));
+            buffer.putFloat(slot + SLOT_UP_MAX, Math.max(buffer.getFloat(slot + SLOT_UP_MAX), upKBpS));
+            buffer.putDouble(slot + SLOT_UP_SUM, buffer.getDouble(slot + SLOT_UP_SUM) + (double) upKBpS * covered);
+        }
+    }
+
+
+    /**
+     * visit all filled slots of the given tier within the given time range, oldest first
+     * (a tier can only hold the last "slots" time spans up to the newest value)
+     *
+     * @param tier
+     * @param from ms since epoch (inclusive)
+     * @param to ms since epoch (inclusive)
+     * @param visitor
+     * @return number of visited slots
+     */
+    public synchronized int query(final int tier, final long from, final long to, final Visitor visitor) {
+
+        final long resolution = resolutions[tier];
+        final long span = resolution * slots[tier];
+        final long lastUpdate = buffer.getLong(LAST_UPDATE);
+        final long end = Math.min(to, lastUpdate);
+
+        /* only the last "slots" time spans up to the newest value can be in the archive: */
+        long start = Math.max(from - from % resolution, lastUpdate - lastUpdate % resolution - span + resolution);
+
+        int visited = 0;
+        for (; start <= end; start += resolution) {
+            final int slot = slotPosition(tier, start);
+            final long covered = buffer.getLong(slot + SLOT_COVERED);
+            if (buffer.getLong(slot + SLOT_START) != start || covered == 0) {
+                continue; // no values in this time span (or an empty slot at the epoch)
+            }
+            visitor.slot(start, resolution, covered,
+                    buffer.getFloat(slot + SLOT_DOWN_MIN), (float) (buffer.getDouble(slot + SLOT_DOWN_SUM) / covered), buffer.getFloat(slot + SLOT_DOWN_MAX),
+                    buffer.getFloat(slot + SLOT_UP_MIN), (float) (buffer.getDouble(slot + SLOT_UP_SUM) / covered), buffer.getFloat(slot + SLOT_UP_MAX));
+            visited++;
+        }
+        return visited;
+    }
+
+
+    /**
+     * choose the finest tier that covers the given time range (up to now) with at most the given number of slots
+     *
+     * @param from ms since epoch
+     * @param to ms since epoch
+     * @param maxPoints max. number of slots the caller wants to read
+     * @return tier index (the coarsest tier if none fits)
+     */
+    public int selectTier(final long from, final long to, final int maxPoints) {
+
+        final long now = System.currentTimeMillis();
+        for (int tier = 0; tier < resolutions.length; tier++) {
+            final boolean isCovered = now - from <= resolutions[tier] * slots[tier];
+            if (isCovered && (to - from) / resolutions[tier] < maxPoints) {
+                return tier;
+            }
+        }
+        return resolutions.length - 1;
+    }
+
+
+    public int getTierCount() {
+        return resolutions.length;
+    }
+
+    public long getResolution(final int tier) {
+        return resolutions[tier];
+    }
+
+    public int getSlotCount(final int tier) {
+        return slots[tier];
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (raf != null) {
+            ((MappedByteBuffer) buffer).force();
+            raf.close();
+        }
+    }
+
+
+    /**
+     * @return total size of header and all slots
+     */
+    private int layout() {
+
+        if (resolutions.length == 0 || resolutions.length != slots.length) {
+            throw new IllegalArgumentException("resolutions and slots must have the same (non-zero) length");
+        }
+
+        long position = HEADER_SIZE + TIER_HEADER_SIZE * resolutions.length;
+        for (int tier = 0; tier < resolutions.length; tier++) {
+            if (resolutions[tier] < 1 || slots[tier] < 1) {
+                throw new IllegalArgumentException("resolutions and slots must be > 0");
+            }
+            tierOffsets[tier] = (int) position;
+            position += (long) slots[tier] * SLOT_SIZE;
+            if (position > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("archive too large");
+            }
+        }
+        return (int) position;
+    }
+
+
+    private void writeHeader() {
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, resolutions.length);
+        buffer.putLong(LAST_UPDATE, 0);
+        for (int tier = 0; tier < resolutions.length; tier++) {
+            buffer.putLong(HEADER_SIZE + tier * TIER_HEADER_SIZE, resolutions[tier]);
+            buffer.putInt(HEADER_SIZE + tier * TIER_HEADER_SIZE + 8, slots[tier]);
+        }
+    }
+
+
+    private boolean isHeaderValid() {
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != resolutions.length) {
+            return false;
+        }
+        for (int tier = 0; tier < resolutions.length; tier++) {
+            if (buffer.getLong(HEADER_SIZE + tier * TIER_HEADER_SIZE) != resolutions[tier]
+                    || buffer.getInt(HEADER_SIZE + tier * TIER_HEADER_SIZE + 8) != slots[tier]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private int slotPosition(final int tier, final long start) {
+        return tierOffsets[tier] + (int) ((start / resolutions[tier]) % slots[tier]) * SLOT_SIZE;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ring of the latest samples between the polling threads and any number of consumers
+ * (the tray renderer, the listeners, e.g. history and exporters):
+ * publishing never waits for a consumer to catch up, every consumer reads with its own {@link Cursor}.
+ * a consumer that falls behind by more than the capacity loses the oldest samples (counted as overrun),
+ * it can't slow down the poller
+ *
+ * a sample is published by claiming the next sequence number (an atomic increment, concurrent publishers get different slots)
+ * and copying it into the slot of that number. the slots are allocated up front and reused when the ring wraps around,
+ * so publishing and reading don't allocate. the bus isn't lock-free: each slot is guarded by its own monitor,
+ * held only while one sample is copied in or out (a publisher only waits for a consumer copying out of the same slot)
+ *
+ * @author apric
+ */
+public final class SampleBus {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * a slot of the ring (guarded by itself)
+     */
+    private static final class Entry {
+
+        private long sequence = -1; // of the sample in the slot, -1: none yet
+        private int hostIndex;
+        private final MutableTrafficSample sample = new MutableTrafficSample();
+    }
+
+    /**
+     * read position of one consumer (to be used by one thread at a time)
+     */
+    public final class Cursor {
+
+        private long next;
+        private volatile long overruns = 0; // read by other threads
+
+        private Cursor(final long next) {
+            this.next = next;
+        }
+
+        /**
+         * @param sample receives the next sample
+         * @return index of the host of the sample, -1 if there is none yet (the given sample is left unchanged then)
+         */
+        public int poll(final MutableTrafficSample sample) {
+            return read(-1, sample);
+        }
+
+        /**
+         * skip all samples but the newest of the given host
+         *
+         * @param hostIndex
+         * @param sample receives the newest sample of the host published since the last read
+         * @return true if there was one (the given sample is left unchanged otherwise)
+         */
+        public boolean pollLatest(final int hostIndex, final MutableTrafficSample sample) {
+
+            boolean isFound = false;
+            for (int read = read(hostIndex, sample); read != -1; read = read(hostIndex, sample)) {
+                isFound |= read == hostIndex;
+            }
+            return isFound;
+        }
+
+        /**
+         * @return number of samples lost because the consumer fell behind
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        /**
+         * move on by one sample, copying it only if it's of the given host
+         *
+         * @param hostIndex the host to copy, -1: any
+         * @return index of the host of the sample, -1 if there is none yet
+         */
+        private int read(final int hostIndex, final MutableTrafficSample sample) {
+
+            while (true) {
+                final Entry entry = slots[(int) (next & mask)];
+                synchronized (entry) {
+                    if (entry.sequence < next) {
+                        return -1; // not published yet
+                    }
+                    if (entry.sequence == next) {
+                        if (hostIndex < 0 || entry.hostIndex == hostIndex) {
+                            sample.set(entry.sample);
+                        }
+                        next++;
+                        return entry.hostIndex;
+                    }
+                }
+
+                /* overwritten: skip to the oldest sample that can still be in the ring */
+                final long oldest = Math.max(next + 1, sequence.get() - slots.length);
+                overruns += oldest - next;
+                next = oldest;
+            }
+        }
+    }
+
+    private final Entry[] slots;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong(); // next to be claimed
+    private volatile Runnable[] publishListeners = new Runnable[0]; // copied on change, iterated without an iterator
+
+
+    /**
+     * @param capacity number of samples kept for the consumers (rounded up to a power of 2)
+     */
+    public SampleBus(final int capacity) {
+
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be 1..2^30");
+        }
+
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        slots = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Entry();
+        }
+        mask = size - 1;
+    }
+
+
+    /**
+     * @param hostIndex index of the polled host
+     * @param sample copied into the ring, may be reused by the caller right away
+     */
+    public void publish(final int hostIndex, final MutableTrafficSample sample) {
+
+        final long claimed = sequence.getAndIncrement();
+        final Entry entry = slots[(int) (claimed & mask)];
+        synchronized (entry) {
+            if (entry.sequence < claimed) { // else a whole ring of newer samples was published meanwhile (only if the caller was suspended)
+                entry.sample.set(sample);
+                entry.hostIndex = hostIndex;
+                entry.sequence = claimed;
+            }
+        }
+
+        for (Runnable listener : publishListeners) {
+            listener.run();
+        }
+    }
+
+
+    /**
+     * @return a cursor that reads all samples published from now on
+     */
+    public Cursor newCursor() {
+        return new Cursor(sequence.get());
+    }
+
+
+    /**
+     * @param listener called by the publishing thread after each sample (e.g. to wake up a consumer),
+     *          must return immediately
+     */
+    public synchronized void addPublishListener(final Runnable listener) {
+
+        final Runnable[] listeners = Arrays.copyOf(publishListeners, publishListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        publishListeners = listeners;
+    }
+
+    public synchronized void removePublishListener(final Runnable listener) {
+
+        final Runnable[] listeners = publishListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                final Runnable[] remaining = new Runnable[listeners.length - 1];
+                System.arraycopy(listeners, 0, remaining, 0, i);
+                System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                publishListeners = remaining;
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @return number of samples the ring holds
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * hands every sample published on a {@link SampleBus} to one listener, on a thread of its own:
+ * the listener may take its time (e.g. writing to disk), meanwhile the poller goes on publishing,
+ * if the listener falls behind too far it misses the oldest samples.
+ * the listener gets every sample as an immutable {@link TrafficSample}, created on the dispatcher's thread
+ *
+ * @author apric
+ */
+final class SampleDispatcher implements Runnable {
+
+    private final SampleBus bus;
+    private final SampleBus.Cursor cursor;
+    private final MutableTrafficSample sample = new MutableTrafficSample(); // only used by the thread
+    private final TrafficSampleListener listener;
+    private final Thread thread;
+    private volatile boolean isStopped = false;
+
+    private final Runnable wakeUp = new Runnable() {
+
+        @Override
+        public void run() {
+            LockSupport.unpark(thread);
+        }
+    };
+
+
+    /**
+     * start dispatching the samples published from now on
+     *
+     * @param bus
+     * @param listener
+     * @param threadName
+     */
+    SampleDispatcher(final SampleBus bus, final TrafficSampleListener listener, final String threadName) {
+
+        this.bus = bus;
+        this.listener = listener;
+        cursor = bus.newCursor();
+
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        bus.addPublishListener(wakeUp);
+        thread.start();
+    }
+
+
+    @Override
+    public void run() {
+
+        while (true) {
+            final int hostIndex = cursor.poll(sample);
+            if (hostIndex >= 0) {
+                try {
+                    listener.sampleReceived(hostIndex, sample.toTrafficSample());
+                }
+                catch (RuntimeException e) {
+                    // silent fail: a broken listener must not stop the dispatching
+                }
+            }
+            else if (isStopped) {
+                return; // everything published until now was dispatched
+            }
+            else {
+                LockSupport.park(this); // until the next sample (or stop)
+            }
+        }
+    }
+
+
+    /**
+     * dispatch the remaining samples and stop
+     *
+     * @param timeoutMillis max. time to wait for the listener
+     */
+    void stop(final long timeoutMillis) {
+
+        bus.removePublishListener(wakeUp);
+        isStopped = true;
+        LockSupport.unpark(thread);
+
+        try {
+            thread.join(timeoutMillis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    TrafficSampleListener getListener() {
+        return listener;
+    }
+
+
+    /**
+     * @return number of samples the listener missed because it fell behind
+     */
+    long getOverruns() {
+        return cursor.getOverruns();
+    }
+
+}
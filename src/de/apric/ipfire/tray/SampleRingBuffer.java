@@ -0,0 +1,116 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * fixed-capacity ring buffer of down/up samples (KB/s), backed by primitive arrays:
+ * appending never allocates, when the buffer is full the oldest sample is overwritten
+ *
+ * @author apric
+ */
+public final class SampleRingBuffer {
+
+    private final float[] downValues;
+    private final float[] upValues;
+
+    private int next = 0; // index the next sample will be written to
+    private int size = 0;
+
+
+    /**
+     * @param capacity max. number of samples kept
+     */
+    public SampleRingBuffer(final int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+
+        downValues = new float[capacity];
+        upValues = new float[capacity];
+    }
+
+
+    /**
+     * append a sample, overwriting the oldest one if the buffer is full
+     *
+     * @param downKBpS
+     * @param upKBpS
+     */
+    public void add(final float downKBpS, final float upKBpS) {
+
+        downValues[next] = downKBpS;
+        upValues[next] = upKBpS;
+
+        next = next + 1 == downValues.length ? 0 : next + 1;
+        if (size < downValues.length) {
+            size++;
+        }
+    }
+
+
+    /**
+     * @param index 0 is the oldest sample, size() - 1 the newest one
+     * @return download KB/s of the sample
+     */
+    public float getDown(final int index) {
+        return downValues[toArrayIndex(index)];
+    }
+
+    /**
+     * @param index 0 is the oldest sample, size() - 1 the newest one
+     * @return upload KB/s of the sample
+     */
+    public float getUp(final int index) {
+        return upValues[toArrayIndex(index)];
+    }
+
+    /**
+     * @return number of samples currently held
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return max. number of samples held
+     */
+    public int capacity() {
+        return downValues.length;
+    }
+
+    /**
+     * remove all samples
+     */
+    public void clear() {
+        next = 0;
+        size = 0;
+    }
+
+
+    private int toArrayIndex(final int index) {
+
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+
+        final int arrayIndex = next - size + index;
+        return arrayIndex < 0 ? arrayIndex + downValues.length : arrayIndex;
+    }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * append-only, memory-mapped store for the raw traffic counters ("rxb"/"txb") of one host:
+ * samples are written as fixed-size records into segment files of a fixed capacity, a full segment is followed by a new one
+ * and segments older than the retention time are deleted
+ *
+ * each record carries a checksum, so after a crash the write position is recovered by scanning for the first invalid record.
+ * a sparse in-memory index (every {@link #INDEX_INTERVAL}th timestamp) makes range lookups O(log n).
+ * the data lives in the mapped files, not on the heap
+ *
+ * @author apric
+ */
+public final class SampleStore implements Closeable {
+
+    /**
+     * receives the samples of a range query
+     */
+    public interface Visitor {
+
+        /**
+         * @param timestamp time the counters were read (ms since epoch)
+         * @param totalDownKB total download counter
+         * @param totalUpKB total upload counter
+         */
+        void sample(long timestamp, long totalDownKB, long totalUpKB);
+    }
+
+    public static final int INDEX_INTERVAL = 256;
+
+    private static final int MAGIC = 0x49504654; // "IPFT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32; // timestamp, rxb, txb, checksum
+    private static final long CHECKSUM_SALT = 0x5bd1e9955bd1e995L;
+
+    private static final String SEGMENT_PREFIX = "samples-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final File directory;
+    private final int recordsPerSegment;
+    private final long retentionMillis;
+
+    private final List<Segment> segments = new ArrayList<Segment>(); // oldest first, the last one is written to
+
+
+    /**
+     * open (or create) the store in the given directory, recovering the write position of the newest segment
+     *
+     * @param directory directory holding the segment files of this store only
+     * @param recordsPerSegment capacity of a new segment file (e.g. 86400 for one day of 1-second samples)
+     * @param retentionMillis segments whose newest sample is older than this (relative to the newest sample) are deleted
+     * @throws IOException
+     */
+    public SampleStore(final File directory, final int recordsPerSegment, final long retentionMillis) throws IOException {
+
+        if (recordsPerSegment < 1 || retentionMillis < 1) {
+            throw new IllegalArgumentException("records per segment and retention must be > 0");
+        }
+        if (recordsPerSegment > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+            throw new IllegalArgumentException("too many records per segment: " + recordsPerSegment);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory " + directory);
+        }
+
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        this.retentionMillis = retentionMillis;
+
+        final File[] files = directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("cannot list directory " + directory);
+        }
+        Arrays.sort(files); // names contain the (zero-padded) first timestamp
+
+        for (File file : files) {
+            final Segment segment = new Segment(file, 0);
+            if (segment.count == 0 && file != files[files.length - 1]) {
+                segment.delete(); // empty leftover
+            }
+            else {
+                segments.add(segment);
+            }
+        }
+
+        applyRetention();
+    }
+
+
+    /**
+     * append a sample, samples not newer than the last one are ignored
+     *
+     * @param timestamp time the counters were read (ms since epoch)
+     * @param totalDownKB
+     * @param totalUpKB
+     * @return false if the sample was ignored
+     * @throws IOException in case a new segment file can't be created
+     */
+    public synchronized boolean append(final long timestamp, final long totalDownKB, final long totalUpKB) throws IOException {
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+        if (segment != null && segment.count > 0 && timestamp <= segment.lastTimestamp) {
+            return false;
+        }
+
+        if (segment == null || segment.count == segment.capacity) {
+            segment = new Segment(new File(directory, String.format("%s%013d%s", SEGMENT_PREFIX, timestamp, SEGMENT_SUFFIX)), recordsPerSegment);
+            segments.add(segment);
+            applyRetention();
+        }
+
+        segment.append(timestamp, totalDownKB, totalUpKB);
+        return true;
+    }
+
+
+    /**
+     * visit all samples within the given time range (both inclusive), oldest first
+     *
+     * @param from
+     * @param to
+     * @param visitor
+     * @return number of visited samples
+     */
+    public synchronized int query(final long from, final long to, final Visitor visitor) {
+
+        int visited = 0;
+        for (Segment segment : segments) {
+            if (segment.count > 0 && segment.firstTimestamp <= to && segment.lastTimestamp >= from) {
+                visited += segment.query(from, to, visitor);
+            }
+        }
+        return visited;
+    }
+
+
+    /**
+     * @return number of samples held
+     */
+    public synchronized long size() {
+
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    /**
+     * @return timestamp of the oldest sample, -1 if empty
+     */
+    public synchronized long getFirstTimestamp() {
+
+        for (Segment segment : segments) {
+            if (segment.count > 0) {
+                return segment.firstTimestamp;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return timestamp of the newest sample, -1 if empty
+     */
+    public synchronized long getLastTimestamp() {
+
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).count > 0) {
+                return segments.get(i).lastTimestamp;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * write all changes to disk (the OS does this anyway, this is only needed to survive a power failure)
+     */
+    public synchronized void force() {
+
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        force();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+
+    /**
+     * delete the segments that are completely older than the retention time (never the segment written to)
+     */
+    private void applyRetention() {
+
+        final long newest = getLastTimestamp();
+        while (segments.size() > 1 && segments.get(0).lastTimestamp < newest - retentionMillis) {
+            segments.remove(0).delete();
+        }
+    }
+
+
+    private static long checksum(final long timestamp, final long totalDownKB, final long totalUpKB) {
+        return ((timestamp * 31 + totalDownKB) * 31 + totalUpKB) ^ CHECKSUM_SALT;
+    }
+
+
+    /**
+     * one mapped segment file
+     */
+    private static final class Segment {
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final long[] index;
+
+        private int count = 0;
+        private long firstTimestamp = 0;
+        private long lastTimestamp = 0;
+
+
+        /**
+         * open an existing segment file (and recover its write position) or create a new one
+         *
+         * @param newCapacity capacity in case the file has to be created
+         */
+        Segment(final File file, final int newCapacity) throws IOException {
+
+            this.file = file;
+
+            final boolean isNew = !file.exists() || file.length() < HEADER_SIZE;
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                if (isNew) {
+                    raf.setLength(HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+                    capacity = newCapacity;
+                }
+                else {
+                    raf.seek(0);
+                    if (raf.readInt() != MAGIC || raf.readInt() != VERSION || raf.readInt() != RECORD_SIZE) {
+                        throw new IOException("not a sample store segment: " + file);
+                    }
+                    capacity = (int) Math.min(raf.readInt(), (raf.length() - HEADER_SIZE) / RECORD_SIZE);
+                }
+
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            }
+            catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+
+            index = new long[(capacity + INDEX_INTERVAL - 1) / INDEX_INTERVAL];
+
+            if (isNew) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, RECORD_SIZE);
+                buffer.putInt(12, capacity);
+            }
+            else {
+                recover();
+            }
+        }
+
+
+        /**
+         * find the write position: the first record that is empty, torn (invalid checksum) or out of order
+         */
+        private void recover() {
+
+            while (count < capacity) {
+                final int position = HEADER_SIZE + count * RECORD_SIZE;
+                final long timestamp = buffer.getLong(position);
+                final long totalDownKB = buffer.getLong(position + 8);
+                final long totalUpKB = buffer.getLong(position + 16);
+
+                if (timestamp <= 0 || buffer.getLong(position + 24) != checksum(timestamp, totalDownKB, totalUpKB)
+                        || (count > 0 && timestamp <= lastTimestamp)) {
+                    break;
+                }
+                addToIndex(timestamp);
+            }
+
+            /* clear a torn record, so it can't become "valid" later: */
+            if (count < capacity) {
+                buffer.putLong(HEADER_SIZE + count * RECORD_SIZE + 24, 0);
+            }
+        }
+
+
+        void append(final long timestamp, final long totalDownKB, final long totalUpKB) {
+
+            final int position = HEADER_SIZE + count * RECORD_SIZE;
+            buffer.putLong(position, timestamp);
+            buffer.putLong(position + 8, totalDownKB);
+            buffer.putLong(position + 16, totalUpKB);
+            buffer.putLong(position + 24, checksum(timestamp, totalDownKB, totalUpKB)); // written last: marks the record as complete
+
+            addToIndex(timestamp);
+        }
+
+
+        private void addToIndex(final long timestamp) {
+
+            if (count % INDEX_INTERVAL == 0) {
+                index[count / INDEX_INTERVAL] = timestamp;
+            }
+            if (count == 0) {
+                firstTimestamp = timestamp;
+            }
+            lastTimestamp = timestamp;
+            count++;
+        }
+
+
+        int query(final long from, final long to, final Visitor visitor) {
+
+            /* binary search in the sparse index for the last block starting at or before "from": */
+            int low = 0;
+            int high = (count - 1) / INDEX_INTERVAL;
+            while (low < high) {
+                final int middle = (low + high + 1) >>> 1;
+                if (index[middle] <= from) {
+                    low = middle;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+
+            int visited = 0;
+            for (int i = low * INDEX_INTERVAL; i < count; i++) {
+                final int position = HEADER_SIZE + i * RECORD_SIZE;
+                final long timestamp = buffer.getLong(position);
+                if (timestamp > to) {
+                    break;
+                }
+                if (timestamp >= from) {
+                    visitor.sample(timestamp, buffer.getLong(position + 8), buffer.getLong(position + 16));
+                    visited++;
+                }
+            }
+            return visited;
+        }
+
+
+        void close() throws IOException {
+            raf.close(); // the mapping itself is released by the garbage collector
+        }
+
+
+        void delete() {
+
+            try {
+                close();
+            }
+            catch (IOException e) {
+                // ignore, we're deleting it anyway
+            }
+            if (!file.delete()) {
+                file.deleteOnExit(); // e.g. still mapped on Windows
+            }
+        }
+    }
+
+}
@@ -122,6 +122,20 @@ final class SettingsManager {
             throw new IllegalArgumentException("interval must an integer (milliseconds) and > 0. Check the settings file.", ex);
         }
         
+        /* minInterval, maxInterval, pollTimeout (optional) */
+        for (String intervalProperty : new String[]{"minInterval", "maxInterval", "pollTimeout"}) {
+            if (properties.getProperty(intervalProperty) != null) {
+                try {
+                    if (Long.parseLong(properties.getProperty(intervalProperty)) < 1) {
+                        throw new IllegalArgumentException(intervalProperty + " must be > 0. Check the settings file.");
+                    }
+                }
+                catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException(intervalProperty + " must an integer (milliseconds) and > 0. Check the settings file.", ex);
+                }
+            }
+        }
+
         /* maxDownKBpS */
         try {
             final float maxDownKBpS = Float.parseFloat(properties.getProperty("maxDownKBpS"));
@@ -143,7 +157,94 @@ final class SettingsManager {
         catch (NumberFormatException ex) {
             throw new IllegalArgumentException("maxUpKBpS must be a float value (KB/s) and > 0. Check the settings file.", ex);
         }
-        
+
+        /* hosts (optional) */
+        final String hosts = properties.getProperty("hosts");
+        if (hosts != null) {
+            for (String hostAndPort : hosts.split(",")) {
+                hostAndPort = hostAndPort.trim();
+                final int colon = hostAndPort.lastIndexOf(':');
+                try {
+                    new URI(colon > 0 ? hostAndPort.substring(0, colon) : hostAndPort);
+                    if (colon > 0) {
+                        Integer.parseInt(hostAndPort.substring(colon + 1));
+                    }
+                }
+                catch (URISyntaxException ex) {
+                    throw new IllegalArgumentException("hosts must be a comma-separated list of \"host\" or \"host:port\". Check the settings file.", ex);
+                }
+                catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("hosts must be a comma-separated list of \"host\" or \"host:port\". Check the settings file.", ex);
+                }
+            }
+        }
+
+        /* pollThreads (optional) */
+        if (properties.getProperty("pollThreads") != null) {
+            try {
+                if (Integer.parseInt(properties.getProperty("pollThreads")) < 1) {
+                    throw new IllegalArgumentException("pollThreads must be > 0. Check the settings file.");
+                }
+            }
+            catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("pollThreads must be an integer and > 0. Check the settings file.", ex);
+            }
+        }
+
+        /* historyRetentionDays (optional) */
+        if (properties.getProperty("historyRetentionDays") != null) {
+            try {
+                if (Long.parseLong(properties.getProperty("historyRetentionDays")) < 1) {
+                    throw new IllegalArgumentException("historyRetentionDays must be > 0. Check the settings file.");
+                }
+            }
+            catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("historyRetentionDays must be an integer and > 0. Check the settings file.", ex);
+            }
+        }
+
+        /* renderer (optional) */
+        final String renderer = properties.getProperty("renderer");
+        if (renderer != null
+                && !renderer.trim().equalsIgnoreCase("graphics_2d")
+                && !renderer.trim().equalsIgnoreCase("raster")) {
+            throw new IllegalArgumentException("renderer must be \"graphics_2d\" or \"raster\". Check the settings file.");
+        }
+
+        /* historySize (optional) */
+        if (properties.getProperty("historySize") != null) {
+            try {
+                if (Integer.parseInt(properties.getProperty("historySize").trim()) < 1) {
+                    throw new IllegalArgumentException("historySize must be > 0. Check the settings file.");
+                }
+            }
+            catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("historySize must be an integer and > 0. Check the settings file.", ex);
+            }
+        }
+
+        /* statusEndpoints (optional) */
+        if (properties.getProperty("statusEndpoints") != null) {
+            try {
+                StatusEndpoint.parseList(properties.getProperty("statusEndpoints"));
+            }
+            catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("statusEndpoints must be a list of \"path:tag,tag\" separated by \";\" (" + ex.getMessage() + "). Check the settings file.", ex);
+            }
+        }
+
+        /* localInterface (optional) */
+        final String localInterface = properties.getProperty("localInterface");
+        if (localInterface != null && !localInterface.trim().matches("[^\\s:/]+")) {
+            throw new IllegalArgumentException("localInterface must be the name of a network interface (e.g. eth0). Check the settings file.");
+        }
+
+        /* graphInterfaces (optional) */
+        final String graphInterfaces = properties.getProperty("graphInterfaces");
+        if (graphInterfaces != null && !graphInterfaces.trim().matches("[^\\s:/,]+(\\s*,\\s*[^\\s:/,]+)*")) {
+            throw new IllegalArgumentException("graphInterfaces must be a comma-separated list of network interfaces (e.g. eth0,wlan0). Check the settings file.");
+        }
+
     }
 
 
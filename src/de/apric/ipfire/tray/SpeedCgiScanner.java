@@ -0,0 +1,195 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * byte-level scanner for simple XML documents like speed.cgi:
+ * reads the numeric content of a fixed set of tags (e.g. "rxb" and "txb") directly from the response bytes,
+ * without building a DOM and without creating any objects per call
+ *
+ * only the first occurrence of each tag counts, its content must be an (optionally signed) integer,
+ * surrounded by optional whitespace and directly followed by the closing tag.
+ * everything else is reported as "not scannable", the caller should fall back to a real XML parser then
+ *
+ * @author apric
+ */
+public final class SpeedCgiScanner {
+
+    private static final int MAX_DIGITS = 18; // always fits into a long
+
+    private final String[] tagNames;
+    private final byte[][] tagNameBytes;
+    private final long[] values;
+    private final boolean[] found;
+
+
+    /**
+     * @param tagNames names of the numeric tags to read, e.g. "rxb", "txb"
+     */
+    public SpeedCgiScanner(final String... tagNames) {
+
+        if (tagNames.length == 0) {
+            throw new IllegalArgumentException("at least one tag name is required");
+        }
+
+        this.tagNames = tagNames.clone();
+        this.tagNameBytes = new byte[tagNames.length][];
+        for (int i = 0; i < tagNames.length; i++) {
+            final String tagName = tagNames[i];
+            tagNameBytes[i] = new byte[tagName.length()];
+            for (int c = 0; c < tagName.length(); c++) {
+                tagNameBytes[i][c] = (byte) tagName.charAt(c);
+            }
+        }
+        this.values = new long[tagNames.length];
+        this.found = new boolean[tagNames.length];
+    }
+
+
+    /**
+     * scan the given bytes for all configured tags
+     *
+     * @param data buffer holding the document
+     * @param offset start of the document
+     * @param length length of the document
+     * @return true if every tag was found with a valid numeric content, false if the document can't be read this way
+     */
+    public boolean scan(final byte[] data, final int offset, final int length) {
+
+        final int end = offset + length;
+        int missing = tagNames.length;
+
+        for (int i = 0; i < tagNames.length; i++) {
+            found[i] = false;
+        }
+
+        int pos = offset;
+        while (missing > 0 && pos < end) {
+
+            if (data[pos] != '<') {
+                pos++;
+                continue;
+            }
+
+            final int tag = matchTag(data, pos + 1, end);
+            if (tag < 0 || found[tag]) {
+                pos++;
+                continue;
+            }
+
+            /* content: */
+            pos += tagNameBytes[tag].length + 2; // skip "<name>"
+            pos = skipWhitespace(data, pos, end);
+
+            boolean isNegative = false;
+            if (pos < end && data[pos] == '-') {
+                isNegative = true;
+                pos++;
+            }
+
+            long value = 0;
+            int digits = 0;
+            while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+                value = value * 10 + (data[pos] - '0');
+                digits++;
+                pos++;
+            }
+            if (digits == 0 || digits > MAX_DIGITS) {
+                return false; // no number (or too large for a long)
+            }
+
+            /* closing tag: */
+            pos = skipWhitespace(data, pos, end);
+            if (pos + 1 >= end || data[pos] != '<' || data[pos + 1] != '/' || matchTag(data, pos + 2, end) != tag) {
+                return false;
+            }
+            pos += tagNameBytes[tag].length + 3; // skip "</name>"
+
+            values[tag] = isNegative ? -value : value;
+            found[tag] = true;
+            missing--;
+        }
+
+        return missing == 0;
+    }
+
+
+    /**
+     * @param tagIndex index of the tag (in the order given to the constructor)
+     * @return the value read by the last successful {@link #scan(byte[], int, int)}
+     */
+    public long getValue(final int tagIndex) {
+        return values[tagIndex];
+    }
+
+
+    /**
+     * @param tagName a configured tag name
+     * @return its index, or -1 if the tag is not configured
+     */
+    public int indexOf(final String tagName) {
+
+        for (int i = 0; i < tagNames.length; i++) {
+            if (tagNames[i].equals(tagName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return number of configured tags
+     */
+    public int getTagCount() {
+        return tagNames.length;
+    }
+
+
+    /**
+     * @return index of the configured tag whose name (followed by '&gt;') starts at the given position, or -1
+     */
+    private int matchTag(final byte[] data, final int start, final int end) {
+
+        for (int tag = 0; tag < tagNameBytes.length; tag++) {
+            final byte[] name = tagNameBytes[tag];
+            if (start + name.length >= end) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length && data[start + i] == name[i]) {
+                i++;
+            }
+            if (i == name.length && data[start + i] == '>') {
+                return tag;
+            }
+        }
+        return -1;
+    }
+
+
+    private static int skipWhitespace(final byte[] data, final int start, final int end) {
+
+        int pos = start;
+        while (pos < end && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\r' || data[pos] == '\n')) {
+            pos++;
+        }
+        return pos;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * an additional status page of the IPFire web interface, fetched together with speed.cgi on every poll:
+ * a CGI answering a small XML document like speed.cgi, its numeric tags become metrics of the sample
+ * (e.g. "/cgi-bin/load.cgi" with the tags "load1", "load5")
+ *
+ * @author apric
+ */
+public final class StatusEndpoint {
+
+    private final String path;
+    private final String[] tagNames;
+
+
+    /**
+     * @param path absolute path on the web interface, e.g. "/cgi-bin/load.cgi"
+     * @param tagNames names of the numeric tags to read (the names of the metrics, too)
+     */
+    public StatusEndpoint(final String path, final String... tagNames) {
+
+        if (path == null || !path.startsWith("/") || containsWhitespace(path)) {
+            throw new IllegalArgumentException("invalid path of status endpoint: " + path);
+        }
+        if (tagNames.length == 0) {
+            throw new IllegalArgumentException("no tags given for status endpoint " + path);
+        }
+        for (String tagName : tagNames) {
+            if (tagName == null || tagName.isEmpty() || containsWhitespace(tagName) || tagName.indexOf('<') >= 0 || tagName.indexOf('>') >= 0) {
+                throw new IllegalArgumentException("invalid tag name of status endpoint " + path + ": " + tagName);
+            }
+        }
+
+        this.path = path;
+        this.tagNames = tagNames.clone();
+    }
+
+
+    /**
+     * parse a list of endpoints, e.g. "/cgi-bin/load.cgi:load1,load5; /cgi-bin/conntrack.cgi:connections"
+     *
+     * @param endpoints endpoints separated by ";", each one as "path:tag,tag,..."
+     * @return the endpoints in the given order
+     * @throws IllegalArgumentException in case of a syntax error or a tag name used twice
+     */
+    public static List<StatusEndpoint> parseList(final String endpoints) {
+
+        final List<StatusEndpoint> list = new ArrayList<StatusEndpoint>();
+        final Set<String> metricNames = new HashSet<String>();
+
+        for (String endpoint : endpoints.split(";")) {
+            endpoint = endpoint.trim();
+            if (endpoint.isEmpty()) {
+                continue;
+            }
+            final int colon = endpoint.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("status endpoint without tags (\"path:tag,tag\"): " + endpoint);
+            }
+
+            final String[] tagNames = endpoint.substring(colon + 1).split(",");
+            for (int i = 0; i < tagNames.length; i++) {
+                tagNames[i] = tagNames[i].trim();
+                if (!metricNames.add(tagNames[i])) {
+                    throw new IllegalArgumentException("metric name used twice in status endpoints: " + tagNames[i]);
+                }
+            }
+            list.add(new StatusEndpoint(endpoint.substring(0, colon).trim(), tagNames));
+        }
+        return list;
+    }
+
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return names of the numeric tags read from the response
+     */
+    public String[] getTagNames() {
+        return tagNames.clone();
+    }
+
+
+    @Override
+    public String toString() {
+        return path + ":" + Arrays.toString(tagNames);
+    }
+
+
+    private static boolean containsWhitespace(final String s) {
+
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
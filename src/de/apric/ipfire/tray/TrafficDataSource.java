@@ -0,0 +1,80 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * a source of traffic counters polled by the {@link MultiHostPoller} and shown in the tray:
+ * e.g. an IPFire firewall ({@link IPFireDataProvider}) or a local network interface ({@link ProcNetDevDataSource})
+ *
+ * the counters are read on every poll, the rates are calculated from the previous counters,
+ * so one source must not be polled by several threads at the same time (the implementations are synchronized)
+ *
+ * @author apric
+ */
+public interface TrafficDataSource {
+
+    /**
+     * read the counters once
+     *
+     * @return the calculated speed values together with the total values they're based on
+     * @throws Exception in case polling can't go on (e.g. invalid login), temporary failures are reported by the sample's outcome
+     */
+    TrafficSample poll() throws Exception;
+
+    /**
+     * read the counters once, like {@link #poll()}, but into a reused holder (without allocating in the steady state)
+     *
+     * @param sample receives the calculated speed values together with the total values they're based on
+     * @throws Exception in case polling can't go on (e.g. invalid login), temporary failures are reported by the sample's outcome
+     */
+    void poll(MutableTrafficSample sample) throws Exception;
+
+    /**
+     * read the counters once
+     *
+     * @return float values for current down and up KB/s, -1 if unknown
+     * @throws Exception in case polling can't go on (e.g. invalid login)
+     */
+    float[] getSpeedParams() throws Exception;
+
+    /**
+     * @return result of the last poll (e.g. to tell a timeout from a refused connection)
+     */
+    PollOutcome getLastOutcome();
+
+    /**
+     * @return name of the source, used as host of the samples (e.g. the hostname of the firewall)
+     */
+    String getHost();
+
+    /**
+     * @param metrics receives the timing of every poll phase and the failures (e.g. shared by all sources)
+     */
+    void setMetrics(PollMetrics metrics);
+
+    /**
+     * @return the metrics of this source's polls
+     */
+    PollMetrics getMetrics();
+
+    /**
+     * release the connection or files, the next poll will open them again
+     */
+    void close();
+
+}
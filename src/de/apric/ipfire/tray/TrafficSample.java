@@ -0,0 +1,250 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * immutable result of one poll of one firewall:
+ * the speed values, - if status endpoints are configured - their metrics (see {@link StatusEndpoint})
+ * and - if the source reads several interfaces at once (see {@link ProcNetDevDataSource}) - the speed of each interface
+ *
+ * @author apric
+ */
+public final class TrafficSample {
+
+    public static final long NO_VALUE = Long.MIN_VALUE; // metric not available (e.g. its endpoint failed)
+
+    private static final String[] NO_METRIC_NAMES = new String[0];
+    private static final long[] NO_METRIC_VALUES = new long[0];
+    private static final String[] NO_INTERFACE_NAMES = new String[0];
+    private static final float[] NO_INTERFACE_VALUES = new float[0];
+
+    private final String host;
+    private final long timestamp;
+    private final long totalDownKB;
+    private final long totalUpKB;
+    private final float downKBpS;
+    private final float upKBpS;
+    private final PollOutcome outcome;
+    private final String[] metricNames;
+    private final long[] metricValues;
+    private final String[] interfaceNames;
+    private final float[] interfaceDownKBpS;
+    private final float[] interfaceUpKBpS;
+
+
+    /**
+     * @param host the polled firewall
+     * @param timestamp time the total counters were read (ms since epoch), unchanged if the poll failed
+     * @param totalDownKB total download counter ("rxb")
+     * @param totalUpKB total upload counter ("txb")
+     * @param downKBpS current download KB/s, -1 if unknown
+     * @param upKBpS current upload KB/s, -1 if unknown
+     * @param outcome result of the poll
+     */
+    public TrafficSample(final String host, final long timestamp, final long totalDownKB, final long totalUpKB, final float downKBpS, final float upKBpS,
+            final PollOutcome outcome) {
+        this(host, timestamp, totalDownKB, totalUpKB, downKBpS, upKBpS, outcome, NO_METRIC_NAMES, NO_METRIC_VALUES);
+    }
+
+
+    /**
+     * @param host the polled firewall
+     * @param timestamp time the total counters were read (ms since epoch), unchanged if the poll failed
+     * @param totalDownKB total download counter ("rxb")
+     * @param totalUpKB total upload counter ("txb")
+     * @param downKBpS current download KB/s, -1 if unknown
+     * @param upKBpS current upload KB/s, -1 if unknown
+     * @param outcome result of the poll
+     * @param metricNames names of the status endpoints' metrics
+     * @param metricValues one value per name, {@link #NO_VALUE} if not available
+     */
+    public TrafficSample(final String host, final long timestamp, final long totalDownKB, final long totalUpKB, final float downKBpS, final float upKBpS,
+            final PollOutcome outcome, final String[] metricNames, final long[] metricValues) {
+        this(host, timestamp, totalDownKB, totalUpKB, downKBpS, upKBpS, outcome, metricNames, metricValues,
+                NO_INTERFACE_NAMES, NO_INTERFACE_VALUES, NO_INTERFACE_VALUES);
+    }
+
+
+    /**
+     * @param host the polled firewall
+     * @param timestamp time the total counters were read (ms since epoch), unchanged if the poll failed
+     * @param totalDownKB total download counter ("rxb")
+     * @param totalUpKB total upload counter ("txb")
+     * @param downKBpS current download KB/s, -1 if unknown
+     * @param upKBpS current upload KB/s, -1 if unknown
+     * @param outcome result of the poll
+     * @param metricNames names of the status endpoints' metrics
+     * @param metricValues one value per name, {@link #NO_VALUE} if not available
+     * @param interfaceNames names of the network interfaces read with this poll
+     * @param interfaceDownKBpS current download KB/s of each interface, -1 if unknown
+     * @param interfaceUpKBpS current upload KB/s of each interface, -1 if unknown
+     */
+    public TrafficSample(final String host, final long timestamp, final long totalDownKB, final long totalUpKB, final float downKBpS, final float upKBpS,
+            final PollOutcome outcome, final String[] metricNames, final long[] metricValues,
+            final String[] interfaceNames, final float[] interfaceDownKBpS, final float[] interfaceUpKBpS) {
+
+        if (metricNames.length != metricValues.length) {
+            throw new IllegalArgumentException("one value per metric name required");
+        }
+        if (interfaceNames.length != interfaceDownKBpS.length || interfaceNames.length != interfaceUpKBpS.length) {
+            throw new IllegalArgumentException("one value per interface name required");
+        }
+
+        this.host = host;
+        this.timestamp = timestamp;
+        this.totalDownKB = totalDownKB;
+        this.totalUpKB = totalUpKB;
+        this.downKBpS = downKBpS;
+        this.upKBpS = upKBpS;
+        this.outcome = outcome;
+        this.metricNames = metricNames.length > 0 ? metricNames.clone() : NO_METRIC_NAMES;
+        this.metricValues = metricValues.length > 0 ? metricValues.clone() : NO_METRIC_VALUES;
+        this.interfaceNames = interfaceNames.length > 0 ? interfaceNames.clone() : NO_INTERFACE_NAMES;
+        this.interfaceDownKBpS = interfaceDownKBpS.length > 0 ? interfaceDownKBpS.clone() : NO_INTERFACE_VALUES;
+        this.interfaceUpKBpS = interfaceUpKBpS.length > 0 ? interfaceUpKBpS.clone() : NO_INTERFACE_VALUES;
+    }
+
+
+    public String getHost() {
+        return host;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getTotalDownKB() {
+        return totalDownKB;
+    }
+
+    public long getTotalUpKB() {
+        return totalUpKB;
+    }
+
+    public float getDownKBpS() {
+        return downKBpS;
+    }
+
+    public float getUpKBpS() {
+        return upKBpS;
+    }
+
+    /**
+     * @return why the poll failed (the speed values are -1 then), {@link PollOutcome#OK} if it succeeded
+     */
+    public PollOutcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return false if the poll failed or there was no previous poll to calculate the speed from
+     */
+    public boolean isValid() {
+        return downKBpS >= 0 && upKBpS >= 0;
+    }
+
+    /**
+     * @return number of metrics read from the status endpoints (0 if none are configured)
+     */
+    public int getMetricCount() {
+        return metricNames.length;
+    }
+
+    public String getMetricName(final int index) {
+        return metricNames[index];
+    }
+
+    /**
+     * @param index
+     * @return value of the metric, {@link #NO_VALUE} if not available
+     */
+    public long getMetricValue(final int index) {
+        return metricValues[index];
+    }
+
+    /**
+     * @param name name of the metric (its tag name)
+     * @return value of the metric, {@link #NO_VALUE} if not available or unknown
+     */
+    public long getMetric(final String name) {
+
+        for (int i = 0; i < metricNames.length; i++) {
+            if (metricNames[i].equals(name)) {
+                return metricValues[i];
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return number of interfaces read with this poll (0 if the source reads only one)
+     */
+    public int getInterfaceCount() {
+        return interfaceNames.length;
+    }
+
+    public String getInterfaceName(final int index) {
+        return interfaceNames[index];
+    }
+
+    /**
+     * @param name name of the interface (e.g. "eth0")
+     * @return index of the interface, -1 if it wasn't read
+     */
+    public int getInterfaceIndex(final String name) {
+
+        for (int i = 0; i < interfaceNames.length; i++) {
+            if (interfaceNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index
+     * @return current download KB/s of the interface, -1 if unknown
+     */
+    public float getInterfaceDownKBpS(final int index) {
+        return interfaceDownKBpS[index];
+    }
+
+    /**
+     * @param index
+     * @return current upload KB/s of the interface, -1 if unknown
+     */
+    public float getInterfaceUpKBpS(final int index) {
+        return interfaceUpKBpS[index];
+    }
+
+
+    @Override
+    public String toString() {
+
+        final StringBuilder metrics = new StringBuilder();
+        for (int i = 0; i < metricNames.length; i++) {
+            metrics.append(", ").append(metricNames[i]).append('=').append(metricValues[i] != NO_VALUE ? String.valueOf(metricValues[i]) : "n/a");
+        }
+        for (int i = 0; i < interfaceNames.length; i++) {
+            metrics.append(", ").append(interfaceNames[i]).append('=').append(interfaceDownKBpS[i]).append('/').append(interfaceUpKBpS[i]).append(" KB/s");
+        }
+        return host + " @" + timestamp + ": " + downKBpS + " KB/s down, " + upKBpS + " KB/s up (total: " + totalDownKB + " KB / " + totalUpKB + " KB, " + outcome
+                + metrics + ")";
+    }
+
+}
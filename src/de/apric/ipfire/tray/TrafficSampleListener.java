@@ -0,0 +1,45 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * gets notified about every poll of the {@link MultiHostPoller}
+ * (the samples are handed over on a thread of the listener's own, so a slow listener doesn't delay the polls,
+ * but may miss samples if it falls far behind. {@link #pollingStopped} is called from the polling threads)
+ *
+ * @author apric
+ */
+public interface TrafficSampleListener {
+
+    /**
+     * a poll has finished
+     *
+     * @param hostIndex index of the polled host
+     * @param sample the new sample
+     */
+    void sampleReceived(int hostIndex, TrafficSample sample);
+
+    /**
+     * a poll failed in a way that retrying won't help (e.g. invalid login), this host won't be polled anymore
+     *
+     * @param hostIndex index of the host
+     * @param e the cause
+     */
+    void pollingStopped(int hostIndex, Exception e);
+
+}
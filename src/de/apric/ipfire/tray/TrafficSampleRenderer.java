@@ -0,0 +1,46 @@
+/*
+ * This file is part of IPFireTray.
+ *
+ * IPFireTray is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IPFireTray is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with IPFireTray.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.apric.ipfire.tray;
+
+/**
+ * draws the newest sample of one host of the {@link MultiHostPoller} (e.g. into the tray icon):
+ * called on the event dispatch thread, a burst of samples is coalesced into one call,
+ * so a slow renderer never delays the polls and never draws an outdated sample
+ *
+ * @author apric
+ */
+public interface TrafficSampleRenderer {
+
+    /**
+     * a new sample of the host arrived
+     *
+     * @param hostIndex index of the polled host
+     * @param sample the newest sample, only valid during the call (the holder is reused for the next one)
+     */
+    void render(int hostIndex, MutableTrafficSample sample);
+
+    /**
+     * a poll failed in a way that retrying won't help (e.g. invalid login), this host won't be polled anymore
+     * (called on the polling thread)
+     *
+     * @param hostIndex index of the host
+     * @param e the cause
+     */
+    void pollingStopped(int hostIndex, Exception e);
+
+}
@@ -27,6 +27,7 @@ import java.awt.Dimension;
 import java.awt.GridLayout;
 import java.awt.Point;
 import java.awt.Toolkit;
+import java.text.DecimalFormatSymbols;
 import javax.swing.BorderFactory;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -50,6 +51,14 @@ public final class TrayIconTooltip extends JWindow {
     private JLabel downKBpSLabel;
     private JLabel upKBpSLabel;
 
+    /* the latest values, shown while the tooltip is visible: */
+    private PollOutcome outcome = PollOutcome.OK;
+    private float downloadKBpS = -1.0f;
+    private float uploadKBpS = -1.0f;
+
+    private final char decimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+    private final char[] digits = new char[24]; // formatting buffer, enough for any long
+
     /**
      * create the tooltip (a JWindow)
      */
@@ -80,6 +89,7 @@ public final class TrayIconTooltip extends JWindow {
 
         this.point = p;
 
+        showValues();
         adjustLocation();
         setVisible(true);
         toFront();
@@ -206,6 +216,39 @@ public final class TrayIconTooltip extends JWindow {
         );
     }
 
+    /**
+     * remember the latest values of the host shown in the tray,
+     * the labels are only updated while the tooltip is visible (otherwise when it's shown), so a hidden tooltip costs nothing
+     * (on the EDT)
+     *
+     * @param outcome result of the latest poll, shown in the title if it failed
+     * @param download current download KB/s, -1 if unknown
+     * @param upload current upload KB/s, -1 if unknown
+     */
+    public void setValues(final PollOutcome outcome, final float download, final float upload) {
+
+        this.outcome = outcome;
+        this.downloadKBpS = download;
+        this.uploadKBpS = upload;
+
+        if (isVisible()) {
+            showValues();
+        }
+    }
+
+    /**
+     * update the labels with the latest values
+     */
+    private void showValues() {
+
+        setTitle(outcome == PollOutcome.OK ? "IPFireTray" : "IPFireTray: " + outcome.getDescription());
+        setDownloadKBpS(downloadKBpS);
+        setUploadKBpS(uploadKBpS);
+        if (!getPreferredSize().equals(getSize())) {
+            pack(); // only if the new text doesn't fit
+        }
+    }
+
     /**
      * set "title" label
      * @param title
@@ -220,7 +263,7 @@ public final class TrayIconTooltip extends JWindow {
      */
     public void setDownloadKBpS(final float download) {
         if (download >= 0) {
-            downValue.setText(String.format("%5.1f", download));
+            downValue.setText(formatKBpS(download));
         }
         else {
             downValue.setText("n/a");
@@ -233,10 +276,36 @@ public final class TrayIconTooltip extends JWindow {
      */
     public void setUploadKBpS(final float upload) {
         if (upload >= 0) {
-            upValue.setText(String.format("%5.1f", upload));
+            upValue.setText(formatKBpS(upload));
         }
         else {
             upValue.setText("n/a");
         }
     }
+
+    /**
+     * format a speed value like <code>String.format("%5.1f", kbps)</code>, but without the formatter's parsing and temporary objects:
+     * the digits are written into a reused buffer, only the resulting string is allocated
+     *
+     * @param kbps value >= 0
+     * @return value with one decimal, right-aligned to at least 5 characters
+     */
+    private String formatKBpS(final float kbps) {
+
+        long tenths = Math.round(kbps * 10.0);
+        int start = digits.length;
+
+        digits[--start] = (char) ('0' + tenths % 10);
+        digits[--start] = decimalSeparator;
+        tenths /= 10;
+        do {
+            digits[--start] = (char) ('0' + tenths % 10);
+            tenths /= 10;
+        } while (tenths > 0);
+
+        while (digits.length - start < 5) {
+            digits[--start] = ' ';
+        }
+        return new String(digits, start, digits.length - start);
+    }
 }